@@ -0,0 +1,77 @@
+package ru.dualglad.shaders;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+import ru.dualglad.shaders.protocol.Link;
+import ru.dualglad.shaders.protocol.Transport;
+
+// RFCOMM transport
+class BluetoothTransport implements Transport {
+    private static final String SERVER_SERVICE = "SERVICE";                                          // BT server identifier
+    private static final UUID SERVER_UUID = UUID.fromString("446118f0-8b1e-11e2-9e96-0800200c9a66"); // BT server identifier
+
+    private final BluetoothAdapter bluetoothAdapter; // BT
+    private volatile BluetoothServerSocket bluetoothServerSocket; // BT
+
+    BluetoothTransport(BluetoothAdapter bluetoothAdapter) {
+        this.bluetoothAdapter = bluetoothAdapter;
+    }
+
+    public void open() throws IOException {
+        bluetoothServerSocket = bluetoothAdapter.listenUsingRfcommWithServiceRecord(SERVER_SERVICE, SERVER_UUID);
+    }
+
+    public Link accept() throws IOException {
+        BluetoothServerSocket serverSocket = bluetoothServerSocket;
+        if (serverSocket == null) {
+            throw new IOException("Transport is closed");
+        }
+        return new BluetoothLink(serverSocket.accept());
+    }
+
+    public void close() throws IOException {
+        BluetoothServerSocket serverSocket = bluetoothServerSocket;
+        bluetoothServerSocket = null;
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+    }
+
+    // Accepted RFCOMM connection
+    private static final class BluetoothLink implements Link {
+        private final BluetoothSocket bluetoothSocket;
+        private final String address;
+        private final String name;
+
+        private BluetoothLink(BluetoothSocket bluetoothSocket) {
+            this.bluetoothSocket = bluetoothSocket;
+            address = bluetoothSocket.getRemoteDevice().getAddress();
+            name = bluetoothSocket.getRemoteDevice().getName();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return bluetoothSocket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return bluetoothSocket.getOutputStream();
+        }
+
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        public String getRemoteName() {
+            return name;
+        }
+
+        public void close() throws IOException {
+            bluetoothSocket.close();
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package ru.dualglad.shaders;
+
+// Last lines of the console: fixed size ring, oldest lines are overwritten
+final class ConsoleBuffer {
+    private final String[] lines; // text by slot
+    private final int[] colors;   // color by slot
+    private int head;             // slot of the oldest line
+    private int count;            // lines stored
+
+    ConsoleBuffer(int capacity) {
+        lines = new String[capacity];
+        colors = new int[capacity];
+    }
+
+    void add(String line, int color) {
+        int slot = (head + count) % lines.length;
+        if (count == lines.length) {
+            head = (head + 1) % lines.length;
+        }
+        else {
+            count++;
+        }
+        lines[slot] = line;
+        colors[slot] = color;
+    }
+
+    void clear() {
+        for (int i = 0; i < lines.length; i++) {
+            lines[i] = null;
+        }
+        head = 0;
+        count = 0;
+    }
+
+    int size() {
+        return count;
+    }
+
+    int capacity() {
+        return lines.length;
+    }
+
+    // Ring slot of i-th line, 0 is the oldest
+    int slot(int index) {
+        return (head + index) % lines.length;
+    }
+
+    String line(int slot) {
+        return lines[slot];
+    }
+
+    int color(int slot) {
+        return colors[slot];
+    }
+}
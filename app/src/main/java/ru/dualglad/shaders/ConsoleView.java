@@ -0,0 +1,83 @@
+package ru.dualglad.shaders;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.ForegroundColorSpan;
+import android.view.View;
+import android.widget.ScrollView;
+import android.widget.TextView;
+
+// Console on screen: shows a ring buffer filled elsewhere, the view is redrawn at most once per frame
+final class ConsoleView {
+    private static final int SCROLLBACK_SCREENS = 3; // rendered window, in screens
+    private static final int MIN_WINDOW = 50;        // rendered window before layout, in lines
+    private static final long FRAME_MS = 16;         // flush period
+
+    private final ScrollView sv;  // console form
+    private final TextView tv;    // console text
+    private final ConsoleBuffer buffer; // lines, owned by SigningService
+    private final ForegroundColorSpan[] spans;  // by ring slot, reused
+    private final SpannableStringBuilder text = new SpannableStringBuilder();           // rendered window, reused
+    private boolean flush_scheduled; // main thread only
+
+    private final Runnable flush = new Runnable() {
+        public void run() {
+            flush_scheduled = false;
+            render();
+        }
+    };
+
+    ConsoleView(ScrollView sv, TextView tv, ConsoleBuffer buffer) {
+        this.sv = sv;
+        this.tv = tv;
+        this.buffer = buffer;
+        spans = new ForegroundColorSpan[buffer.capacity()];
+    }
+
+    // Main thread: buffer changed, drawn with the next frame
+    void update() {
+        schedule();
+    }
+
+    // Main thread
+    void clear() {
+        buffer.clear();
+        schedule();
+    }
+
+    private void schedule() {
+        if (!flush_scheduled) {
+            flush_scheduled = true;
+            tv.postDelayed(flush, FRAME_MS);
+        }
+    }
+
+    // Redraw the last lines that fit the rendered window
+    private void render() {
+        int window = MIN_WINDOW;
+        int line_height = tv.getLineHeight();
+        if ((sv.getHeight() > 0) && (line_height > 0)) {
+            window = Math.max(window, SCROLLBACK_SCREENS * sv.getHeight() / line_height);
+        }
+        int size = buffer.size();
+        int first = Math.max(0, size - window);
+
+        text.clear();
+        text.clearSpans();
+        for (int i = first; i < size; i++) {
+            int slot = buffer.slot(i);
+            String line = buffer.line(slot);
+            int color = buffer.color(slot);
+            ForegroundColorSpan span = spans[slot];
+            if ((span == null) || (span.getForegroundColor() != color)) {
+                span = new ForegroundColorSpan(color);
+                spans[slot] = span;
+            }
+            int start = text.length();
+            text.append(line).append('\n');
+            text.setSpan(span, start, text.length(), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        tv.setText(text, TextView.BufferType.SPANNABLE);
+        sv.fullScroll(View.FOCUS_DOWN);
+    }
+}
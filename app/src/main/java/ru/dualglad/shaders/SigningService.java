@@ -0,0 +1,291 @@
+package ru.dualglad.shaders;
+
+import android.app.Notification;
+import android.app.NotificationManager;
+import android.app.PendingIntent;
+import android.app.Service;
+import android.bluetooth.BluetoothAdapter;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
+import android.os.Binder;
+import android.os.Handler;
+import android.os.IBinder;
+import android.os.Looper;
+import android.os.Vibrator;
+import android.widget.RemoteViews;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import ru.dualglad.shaders.protocol.ApprovalService;
+import ru.dualglad.shaders.protocol.BusConsole;
+import ru.dualglad.shaders.protocol.Console;
+import ru.dualglad.shaders.protocol.Event;
+import ru.dualglad.shaders.protocol.EventBus;
+import ru.dualglad.shaders.protocol.Logs;
+import ru.dualglad.shaders.protocol.Metrics;
+import ru.dualglad.shaders.protocol.SessionServer;
+import ru.dualglad.shaders.protocol.SigningEngine;
+import ru.dualglad.shaders.protocol.Transport;
+
+import static ru.dualglad.shaders.protocol.Console.*;
+
+/** Hosts the signing engine while screens come and go
+ *
+ * Bound by MainActivity for the UI. While the server runs the service is
+ * also started and in the foreground, so rotation, leaving the app or
+ * destroying the Activity do not stop it. Console lines and the question
+ * being answered are kept here and replayed to the next attached screen.
+ *
+ */
+public class SigningService extends Service {
+    private static final boolean DEBUG = BuildConfig.DEBUG; // debug builds print extra debug messages to console
+    private static final String DEBUG_LEVELS = "session=debug,wire=trace"; // traces shown on the console in debug builds, wire frames carry payment text
+    private static final int TIME_VIBRATE = 500; // time of vibration on message receiving
+    static final Metrics METRICS = new Metrics(); // signing pipeline timings, kept across server restarts
+    private static final int EVENTS_PER_DRAIN = 256; // events handled per main loop message
+    private static final int CONSOLE_LINES = 500; // console lines kept for the screens
+    private static final int SESSIONS_PER_DESKTOP = 2; // one RFCOMM link plus a reconnect
+    private static final int NOTIFICATION_ID = 1; // foreground notification
+    private static final int LAN_PORT = 7420; // TCP port for Desktops on the same Wi-Fi, served next to RFCOMM
+    private static final String PREFERENCES = "settings"; // user settings, kept across restarts
+    private static final String PREF_LAN = "lan"; // serve Desktops on Wi-Fi, off by default: the port is plaintext TCP
+
+    private final IBinder binder = new LocalBinder();
+    private final Handler handler = new Handler(Looper.getMainLooper()); // main thread
+    private final ConsoleBuffer consoleBuffer = new ConsoleBuffer(CONSOLE_LINES); // main thread only
+    private EventBus eventBus; // events from server threads to main thread
+    private EventBus.Listener eventListener; // events handling, main thread
+    private Runnable drainEvents; // handles queued events on main thread
+    private Console console; // posts messages to event bus
+    private ApprovalService approvalService; // pending questions to user
+    private SigningEngine engine; // Desktop sessions and their state
+    private ExecutorService engineThread; // engine start and close: keys, journals and log files are read off the main thread
+    private boolean starting; // engine start in progress, main thread only
+    private boolean destroyed; // onDestroy() called, main thread only
+    private EventBus.Listener screen; // attached UI, null - none
+    private Event prompt; // question being answered, null - none
+    private boolean foreground; // started and shown in the notification area
+
+    // Same process binder, the screens call the service directly
+    final class LocalBinder extends Binder {
+        SigningService getService() {
+            return SigningService.this;
+        }
+    }
+
+    public void onCreate() {
+        super.onCreate();
+
+        // Events handling: keep for the screens, then pass to the attached one
+        eventListener = new EventBus.Listener() {
+            public void onEvent(Event event) {
+                switch (event.type) {
+                    case Event.PRINT:
+                        consoleBuffer.add(event.text, event.color);
+                        break;
+                    case Event.USER_REQUEST_SHOW:
+                        if (prompt == null) {
+                            Vibrator vibrator = (Vibrator)getSystemService(VIBRATOR_SERVICE);
+                            vibrator.vibrate(TIME_VIBRATE);
+                        }
+                        prompt = event;
+                        notifyState();
+                        break;
+                    case Event.USER_REQUEST_HIDE:
+                        prompt = null;
+                        notifyState();
+                        break;
+                    default:
+                        break;
+                }
+                if (screen != null) {
+                    screen.onEvent(event);
+                }
+            }
+        };
+        drainEvents = new Runnable() {
+            public void run() {
+                eventBus.drain(eventListener, EVENTS_PER_DRAIN);
+            }
+        };
+        eventBus = new EventBus(new EventBus.Waker() {
+            public void wake() {
+                handler.post(drainEvents);
+            }
+        });
+        console = new BusConsole(eventBus, DEBUG);
+        approvalService = new ApprovalService(console, eventBus, ApprovalService.DEFAULT_TIMEOUT);
+        engine = new SigningEngine(getFilesDir(), console, approvalService, METRICS);
+        engineThread = Executors.newSingleThreadExecutor();
+        engine.setAdmission(SessionServer.DEFAULT_MAX_PENDING, SESSIONS_PER_DESKTOP);
+        // traces always go to files, levels from Logs.FILE; debug builds also print them
+        if (DEBUG) {
+            engine.getLogs().setLevels(DEBUG_LEVELS);
+            engine.getLogs().addSink(Logs.toConsole(console));
+        }
+
+        console.msg("Welcome! Turn on server to receive requests.\n", COLOR_YELLOW);
+    }
+
+    public IBinder onBind(Intent intent) {
+        return binder;
+    }
+
+    // Started only while the server runs; restarted by the system after being killed
+    public int onStartCommand(Intent intent, int flags, int startId) {
+        if ((intent == null) && !isRunning()) {
+            startServer();
+        }
+        return START_STICKY;
+    }
+
+    public void onDestroy() {
+        super.onDestroy();
+
+        destroyed = true;
+        approvalService.cancelAll();
+        handler.removeCallbacks(drainEvents);
+        // after a start in progress, the journals are flushed off the main thread
+        engineThread.execute(new Runnable() {
+            public void run() {
+                engine.close();
+                approvalService.close();
+            }
+        });
+        engineThread.shutdown();
+    }
+
+    // Main thread: show events on screen, replay with getConsole() and getPrompt()
+    void attach(EventBus.Listener screen) {
+        this.screen = screen;
+    }
+
+    void detach() {
+        screen = null;
+    }
+
+    ConsoleBuffer getConsole() {
+        return consoleBuffer;
+    }
+
+    // Last USER_REQUEST_SHOW event, null if no question
+    Event getPrompt() {
+        return prompt;
+    }
+
+    // False while starting, the engine is busy loading its state
+    boolean isRunning() {
+        return !starting && engine.isRunning();
+    }
+
+    void answer(boolean accepted) {
+        approvalService.answer(accepted);
+    }
+
+    boolean isLanEnabled() {
+        return getSharedPreferences(PREFERENCES, MODE_PRIVATE).getBoolean(PREF_LAN, false);
+    }
+
+    // Applied when the server is turned on
+    void setLanEnabled(boolean enabled) {
+        getSharedPreferences(PREFERENCES, MODE_PRIVATE).edit().putBoolean(PREF_LAN, enabled).commit();
+        if (isRunning()) {
+            console.msg("LAN " + (enabled ? "on" : "off") + " after the server restarts.\n", COLOR_YELLOW);
+        }
+    }
+
+    // Activate server in the background, keeps the service alive until stopServer()
+    void startServer() {
+        if (starting) {
+            return;
+        }
+        // LAN listens on the Wi-Fi address only, never on mobile data or VPN interfaces
+        String lan_host = null;
+        if (isLanEnabled()) {
+            lan_host = wifiAddress();
+            if (lan_host == null) {
+                console.msg("No Wi-Fi connection, LAN is not served.\n", COLOR_LIGHT_RED);
+            }
+        }
+        engine.setLan(lan_host, (lan_host == null) ? -1 : LAN_PORT);
+        BluetoothAdapter bluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        final Transport transport = new BluetoothTransport(bluetoothAdapter);
+        starting = true;
+        // keys, pairings and the audit journal are loaded from files
+        engineThread.execute(new Runnable() {
+            public void run() {
+                final boolean started = engine.start(transport);
+                handler.post(new Runnable() {
+                    public void run() {
+                        started(started);
+                    }
+                });
+            }
+        });
+    }
+
+    // Main thread: engine start finished
+    private void started(boolean started) {
+        starting = false;
+        if (destroyed) {
+            return;
+        }
+        if (started) {
+            startService(new Intent(this, SigningService.class));
+            foreground = true;
+            startForeground(NOTIFICATION_ID, notification());
+        }
+        if (screen != null) {
+            screen.onEvent(Event.STATE);
+        }
+    }
+
+    // Deactivate server, the service ends when no screen is bound
+    void stopServer() {
+        if (starting) {
+            return;
+        }
+        engine.stop();
+        approvalService.cancelAll();
+        foreground = false;
+        stopForeground(true);
+        stopSelf();
+    }
+
+    // IPv4 address of the Wi-Fi interface, null if not connected
+    private String wifiAddress() {
+        WifiManager wifiManager = (WifiManager)getApplicationContext().getSystemService(WIFI_SERVICE);
+        WifiInfo wifiInfo = (wifiManager == null) ? null : wifiManager.getConnectionInfo();
+        int ip = (wifiInfo == null) ? 0 : wifiInfo.getIpAddress();
+        if (ip == 0) {
+            return null;
+        }
+        // little-endian
+        return (ip & 0xff) + "." + ((ip >> 8) & 0xff) + "." + ((ip >> 16) & 0xff) + "." + ((ip >>> 24) & 0xff);
+    }
+
+    private void notifyState() {
+        if (foreground) {
+            NotificationManager notificationManager = (NotificationManager)getSystemService(NOTIFICATION_SERVICE);
+            notificationManager.notify(NOTIFICATION_ID, notification());
+        }
+    }
+
+    // Ongoing notification, opens the console
+    private Notification notification() {
+        String text = (prompt == null) ? "Signing server is running." : "Waiting for your answer: " + prompt.text;
+        RemoteViews content = new RemoteViews(getPackageName(), R.layout.notification);
+        content.setTextViewText(R.id.tv_notification, text);
+        Intent intent = new Intent(this, MainActivity.class);
+        intent.setFlags(Intent.FLAG_ACTIVITY_SINGLE_TOP | Intent.FLAG_ACTIVITY_CLEAR_TOP);
+        Notification notification = new Notification();
+        notification.icon = R.mipmap.ic_launcher;
+        notification.when = System.currentTimeMillis();
+        notification.tickerText = text;
+        notification.contentView = content;
+        notification.contentIntent = PendingIntent.getActivity(this, 0, intent, PendingIntent.FLAG_UPDATE_CURRENT);
+        notification.flags |= Notification.FLAG_ONGOING_EVENT | Notification.FLAG_NO_CLEAR;
+        return notification;
+    }
+}
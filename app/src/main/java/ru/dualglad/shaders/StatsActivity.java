@@ -0,0 +1,81 @@
+package ru.dualglad.shaders;
+
+import android.app.Activity;
+import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.view.View;
+import android.widget.TextView;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import ru.dualglad.shaders.protocol.Metrics;
+
+// Signing pipeline timings, refreshed while visible
+public class StatsActivity extends Activity {
+    private static final long REFRESH = 1000; // ms between snapshots
+    private static final String EXPORT_FILE = "metrics.prom"; // Prometheus text format
+
+    private TextView tv_stats; // snapshot table
+    private String status = ""; // last export result
+    private final Handler handler = new Handler(Looper.getMainLooper()); // main thread
+    private final Runnable refresh = new Runnable() {
+        public void run() {
+            show();
+            handler.postDelayed(this, REFRESH);
+        }
+    };
+
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+        setContentView(R.layout.activity_stats);
+
+        tv_stats = (TextView)findViewById(R.id.tv_stats);
+        // Save snapshot to file
+        findViewById(R.id.b_export).setOnClickListener(new View.OnClickListener() {
+            public void onClick(View view) {
+                export();
+            }
+        });
+        // Start counting from zero
+        findViewById(R.id.b_reset).setOnClickListener(new View.OnClickListener() {
+            public void onClick(View view) {
+                SigningService.METRICS.reset();
+                status = "";
+                show();
+            }
+        });
+    }
+
+    protected void onResume() {
+        super.onResume();
+        handler.post(refresh);
+    }
+
+    protected void onPause() {
+        super.onPause();
+        handler.removeCallbacks(refresh);
+    }
+
+    private void show() {
+        tv_stats.setText(SigningService.METRICS.snapshot().summary() + status);
+    }
+
+    private void export() {
+        File file = new File(getFilesDir(), EXPORT_FILE);
+        try {
+            FileOutputStream outputStream = new FileOutputStream(file);
+            try {
+                outputStream.write(SigningService.METRICS.snapshot().prometheus().getBytes(Charset.forName("UTF-8")));
+            } finally {
+                outputStream.close();
+            }
+            status = "\nExported to " + file + "\n";
+        } catch (IOException e) {
+            e.printStackTrace();
+            status = "\nFailure to export.\n";
+        }
+        show();
+    }
+}
@@ -0,0 +1,61 @@
+package ru.dualglad.shaders.benchmarks;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ru.dualglad.shaders.protocol.DesktopClient;
+
+// Payroll run: N transfers as one "batch_request" vs N "request" dialogs
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BatchBenchmark {
+    @Param({"10", "200"})
+    public int items;
+
+    private Loopback loopback;
+    private DesktopClient client; // keep-alive framed session
+    private String[] messages_from_server;
+    private String[] parts_for_signature;
+
+    @Setup
+    public void setup() throws IOException, InterruptedException, GeneralSecurityException {
+        loopback = new Loopback();
+        client = loopback.connect(true, true);
+        messages_from_server = new String[items];
+        parts_for_signature = new String[items];
+        for (int i = 0; i < items; i++) {
+            messages_from_server[i] = "Salary " + i + ": 1000.00 to account " + (40817810000000000L + i);
+            parts_for_signature[i] = "payment-" + i;
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        client.close();
+        loopback.close();
+    }
+
+    @Benchmark
+    public String[] batch() throws IOException {
+        return client.batchRequest(messages_from_server, parts_for_signature);
+    }
+
+    @Benchmark
+    public String[] singles() throws IOException {
+        String[] signatures = new String[items];
+        for (int i = 0; i < items; i++) {
+            signatures[i] = client.request(messages_from_server[i], parts_for_signature[i]);
+        }
+        return signatures;
+    }
+}
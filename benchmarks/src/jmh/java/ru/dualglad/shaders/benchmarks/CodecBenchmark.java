@@ -0,0 +1,76 @@
+package ru.dualglad.shaders.benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ru.dualglad.shaders.protocol.Dialog;
+import ru.dualglad.shaders.protocol.Frame;
+import ru.dualglad.shaders.protocol.FrameCodec;
+import ru.dualglad.shaders.protocol.TextCodec;
+
+// Parsing and encoding of a "request" message
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CodecBenchmark {
+    @Param({"64", "1024", "16384"})
+    public int size; // message_from_server length
+
+    private String line;          // legacy text message
+    private byte[] line_bytes;    // legacy text message as received
+    private ByteBuffer encoded;   // framed message as received
+    private final Frame frame = new Frame();
+    private FrameCodec frameCodec;
+
+    @Setup
+    public void setup() throws IOException {
+        StringBuilder message = new StringBuilder();
+        while (message.length() < size) {
+            message.append("Transfer 100.00 to ACME ");
+        }
+        message.setLength(size);
+        line = Dialog.REQUEST + Dialog.SEPARATOR + message + Dialog.SEPARATOR + "part" + message.hashCode();
+        line_bytes = line.getBytes(Charset.forName("UTF-8"));
+
+        frameCodec = new FrameCodec(new ByteArrayInputStream(new byte[0]), new ByteArrayOutputStream());
+        frame.set(Dialog.REQUEST).add(message.toString()).add("part" + message.hashCode());
+        ByteBuffer out = frameCodec.encode(frame);
+        encoded = ByteBuffer.allocate(out.remaining());
+        encoded.put(out);
+        encoded.flip();
+    }
+
+    // Old parsing: regex backed split
+    @Benchmark
+    public String[] legacySplit() {
+        return line.split(Dialog.SEPARATOR);
+    }
+
+    @Benchmark
+    public Frame textParse() {
+        TextCodec.parse(line_bytes, line_bytes.length, frame);
+        return frame;
+    }
+
+    @Benchmark
+    public Frame frameDecode() throws IOException {
+        frameCodec.decode(encoded.duplicate(), frame);
+        return frame;
+    }
+
+    @Benchmark
+    public ByteBuffer frameEncode() throws IOException {
+        return frameCodec.encode(frame.set(Dialog.ANSWER).add(line));
+    }
+}
@@ -0,0 +1,98 @@
+package ru.dualglad.shaders.benchmarks;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import ru.dualglad.shaders.protocol.Challenges;
+import ru.dualglad.shaders.protocol.CryptoEngine;
+import ru.dualglad.shaders.protocol.Hex;
+
+// Challenge generation, key parsing, sign and verify
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class CryptoBenchmark {
+    private CryptoEngine mobile;   // Mobile keys
+    private CryptoEngine desktop;  // Desktop keys
+    private PublicKey desktop_key; // parsed public Desktop key
+    private String checker;        // challenge
+    private String signed;         // Desktop answer to the challenge
+    private String part_for_signature;
+    private Challenges challenges;
+
+    @Setup
+    public void setup() throws GeneralSecurityException {
+        mobile = CryptoEngine.generate();
+        desktop = CryptoEngine.generate();
+        desktop_key = mobile.parsePublickey(desktop.getPublickey());
+        challenges = new Challenges(1000);
+        checker = challenges.issue();
+        signed = desktop.sign(checker);
+        StringBuilder part = new StringBuilder();
+        while (part.length() < 4096) {
+            part.append("Transfer 100.00 to ACME ");
+        }
+        part_for_signature = part.toString();
+    }
+
+    @TearDown
+    public void tearDown() {
+        challenges.close();
+    }
+
+    // Old way: new SecureRandom for every challenge
+    @Benchmark
+    public String challengeUnpooled() {
+        return String.valueOf(System.currentTimeMillis()) + String.valueOf(new SecureRandom().nextLong() & Long.MAX_VALUE);
+    }
+
+    @Benchmark
+    public String challenge() {
+        return challenges.issue();
+    }
+
+    // Replayed answer is rejected without verification
+    @Benchmark
+    public int redeemReplayed() {
+        return challenges.redeem(checker, signed);
+    }
+
+    // Old way: new KeyFactory and decoding on every request
+    @Benchmark
+    public PublicKey parseKeyUncached() throws GeneralSecurityException {
+        return KeyFactory.getInstance(CryptoEngine.KEY_ALGORITHM).generatePublic(new X509EncodedKeySpec(Hex.decode(desktop.getPublickey())));
+    }
+
+    @Benchmark
+    public PublicKey parseKeyCached() {
+        return mobile.parsePublickey(desktop.getPublickey());
+    }
+
+    @Benchmark
+    public String sign() {
+        return mobile.sign(part_for_signature);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public String signParallel() {
+        return mobile.sign(part_for_signature);
+    }
+
+    @Benchmark
+    public boolean verify() {
+        return mobile.verify(desktop_key, checker, signed);
+    }
+}
@@ -0,0 +1,64 @@
+package ru.dualglad.shaders.benchmarks;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import ru.dualglad.shaders.protocol.DesktopClient;
+
+// Full "request" dialog over the in-memory pipe, user accepts instantly
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class HandshakeBenchmark {
+    private Loopback loopback;
+    private DesktopClient framed;   // keep-alive framed session
+    private DesktopClient text;     // keep-alive legacy text session
+
+    @Setup
+    public void setup() throws IOException, InterruptedException, GeneralSecurityException {
+        loopback = new Loopback();
+        framed = loopback.connect(true, true);
+        text = loopback.connect(false, true);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        framed.close();
+        text.close();
+        loopback.close();
+    }
+
+    // Old behaviour: one text dialog per connection
+    @Benchmark
+    public String oneShotText() throws IOException {
+        DesktopClient client = loopback.connect(false, false);
+        try {
+            return client.request("Transfer 100.00 to ACME", "part");
+        } finally {
+            client.close();
+        }
+    }
+
+    @Benchmark
+    public String keepAliveText() throws IOException {
+        return text.request("Transfer 100.00 to ACME", "part");
+    }
+
+    @Benchmark
+    public String keepAliveFramed() throws IOException {
+        return framed.request("Transfer 100.00 to ACME", "part");
+    }
+
+    @Benchmark
+    public boolean ping() throws IOException {
+        return framed.ping();
+    }
+}
@@ -0,0 +1,68 @@
+package ru.dualglad.shaders.benchmarks;
+
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.TimeUnit;
+import ru.dualglad.shaders.protocol.Approval;
+import ru.dualglad.shaders.protocol.Approver;
+import ru.dualglad.shaders.protocol.Console;
+import ru.dualglad.shaders.protocol.CryptoEngine;
+import ru.dualglad.shaders.protocol.DesktopClient;
+import ru.dualglad.shaders.protocol.LoopbackTransport;
+import ru.dualglad.shaders.protocol.PairingRegistry;
+import ru.dualglad.shaders.protocol.SessionServer;
+
+// Mobile server over in-memory links with a Desktop already paired
+final class Loopback {
+    static final String DESKTOP_ADDRESS = "00:11:22:33:44:55";
+    static final String DESKTOP_NAME = "benchmark";
+
+    // Drops all output
+    static final Console SILENT = new Console() {
+        public void msg(String string, int color) { }
+
+        public void msgdbg(String string) { }
+    };
+
+    // User who accepts everything at once
+    static final Approver ACCEPT_ALL = new Approver() {
+        public int askUser(String question, int color) {
+            return Approval.ACCEPTED;
+        }
+    };
+
+    final LoopbackTransport transport = new LoopbackTransport();
+    final CryptoEngine mobile;    // Mobile keys
+    final CryptoEngine desktop;   // Desktop keys
+    final SessionServer server;
+
+    Loopback() throws IOException, InterruptedException, GeneralSecurityException {
+        mobile = CryptoEngine.generate();
+        desktop = CryptoEngine.generate();
+        server = new SessionServer(transport, SILENT, ACCEPT_ALL, mobile, PairingRegistry.inMemory(mobile),
+                SessionServer.DEFAULT_WORKERS);
+        server.start();
+        // acceptor opens the transport asynchronously
+        while (true) {
+            try {
+                DesktopClient client = connect(false, false);
+                client.pair();
+                client.close();
+                break;
+            } catch (IOException e) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    DesktopClient connect(boolean framed, boolean keepalive) throws IOException {
+        DesktopClient client = new DesktopClient(transport.connect(DESKTOP_ADDRESS, DESKTOP_NAME), desktop);
+        client.open(framed, keepalive);
+        return client;
+    }
+
+    void close() throws InterruptedException {
+        server.stop();
+        server.awaitTermination(5, TimeUnit.SECONDS);
+    }
+}
@@ -0,0 +1,39 @@
+package ru.dualglad.shaders.benchmarks;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import ru.dualglad.shaders.protocol.Policy;
+
+// Auto-approval rules on a "request" message, gc profiler should show no allocations
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class PolicyBenchmark {
+    private static final String RULES =
+            "amount <= 100 and payee in ACME, Water Co, Power Co and time 00:00 - 24:00 and rate 1000000000 / 60\n"
+            + "amount < 5 and not payee in Casino\n";
+
+    private Policy policy;
+    private final Policy.Context context = new Policy.Context();
+
+    @Setup
+    public void setup() {
+        policy = Policy.compile(RULES);
+    }
+
+    @Benchmark
+    public int matched() {
+        return policy.match(context.set(Loopback.DESKTOP_ADDRESS, "Transfer;amount=99.99;payee=Water Co", System.currentTimeMillis()));
+    }
+
+    @Benchmark
+    public int fallThrough() {
+        return policy.match(context.set(Loopback.DESKTOP_ADDRESS, "Transfer;amount=5000.00;payee=Casino", System.currentTimeMillis()));
+    }
+}
@@ -0,0 +1,109 @@
+package ru.dualglad.shaders.protocol;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// One question to the user, completed once by the user, the deadline or a shutdown
+public final class Approval {
+    public static final int PENDING = 0;
+    public static final int ACCEPTED = 1;
+    public static final int REJECTED = 2;
+    public static final int EXPIRED = 3;   // no answer before the deadline
+    public static final int CANCELLED = 4; // server stopped
+
+    // Called once on the completing thread
+    public interface Listener {
+        void onDone(Approval approval);
+    }
+
+    public final int id;          // number shown to the user
+    public final String question; // text shown to the user
+    public final int color;       // color of the question in console
+
+    private final AtomicInteger state = new AtomicInteger(PENDING);
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final Listener listener;
+    private ScheduledFuture<?> expiry; // deadline task, guarded by this
+    private boolean expiry_cancelled;  // guarded by this
+
+    Approval(int id, String question, int color, Listener listener) {
+        this.id = id;
+        this.question = question;
+        this.color = color;
+        this.listener = listener;
+    }
+
+    // User answer, false if already completed
+    public boolean complete(boolean accepted) {
+        return finish(accepted ? ACCEPTED : REJECTED);
+    }
+
+    // Deadline passed, false if already completed
+    boolean expire() {
+        return finish(EXPIRED);
+    }
+
+    // Nobody will answer anymore, false if already completed
+    public boolean cancel() {
+        return finish(CANCELLED);
+    }
+
+    // Deadline task of the service, cancelled at once if cancelExpiry() came first
+    synchronized void setExpiry(ScheduledFuture<?> expiry) {
+        if (expiry_cancelled) {
+            expiry.cancel(false);
+        }
+        else {
+            this.expiry = expiry;
+        }
+    }
+
+    // Completed: the deadline task and this Approval are not kept until the timeout
+    synchronized void cancelExpiry() {
+        expiry_cancelled = true;
+        if (expiry != null) {
+            expiry.cancel(false);
+            expiry = null;
+        }
+    }
+
+    public int state() {
+        return state.get();
+    }
+
+    public boolean isDone() {
+        return state.get() != PENDING;
+    }
+
+    // Wait for completion, true only if the user accepted
+    public boolean get() {
+        return await() == ACCEPTED;
+    }
+
+    // Wait for completion, returns the final state
+    public int await() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return state.get();
+    }
+
+    private boolean finish(int result) {
+        if (!state.compareAndSet(PENDING, result)) {
+            return false;
+        }
+        done.countDown();
+        listener.onDone(this);
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+package ru.dualglad.shaders.protocol;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Queue of questions to the user
+ *
+ * Every session gets its own Approval and waits only for it. The UI answers
+ * the front of the queue; a single timer thread expires unanswered questions.
+ * Show/hide events with the current front go to the event bus.
+ *
+ */
+public final class ApprovalService implements Approver, Approval.Listener {
+    public static final long DEFAULT_TIMEOUT = 60000; // ms to answer one question
+
+    private final Console console;
+    private final EventBus bus;
+    private final long timeout; // ms
+    private final ArrayDeque<Approval> queue = new ArrayDeque<>(); // guarded by itself, front is answered by UI
+    private final AtomicInteger number = new AtomicInteger();
+    private final ScheduledThreadPoolExecutor timer;
+    private volatile boolean closed;
+
+    public ApprovalService(Console console, EventBus bus, long timeout) {
+        this.console = console;
+        this.bus = bus;
+        this.timeout = timeout;
+        timer = new ScheduledThreadPoolExecutor(1, new SessionServer.NamedThreadFactory("approvals"));
+    }
+
+    // Approver: blocks the calling session only
+    public int askUser(String question, int color) {
+        return submit(question, color).await();
+    }
+
+    // Queue question, never blocks
+    public Approval submit(String question, int color) {
+        final Approval approval = new Approval(number.incrementAndGet(), question, color, this);
+        if (closed) {
+            approval.cancel();
+            return approval;
+        }
+        console.msg("[#" + approval.id + "] " + question, color);
+        boolean front;
+        synchronized (queue) {
+            queue.addLast(approval);
+            front = queue.peekFirst() == approval;
+        }
+        if (front) {
+            show(approval);
+        }
+        try {
+            approval.setExpiry(timer.schedule(new Runnable() {
+                public void run() {
+                    if (approval.expire()) {
+                        console.msg("[#" + approval.id + "] No answer, request cancelled.", Console.COLOR_LIGHT_RED);
+                    }
+                }
+            }, timeout, TimeUnit.MILLISECONDS));
+        } catch (RejectedExecutionException e) {
+            approval.cancel(); // closed meanwhile
+        }
+        if (closed) {
+            approval.cancel();
+        }
+        return approval;
+    }
+
+    // UI answer to the front question; false if nothing is pending
+    public boolean answer(boolean accepted) {
+        Approval approval;
+        synchronized (queue) {
+            approval = queue.peekFirst();
+        }
+        return (approval != null) && approval.complete(accepted);
+    }
+
+    public int pending() {
+        synchronized (queue) {
+            return queue.size();
+        }
+    }
+
+    // Cancel all pending questions and stop the timer
+    public void close() {
+        closed = true;
+        cancelAll();
+        timer.shutdownNow();
+    }
+
+    // Cancel all pending questions, e.g. when their sessions are gone
+    public void cancelAll() {
+        Approval approval;
+        while (true) {
+            synchronized (queue) {
+                approval = queue.peekFirst();
+            }
+            if (approval == null) {
+                break;
+            }
+            approval.cancel();
+        }
+    }
+
+    // Approval.Listener: drop completed question, show the next one
+    public void onDone(Approval approval) {
+        // setRemoveOnCancelPolicy() is API 21, purge() drops the cancelled task from the queue
+        approval.cancelExpiry();
+        timer.purge();
+        Approval next;
+        boolean was_front;
+        synchronized (queue) {
+            was_front = queue.peekFirst() == approval;
+            queue.remove(approval);
+            next = queue.peekFirst();
+        }
+        if (next == null) {
+            bus.post(Event.HIDE);
+        }
+        else if (was_front) {
+            console.msg("[#" + next.id + "] Waiting for answer.", next.color);
+            show(next);
+        }
+    }
+
+    private void show(Approval front) {
+        bus.post(new Event(Event.USER_REQUEST_SHOW, "#" + front.id + " (" + pending() + " pending)", front.color));
+    }
+}
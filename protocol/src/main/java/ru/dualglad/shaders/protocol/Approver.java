@@ -0,0 +1,7 @@
+package ru.dualglad.shaders.protocol;
+
+// User decisions
+public interface Approver {
+    // Show question to user and wait: Approval.ACCEPTED or REJECTED by the user, EXPIRED or CANCELLED if never answered
+    int askUser(String question, int color);
+}
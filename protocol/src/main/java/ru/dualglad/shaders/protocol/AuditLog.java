@@ -0,0 +1,401 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/** Append-only journal of signing decisions
+ *
+ * Every record carries the SHA-256 of the previous record hash and its own
+ * payload, so editing or dropping a record breaks the chain.
+ * Sessions only queue records; one writer thread appends whole batches
+ * through a FileChannel and forces them to disk once per batch.
+ * Offsets of records are indexed in memory by time and by Desktop.
+ *
+ * Record:  [len:4][payload][hash:32]
+ * Payload: [time:8][decision:1][address][challenge][message][part][signature], each [len:4][utf8]
+ *
+ */
+public final class AuditLog {
+    public static final String FILE = "audit.log";
+    public static final byte ACCEPTED = 1; // by user
+    public static final byte REJECTED = 2; // by user
+    public static final byte AUTO = 3;     // by auto-approval rule
+    public static final byte EXPIRED = 4;  // no user decision: prompt expired or cancelled on stop
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int HASH = 32;
+    private static final int MAX_BATCH = 256;       // records per disk write
+    private static final int MAX_PAYLOAD = 16 << 20; // record sanity limit
+    private static final Entry STOP = new Entry(0, (byte)0, "", "", "", "", "");
+
+    // Journal record
+    public static final class Entry {
+        public final long time;         // ms
+        public final byte decision;     // ACCEPTED, REJECTED, AUTO or EXPIRED
+        public final String address;    // Desktop BT address
+        public final String challenge;  // "sign" challenge answered by the Desktop
+        public final String message;    // message_from_server
+        public final String part;       // part_for_signature
+        public final String signature;  // Mobile signature, "" if rejected
+        String hash;                    // hex, set when written
+
+        public Entry(long time, byte decision, String address, String challenge, String message, String part, String signature) {
+            this.time = time;
+            this.decision = decision;
+            this.address = address;
+            this.challenge = challenge;
+            this.message = message;
+            this.part = part;
+            this.signature = signature;
+        }
+
+        // Chained hash, hex
+        public String hash() {
+            return hash;
+        }
+    }
+
+    private final FileChannel channel;
+    private final RandomAccessFile file;
+    private final LinkedBlockingQueue<Entry> queue = new LinkedBlockingQueue<>();
+    private final Thread writer;
+    private final MessageDigest digest;       // writer thread only
+    private byte[] last_hash = new byte[HASH]; // writer thread only, zeros before the first record
+    private long end;                          // writer thread only, file size
+    private long last_time;                    // writer thread only, keeps time index sorted
+
+    // Index, guarded by itself
+    private final Object index = new Object();
+    private long[] times = new long[64];
+    private long[] offsets = new long[64];
+    private int count;
+    private final HashMap<String, int[]> by_desktop = new HashMap<>(); // address -> {n, record numbers...}
+    private long submitted; // guarded by index
+    private long committed; // guarded by index
+    private volatile boolean closed;
+
+    private AuditLog(File path) throws IOException {
+        try {
+            digest = MessageDigest.getInstance(CryptoEngine.DIGEST_ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        file = new RandomAccessFile(path, "rw");
+        channel = file.getChannel();
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "audit");
+        writer.setDaemon(true);
+    }
+
+    // Journal in directory: checks the whole chain and builds the index
+    public static AuditLog open(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        AuditLog log = new AuditLog(new File(directory, FILE));
+        try {
+            log.scan();
+        } catch (IOException e) {
+            log.file.close();
+            throw e;
+        }
+        log.writer.start();
+        return log;
+    }
+
+    // Queue record, never blocks on disk
+    public void append(Entry entry) {
+        if (closed) {
+            return;
+        }
+        synchronized (index) {
+            submitted++;
+        }
+        queue.offer(entry);
+    }
+
+    // Wait until everything appended so far is on disk
+    public void flush() throws InterruptedException {
+        synchronized (index) {
+            long target = submitted;
+            while ((committed < target) && writer.isAlive()) {
+                index.wait(100);
+            }
+        }
+    }
+
+    // Records with from <= time < to
+    public List<Entry> byTime(long from, long to) throws IOException {
+        long[] found;
+        synchronized (index) {
+            int first = lowerBound(from);
+            int last = lowerBound(to);
+            found = Arrays.copyOfRange(offsets, first, Math.max(first, last));
+        }
+        return read(found);
+    }
+
+    // Records of one Desktop with from <= time < to
+    public List<Entry> byDesktop(String address, long from, long to) throws IOException {
+        long[] found;
+        synchronized (index) {
+            int[] records = by_desktop.get(address);
+            if (records == null) {
+                return new ArrayList<>();
+            }
+            found = new long[records[0]];
+            int n = 0;
+            for (int i = 1; i <= records[0]; i++) {
+                int record = records[i];
+                if ((times[record] >= from) && (times[record] < to)) {
+                    found[n++] = offsets[record];
+                }
+            }
+            found = Arrays.copyOf(found, n);
+        }
+        return read(found);
+    }
+
+    public int size() {
+        synchronized (index) {
+            return count;
+        }
+    }
+
+    // Write queued records and close the file
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.offer(STOP);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            file.close();
+        } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    // Writer thread: group commit
+    private void write() {
+        List<Entry> batch = new ArrayList<>(MAX_BATCH);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        boolean stop = false;
+        while (!stop) {
+            try {
+                batch.add(queue.take());
+            } catch (InterruptedException e) {
+                break;
+            }
+            queue.drainTo(batch, MAX_BATCH - 1);
+            bytes.reset();
+            long position = end;
+            byte[] chain_hash = last_hash;
+            long chain_time = last_time;
+            long[] record_offsets = new long[batch.size()];
+            long[] record_times = new long[batch.size()]; // as written, sorted unlike queued entries
+            int records = 0;
+            try {
+                for (Entry entry : batch) {
+                    if (entry == STOP) {
+                        stop = true;
+                        continue;
+                    }
+                    record_offsets[records] = position + bytes.size();
+                    record_times[records++] = serialize(out, entry);
+                }
+                if (records > 0) {
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes.toByteArray());
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer, end + buffer.position());
+                    }
+                    channel.force(false);
+                    end += buffer.limit();
+                }
+            } catch (IOException e) {
+                e.printStackTrace(); // records of this batch are lost, chain goes on from the last written one
+                records = 0;
+                last_hash = chain_hash;
+                last_time = chain_time;
+                try {
+                    channel.truncate(end);
+                } catch (IOException e2) { e2.printStackTrace(); }
+            }
+            synchronized (index) {
+                int r = 0;
+                for (Entry entry : batch) {
+                    if ((entry != STOP) && (r < records)) {
+                        addIndex(record_times[r], entry.address, record_offsets[r]);
+                        r++;
+                    }
+                }
+                committed += batch.size() - (stop ? 1 : 0);
+                index.notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    // Payload and chained hash of the entry, sets entry.hash; returns the time written, never before the previous one
+    private long serialize(DataOutputStream out, Entry entry) throws IOException {
+        ByteArrayOutputStream payload_bytes = new ByteArrayOutputStream();
+        DataOutputStream payload = new DataOutputStream(payload_bytes);
+        long time = Math.max(entry.time, last_time);
+        last_time = time;
+        payload.writeLong(time);
+        payload.writeByte(entry.decision);
+        writeString(payload, entry.address);
+        writeString(payload, entry.challenge);
+        writeString(payload, entry.message);
+        writeString(payload, entry.part);
+        writeString(payload, entry.signature);
+        byte[] data = payload_bytes.toByteArray();
+        last_hash = chain(last_hash, data, 0, data.length);
+        entry.hash = Hex.encode(last_hash);
+        out.writeInt(data.length);
+        out.write(data);
+        out.write(last_hash);
+        return time;
+    }
+
+    private byte[] chain(byte[] previous, byte[] data, int offset, int length) {
+        digest.update(previous);
+        digest.update(data, offset, length);
+        return digest.digest();
+    }
+
+    // Read existing records: check chain, drop a torn tail, build index
+    private void scan() throws IOException {
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer length_buffer = ByteBuffer.allocate(4);
+        while (position + 4 <= size) {
+            length_buffer.clear();
+            readFully(length_buffer, position);
+            int length = length_buffer.getInt(0);
+            if ((length <= 0) || (length > MAX_PAYLOAD) || (position + 4 + length + HASH > size)) {
+                break; // torn tail
+            }
+            ByteBuffer record = ByteBuffer.allocate(length + HASH);
+            readFully(record, position + 4);
+            byte[] data = record.array();
+            byte[] hash = chain(last_hash, data, 0, length);
+            if (!Arrays.equals(hash, Arrays.copyOfRange(data, length, length + HASH))) {
+                throw new IOException("Audit chain broken at record " + count);
+            }
+            last_hash = hash;
+            Entry entry = parse(ByteBuffer.wrap(data, 0, length));
+            last_time = entry.time;
+            addIndex(entry.time, entry.address, position);
+            position += 4 + length + HASH;
+        }
+        if (position < size) {
+            channel.truncate(position);
+        }
+        end = position;
+    }
+
+    private List<Entry> read(long[] found) throws IOException {
+        List<Entry> entries = new ArrayList<>(found.length);
+        ByteBuffer length_buffer = ByteBuffer.allocate(4);
+        for (long position : found) {
+            length_buffer.clear();
+            readFully(length_buffer, position);
+            int length = length_buffer.getInt(0);
+            ByteBuffer record = ByteBuffer.allocate(length + HASH);
+            readFully(record, position + 4);
+            Entry entry = parse(ByteBuffer.wrap(record.array(), 0, length));
+            entry.hash = Hex.encode(Arrays.copyOfRange(record.array(), length, length + HASH));
+            entries.add(entry);
+        }
+        return entries;
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of " + FILE);
+            }
+        }
+    }
+
+    private static Entry parse(ByteBuffer payload) {
+        long time = payload.getLong();
+        byte decision = payload.get();
+        String address = readString(payload);
+        String challenge = readString(payload);
+        String message = readString(payload);
+        String part = readString(payload);
+        String signature = readString(payload);
+        return new Entry(time, decision, address, challenge, message, part, signature);
+    }
+
+    // Guarded by index
+    private void addIndex(long time, String address, long offset) {
+        if (count == times.length) {
+            times = Arrays.copyOf(times, count * 2);
+            offsets = Arrays.copyOf(offsets, count * 2);
+        }
+        times[count] = time;
+        offsets[count] = offset;
+        int[] records = by_desktop.get(address);
+        if (records == null) {
+            records = new int[8];
+        }
+        else if (records[0] + 1 == records.length) {
+            records = Arrays.copyOf(records, records.length * 2);
+        }
+        records[++records[0]] = count;
+        by_desktop.put(address, records);
+        count++;
+    }
+
+    // First record with time >= value; guarded by index
+    private int lowerBound(long value) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (times[middle] < value) {
+                low = middle + 1;
+            }
+            else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, UTF_8);
+        buffer.position(buffer.position() + length);
+        return string;
+    }
+
+    private static void writeString(DataOutputStream outputStream, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        outputStream.writeInt(bytes.length);
+        outputStream.write(bytes);
+    }
+}
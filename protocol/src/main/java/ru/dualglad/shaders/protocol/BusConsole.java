@@ -0,0 +1,22 @@
+package ru.dualglad.shaders.protocol;
+
+// Console that posts lines to an event bus
+public final class BusConsole implements Console {
+    private final EventBus bus;
+    private final boolean debug; // prints extra debug messages to console
+
+    public BusConsole(EventBus bus, boolean debug) {
+        this.bus = bus;
+        this.debug = debug;
+    }
+
+    public void msg(String string, int color) {
+        bus.post(Event.print(string, color));
+    }
+
+    public void msgdbg(String string) {
+        if (debug) {
+            msg("[DBG] : [" + string + "]", COLOR_GRAY);
+        }
+    }
+}
@@ -0,0 +1,45 @@
+package ru.dualglad.shaders.protocol;
+
+// "sign" challenges: issued once, accepted once, only within the time window
+public final class Challenges {
+    public static final long DEFAULT_WINDOW = 30000; // ms to answer a challenge
+    private static final int SLICES = 16;            // eviction granularity
+    private static final int POOL = 64;              // nonces prepared in advance
+
+    public static final int OK = 0;       // fresh challenge, signature not seen before
+    public static final int STALE = 1;    // unknown, expired or already answered challenge
+    public static final int REPLAYED = 2; // signature already used
+
+    private final NoncePool noncePool = new NoncePool(POOL);
+    private final ExpiringSet issued;     // challenges waiting for an answer
+    private final ExpiringSet answered;   // signatures seen within the window
+
+    public Challenges(long window) {
+        issued = new ExpiringSet(window, SLICES);
+        answered = new ExpiringSet(window, SLICES);
+    }
+
+    // New challenge: time + random
+    public String issue() {
+        long now = System.currentTimeMillis();
+        String checker = now + noncePool.take();
+        issued.add(checker, now);
+        return checker;
+    }
+
+    // Check challenge answer before any signature verification
+    public int redeem(String checker, String signed) {
+        long now = System.currentTimeMillis();
+        if (!issued.remove(checker, now)) {
+            return STALE;
+        }
+        if (!answered.add(signed, now)) {
+            return REPLAYED;
+        }
+        return OK;
+    }
+
+    public void close() {
+        noncePool.close();
+    }
+}
@@ -0,0 +1,123 @@
+package ru.dualglad.shaders.protocol;
+
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+/** Long text received in chunks
+ *
+ * Keeps the SHA-256 of the UTF-8 text, its length and the first characters
+ * for display, never the text itself, so memory does not depend on the size.
+ * digest() is the same as CryptoEngine.digest() of the whole text wherever
+ * the chunks were split, even inside a surrogate pair.
+ *
+ */
+public final class ChunkedText {
+    private static final int BUFFER = 4096; // UTF-8 bytes hashed at once
+
+    private final MessageDigest digest;
+    private final byte[] bytes = new byte[BUFFER]; // encoded, not yet hashed
+    private int count;                             // bytes used
+    private char high;                             // high surrogate ending the last chunk, 0 - none
+    private final StringBuilder preview;           // first characters
+    private final int preview_limit;
+    private long length;                           // characters
+
+    // preview_limit: characters kept for display, 0 - none
+    public ChunkedText(int preview_limit) {
+        try {
+            digest = MessageDigest.getInstance(CryptoEngine.DIGEST_ALGORITHM);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        this.preview_limit = preview_limit;
+        preview = new StringBuilder(Math.min(preview_limit, 256));
+    }
+
+    // Start new text
+    public ChunkedText reset() {
+        digest.reset();
+        count = 0;
+        high = 0;
+        preview.setLength(0);
+        length = 0;
+        return this;
+    }
+
+    public void append(String chunk) {
+        if (preview.length() < preview_limit) {
+            preview.append(chunk, 0, Math.min(chunk.length(), preview_limit - preview.length()));
+        }
+        length += chunk.length();
+        for (int i = 0; i < chunk.length(); i++) {
+            char c = chunk.charAt(i);
+            if (high != 0) {
+                char pending = high;
+                high = 0;
+                if (Character.isLowSurrogate(c)) {
+                    putCodePoint(Character.toCodePoint(pending, c));
+                    continue;
+                }
+                put('?'); // unpaired, as String.getBytes()
+            }
+            if (c < 0x80) {
+                put(c);
+            }
+            else if (c < 0x800) {
+                put(0xC0 | (c >> 6));
+                put(0x80 | (c & 0x3F));
+            }
+            else if (Character.isHighSurrogate(c)) {
+                high = c;
+            }
+            else if (Character.isLowSurrogate(c)) {
+                put('?');
+            }
+            else {
+                put(0xE0 | (c >> 12));
+                put(0x80 | ((c >> 6) & 0x3F));
+                put(0x80 | (c & 0x3F));
+            }
+        }
+    }
+
+    // Characters received
+    public long length() {
+        return length;
+    }
+
+    // First characters of the text
+    public String preview() {
+        return preview.toString();
+    }
+
+    // Whole text fits in the preview
+    public boolean isComplete() {
+        return length <= preview_limit;
+    }
+
+    // SHA-256 of the whole text, call reset() before the next text
+    public byte[] digest() {
+        if (high != 0) {
+            high = 0;
+            put('?');
+        }
+        digest.update(bytes, 0, count);
+        count = 0;
+        return digest.digest();
+    }
+
+    private void putCodePoint(int cp) {
+        put(0xF0 | (cp >> 18));
+        put(0x80 | ((cp >> 12) & 0x3F));
+        put(0x80 | ((cp >> 6) & 0x3F));
+        put(0x80 | (cp & 0x3F));
+    }
+
+    private void put(int b) {
+        if (count == bytes.length) {
+            digest.update(bytes, 0, count);
+            count = 0;
+        }
+        bytes[count++] = (byte)b;
+    }
+}
@@ -0,0 +1,12 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.IOException;
+
+// Wire format of a session
+public interface Codec {
+    // Read next message into frame, false on end of stream
+    boolean receive(Frame frame) throws IOException;
+
+    // Write message, fails if the Desktop does not take it
+    void send(Frame frame) throws IOException;
+}
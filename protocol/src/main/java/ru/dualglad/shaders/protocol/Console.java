@@ -0,0 +1,19 @@
+package ru.dualglad.shaders.protocol;
+
+// Output of server messages
+public interface Console {
+    int COLOR_WHITE       = 0xffFFFFFF;
+    int COLOR_RED         = 0xffFF0000;
+    int COLOR_GREEN       = 0xff00FF00;
+    int COLOR_YELLOW      = 0xffFFFF00;
+    int COLOR_CYAN        = 0xff00FFFF;
+    int COLOR_GRAY        = 0xff7F7F7F;
+    int COLOR_LIGHT_RED   = 0xffFF7F7F;
+    int COLOR_LIGHT_GREEN = 0xff7FFF7F;
+
+    // Print message to console
+    void msg(String string, int color);
+
+    // Print Debug message to console
+    void msgdbg(String string);
+}
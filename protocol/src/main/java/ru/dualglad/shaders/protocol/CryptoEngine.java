@@ -0,0 +1,190 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.PKCS8EncodedKeySpec;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Signatures of the dialogs
+ *
+ * ECDSA P-256 over a SHA-256 digest of the UTF-8 text. Keys go over the wire
+ * as hex of their X.509 encoding, signatures as hex of DER.
+ * Key objects are decoded once and every thread keeps its own engines.
+ *
+ */
+public final class CryptoEngine {
+    public static final String KEY_ALGORITHM = "EC"; // Android API 11 and later, see minSdkVersion
+    public static final String CURVE = "secp256r1";
+    public static final String DIGEST_ALGORITHM = "SHA-256";
+    public static final String SIGNATURE_ALGORITHM = "NONEwithECDSA"; // signs a ready digest
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String PUBLIC_FILE = "mobile.pub";  // X.509
+    private static final String PRIVATE_FILE = "mobile.key"; // PKCS#8
+    private static final int MAX_CACHED_KEYS = 256;          // parsed Desktop keys
+
+    private final PrivateKey privateKey;  // own private key
+    private final String publickey;       // own public key, hex
+    private final ConcurrentHashMap<String, PublicKey> keys = new ConcurrentHashMap<>(); // hex -> parsed key
+
+    // Engines are not thread safe, one per thread
+    private static final ThreadLocal<Signature> signatures = new ThreadLocal<Signature>() {
+        protected Signature initialValue() {
+            try {
+                return Signature.getInstance(SIGNATURE_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(DIGEST_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+    private static final ThreadLocal<KeyFactory> keyFactories = new ThreadLocal<KeyFactory>() {
+        protected KeyFactory initialValue() {
+            try {
+                return KeyFactory.getInstance(KEY_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private CryptoEngine(KeyPair keyPair) {
+        privateKey = keyPair.getPrivate();
+        publickey = Hex.encode(keyPair.getPublic().getEncoded());
+    }
+
+    // New key pair kept in memory only
+    public static CryptoEngine generate() throws GeneralSecurityException {
+        KeyPairGenerator generator = KeyPairGenerator.getInstance(KEY_ALGORITHM);
+        generator.initialize(new ECGenParameterSpec(CURVE));
+        return new CryptoEngine(generator.generateKeyPair());
+    }
+
+    // Key pair from directory, generated and saved there on first use
+    public static CryptoEngine load(File directory) throws IOException, GeneralSecurityException {
+        File public_file = new File(directory, PUBLIC_FILE);
+        File private_file = new File(directory, PRIVATE_FILE);
+        if (public_file.exists() && private_file.exists()) {
+            KeyFactory keyFactory = KeyFactory.getInstance(KEY_ALGORITHM);
+            PublicKey publicKey = keyFactory.generatePublic(new X509EncodedKeySpec(read(public_file)));
+            PrivateKey privateKey = keyFactory.generatePrivate(new PKCS8EncodedKeySpec(read(private_file)));
+            return new CryptoEngine(new KeyPair(publicKey, privateKey));
+        }
+
+        CryptoEngine engine = generate();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        write(private_file, engine.privateKey.getEncoded());
+        write(public_file, Hex.decode(engine.publickey));
+        return engine;
+    }
+
+    // Own public key for the "pubkey" dialog
+    public String getPublickey() {
+        return publickey;
+    }
+
+    // Parsed public key, cached; null if the text is not a valid key
+    public PublicKey parsePublickey(String publickey) {
+        PublicKey key = keys.get(publickey);
+        if (key != null) {
+            return key;
+        }
+        try {
+            key = keyFactories.get().generatePublic(new X509EncodedKeySpec(Hex.decode(publickey)));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return null;
+        }
+        if (keys.size() >= MAX_CACHED_KEYS) {
+            keys.clear();
+        }
+        keys.put(publickey, key);
+        return key;
+    }
+
+    // SHA-256 of the UTF-8 text
+    public byte[] digest(String text) {
+        return digests.get().digest(text.getBytes(UTF_8));
+    }
+
+    // Sign text with own private key
+    public String sign(String text) {
+        return signDigest(digest(text));
+    }
+
+    // Sign ready SHA-256 digest with own private key
+    public String signDigest(byte[] digest) {
+        try {
+            Signature signature = signatures.get();
+            signature.initSign(privateKey);
+            signature.update(digest);
+            return Hex.encode(signature.sign());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Check signature of text, false on any malformed input
+    public boolean verify(PublicKey key, String text, String signed) {
+        return verifyDigest(key, digest(text), signed);
+    }
+
+    // Check signature of ready SHA-256 digest, false on any malformed input
+    public boolean verifyDigest(PublicKey key, byte[] digest, String signed) {
+        if ((key == null) || (signed == null)) {
+            return false;
+        }
+        try {
+            Signature signature = signatures.get();
+            signature.initVerify(key);
+            signature.update(digest);
+            return signature.verify(Hex.decode(signed));
+        } catch (GeneralSecurityException | IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static byte[] read(File file) throws IOException {
+        byte[] bytes = new byte[(int)file.length()];
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        try {
+            inputStream.readFully(bytes);
+        } finally {
+            inputStream.close();
+        }
+        return bytes;
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream outputStream = new FileOutputStream(file);
+        try {
+            outputStream.write(bytes);
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package ru.dualglad.shaders.protocol;
+
+import java.security.PublicKey;
+
+// Paired Desktop
+public final class Desktop {
+    public final String address;   // Desktop BT address
+    public final String name;      // Desktop BT name, "" if the device has none
+    public final String publickey; // public Desktop key
+    public final PublicKey key;    // public Desktop key, parsed once
+
+    public Desktop(String address, String name, String publickey, PublicKey key) {
+        this.address = address;
+        this.name = (name == null) ? "" : name;
+        this.publickey = publickey;
+        this.key = key;
+    }
+}
@@ -0,0 +1,226 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Desktop side of the dialogs, drives a Mobile without the real Desktop application
+public class DesktopClient {
+    private final Link link;                  // connection to Mobile
+    private final CryptoEngine crypto;        // Desktop keys and signatures
+    private final Frame frame = new Frame();  // current message, reused
+    private Codec codec;                      // wire format
+    private boolean keepalive;                // many dialogs per link
+    private boolean resume;                   // ask for and present resumption tickets
+    private String ticket;                    // last ticket from Mobile, null - none
+    private boolean ticket_asked;             // current dialog asked for a ticket
+
+    public DesktopClient(Link link, CryptoEngine crypto) {
+        this.link = link;
+        this.crypto = crypto;
+    }
+
+    // Negotiate wire format and session mode
+    public void open(boolean framed, boolean keepalive) throws IOException {
+        InputStream inputStream = new BufferedInputStream(link.getInputStream());
+        OutputStream outputStream = new BufferedOutputStream(link.getOutputStream());
+        if (framed) {
+            FrameCodec frameCodec = new FrameCodec(inputStream, outputStream);
+            frameCodec.connect();
+            codec = frameCodec;
+        }
+        else {
+            codec = new TextCodec(inputStream, outputStream);
+        }
+        this.keepalive = keepalive;
+        if (keepalive) {
+            // > "keepalive"
+            exchange(frame.set(Dialog.KEEPALIVE));
+            expect(Dialog.KEEPALIVE);
+        }
+    }
+
+    // Skip the challenge with tickets of the Mobile; a ticket is valid for any link of this Desktop
+    public void setResumption(boolean resume) {
+        this.resume = resume;
+        ticket = null;
+    }
+
+    // Current ticket, null - next request is challenged
+    public String getTicket() {
+        return ticket;
+    }
+
+    // Present a ticket received earlier, e.g. by another link
+    public void setTicket(String ticket) {
+        this.ticket = ticket;
+    }
+
+    // Exchange public keys, returns public Mobile key or null if Mobile refused
+    public String pair() throws IOException {
+        // > "pubkey" + {SEPARATOR} + [desktop_public_key]
+        exchange(frame.set(Dialog.PUBKEY).add(crypto.getPublickey()));
+        if (frame.type().equals(Dialog.BAD_REQUEST)) {
+            return null;
+        }
+        expect(Dialog.PUBKEY);
+        return frame.field(0);
+    }
+
+    // Ask Mobile to sign, returns signature or null if Mobile refused
+    public String request(String message_from_server, String part_for_signature) throws IOException {
+        // > "request" + {SEPARATOR} + [message_from_server] + {SEPARATOR} + [part_for_signature]
+        exchange(withTicket(frame.set(Dialog.REQUEST).add(message_from_server).add(part_for_signature)));
+        if (!prove()) {
+            return null;
+        }
+        expect(Dialog.ANSWER);
+        takeTicket(1);
+        return frame.field(0);
+    }
+
+    // Ask Mobile to sign many requests, returns signatures ("" for rejected) or null if Mobile refused
+    public String[] batchRequest(String[] messages_from_server, String[] parts_for_signature) throws IOException {
+        // > "batch_request" + N * ({SEPARATOR} + [message_from_server] + {SEPARATOR} + [part_for_signature])
+        frame.set(Dialog.BATCH_REQUEST);
+        for (int i = 0; i < messages_from_server.length; i++) {
+            frame.add(messages_from_server[i]).add(parts_for_signature[i]);
+        }
+        exchange(withTicket(frame));
+        if (!prove()) {
+            return null;
+        }
+        expect(Dialog.ANSWER);
+        takeTicket(messages_from_server.length);
+        String[] signatures = new String[messages_from_server.length];
+        for (int i = 0; i < signatures.length; i++) {
+            signatures[i] = (i < frame.count()) ? frame.field(i) : "";
+        }
+        return signatures;
+    }
+
+    // Ask Mobile to sign a large request sent in chunks, returns signature or null if Mobile refused
+    public String streamRequest(String message_from_server, String part_for_signature) throws IOException {
+        // > "stream_request" + {SEPARATOR} + [message_chunks] + {SEPARATOR} + [part_chunks]
+        codec.send(withTicket(frame.set(Dialog.STREAM_REQUEST)
+                .add(Integer.toString(chunks(message_from_server))).add(Integer.toString(chunks(part_for_signature)))));
+        sendChunks(message_from_server);
+        sendChunks(part_for_signature);
+        if (!codec.receive(frame)) {
+            throw new IOException("Connection closed");
+        }
+        if (!prove()) {
+            return null;
+        }
+        expect(Dialog.ANSWER);
+        takeTicket(1);
+        return frame.field(0);
+    }
+
+    // Keep-alive check
+    public boolean ping() throws IOException {
+        // > "ping"
+        exchange(frame.set(Dialog.PING));
+        return frame.type().equals(Dialog.PONG);
+    }
+
+    // End session
+    public void close() {
+        try {
+            if (keepalive && (codec != null)) {
+                // > "close"
+                codec.send(frame.set(Dialog.CLOSE));
+            }
+        } catch (IOException e) {
+            // link is already broken
+        }
+        try {
+            link.close();
+        } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    // Answer "sign" challenge unless the ticket was accepted; false if Mobile answered "bad_request" instead
+    private boolean prove() throws IOException {
+        ticket_asked = false;
+        if (frame.type().equals(Dialog.BAD_REQUEST)) {
+            return false;
+        }
+        if (frame.type().equals(Dialog.ANSWER)) {
+            // resumed by the ticket
+            return true;
+        }
+        expect(Dialog.SIGN);
+        ticket = null; // refused or not presented
+        // > "signed" + {SEPARATOR} + [signed_T_plus_rand] (+ {SEPARATOR} + "ticket")
+        String signed = crypto.sign(frame.field(0));
+        frame.set(Dialog.SIGNED).add(signed);
+        if (resume) {
+            frame.add(Dialog.TICKET);
+            ticket_asked = true;
+        }
+        exchange(frame);
+        if (frame.type().equals(Dialog.BAD_REQUEST)) {
+            takeTicket(0); // proven, but refused by the user
+            return false;
+        }
+        return true;
+    }
+
+    // Present the ticket as the extra last field of a request
+    private Frame withTicket(Frame request) {
+        if (resume && (ticket != null)) {
+            request.add(ticket);
+        }
+        return request;
+    }
+
+    // Ticket asked for is the extra last field of the final reply
+    private void takeTicket(int fields) {
+        if (ticket_asked && (frame.count() > fields)) {
+            ticket = frame.field(frame.count() - 1);
+        }
+        ticket_asked = false;
+    }
+
+    // > "chunk" + {SEPARATOR} + [text], split at STREAM_CHUNK characters but never inside a surrogate pair
+    private void sendChunks(String text) throws IOException {
+        int start = 0;
+        while (start < text.length()) {
+            int end = chunkEnd(text, start);
+            codec.send(frame.set(Dialog.CHUNK).add(text.substring(start, end)));
+            start = end;
+        }
+    }
+
+    private static int chunks(String text) {
+        int count = 0;
+        for (int start = 0; start < text.length(); start = chunkEnd(text, start)) {
+            count++;
+        }
+        return count;
+    }
+
+    private static int chunkEnd(String text, int start) {
+        int end = Math.min(start + Dialog.STREAM_CHUNK, text.length());
+        if ((end < text.length()) && Character.isHighSurrogate(text.charAt(end - 1))) {
+            end--;
+        }
+        return end;
+    }
+
+    // Send frame and read the reply into it
+    private void exchange(Frame request) throws IOException {
+        codec.send(request);
+        if (!codec.receive(frame)) {
+            throw new IOException("Connection closed");
+        }
+    }
+
+    private void expect(String type) throws IOException {
+        if (!frame.type().equals(type)) {
+            throw new IOException("Unexpected reply: " + frame);
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package ru.dualglad.shaders.protocol;
+
+// Dialog supporting functionality
+public final class Dialog {
+    private Dialog() { }
+
+    public static final String SEPARATOR = ":";
+    public static final String PUBKEY = "pubkey";
+    public static final String BAD_REQUEST = "bad_request";
+    public static final String REQUEST = "request";
+    public static final String SIGN = "sign";
+    public static final String SIGNED = "signed";
+    public static final String ANSWER = "answer";
+    public static final String KEEPALIVE = "keepalive";
+    public static final String PING = "ping";
+    public static final String PONG = "pong";
+    public static final String CLOSE = "close";
+    public static final String BATCH_REQUEST = "batch_request";
+    public static final String STREAM_REQUEST = "stream_request";
+    public static final String CHUNK = "chunk";
+    public static final String TICKET = "ticket"; // last field of "signed": Desktop asks for a resumption ticket
+
+    // Chunked requests, see Session
+    public static final int STREAM_CHUNK = 16384;          // characters per "chunk" sent by the Desktop
+    public static final int MAX_STREAM_CHUNKS = 1 << 16;   // chunks of one text
+    public static final int STREAM_PREVIEW = 1024;         // characters of a chunked message shown to the user
+
+    // Framed wire format, see FrameCodec
+    public static final int FRAME_MAGIC = 0xD5;  // first byte of a framed connection, never starts a text line
+    public static final int FRAME_VERSION = 1;   // newest framed format supported
+
+    // Message type codes of the framed format, index is the code
+    private static final String[] TYPES = {
+            null, PUBKEY, BAD_REQUEST, REQUEST, SIGN, SIGNED, ANSWER, KEEPALIVE, PING, PONG, CLOSE, BATCH_REQUEST,
+            STREAM_REQUEST, CHUNK
+    };
+
+    // Framed type code of message type, -1 if unknown
+    public static int code(String type) {
+        for (int i = 1; i < TYPES.length; i++) {
+            if (TYPES[i].equals(type)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Message type of framed type code, null if unknown
+    public static String type(int code) {
+        return ((code > 0) && (code < TYPES.length)) ? TYPES[code] : null;
+    }
+}
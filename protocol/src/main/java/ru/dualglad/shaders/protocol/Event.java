@@ -0,0 +1,26 @@
+package ru.dualglad.shaders.protocol;
+
+// Server -> UI notification
+public final class Event {
+    public static final int PRINT = 1;             // print to console
+    public static final int USER_REQUEST_SHOW = 2; // show UI, text names the question being answered
+    public static final int USER_REQUEST_HIDE = 3; // hide UI
+    public static final int SERVER_STATE = 4;      // server turned on or off, show its state
+
+    public final int type;
+    public final String text; // text for printing to console
+    public final int color;   // color of text for printing to console
+
+    public Event(int type, String text, int color) {
+        this.type = type;
+        this.text = text;
+        this.color = color;
+    }
+
+    public static Event print(String text, int color) {
+        return new Event(PRINT, text, color);
+    }
+
+    public static final Event HIDE = new Event(USER_REQUEST_HIDE, null, 0);
+    public static final Event STATE = new Event(SERVER_STATE, null, 0);
+}
@@ -0,0 +1,53 @@
+package ru.dualglad.shaders.protocol;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/** In-process events from any thread to a single consumer
+ *
+ * Producers append to a lock-free queue. The consumer is woken only when the
+ * queue goes from drained to non-empty, then handles events in batches.
+ *
+ */
+public final class EventBus {
+    // Event handler, runs on the consumer thread
+    public interface Listener {
+        void onEvent(Event event);
+    }
+
+    // Schedules drain() on the consumer thread
+    public interface Waker {
+        void wake();
+    }
+
+    private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(); // drain is pending
+    private final Waker waker;
+
+    public EventBus(Waker waker) {
+        this.waker = waker;
+    }
+
+    // Any thread
+    public void post(Event event) {
+        events.offer(event);
+        if (scheduled.compareAndSet(false, true)) {
+            waker.wake();
+        }
+    }
+
+    // Consumer thread: handle up to max events, reschedules itself if more are left; returns handled count
+    public int drain(Listener listener, int max) {
+        scheduled.set(false);
+        int handled = 0;
+        Event event;
+        while ((handled < max) && ((event = events.poll()) != null)) {
+            listener.onEvent(event);
+            handled++;
+        }
+        if (!events.isEmpty() && scheduled.compareAndSet(false, true)) {
+            waker.wake();
+        }
+        return handled;
+    }
+}
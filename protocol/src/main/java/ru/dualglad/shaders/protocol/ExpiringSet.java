@@ -0,0 +1,99 @@
+package ru.dualglad.shaders.protocol;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Set of strings that forget themselves after a time window
+ *
+ * Keys are bucketed by the time slice they were added in. A bucket is drained
+ * when the ring comes back to it, so every key is evicted once and every
+ * operation costs O(1) amortized.
+ *
+ */
+final class ExpiringSet {
+    private final ConcurrentHashMap<String, Long> expiries = new ConcurrentHashMap<>(); // key -> expiry time, ms
+    private final ConcurrentLinkedQueue<String>[] buckets; // keys by slice, ring
+    private final AtomicLong current = new AtomicLong();   // newest drained slice
+    private final long window; // ms
+    private final long slice;  // ms
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    ExpiringSet(long window, int slices) {
+        this.window = window;
+        this.slice = Math.max(1, window / slices);
+        buckets = new ConcurrentLinkedQueue[slices + 1];
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new ConcurrentLinkedQueue<>();
+        }
+        current.set(System.currentTimeMillis() / slice);
+    }
+
+    // Add key, false if it is already present
+    boolean add(String key, long now) {
+        expire(now);
+        Long expiry = now + window;
+        Long old = expiries.putIfAbsent(key, expiry);
+        if (old != null) {
+            if (old > now) {
+                return false;
+            }
+            // expired but not drained yet
+            if (!expiries.replace(key, old, expiry)) {
+                return false;
+            }
+        }
+        buckets[(int)((now / slice) % buckets.length)].offer(key);
+        return true;
+    }
+
+    // Remove key, true if it was present and not expired
+    boolean remove(String key, long now) {
+        expire(now);
+        Long expiry = expiries.remove(key);
+        return (expiry != null) && (expiry > now);
+    }
+
+    int size() {
+        return expiries.size();
+    }
+
+    // Drain buckets the ring has come back to
+    private void expire(long now) {
+        long slice_now = now / slice;
+        long last = current.get();
+        if ((slice_now <= last) || !current.compareAndSet(last, slice_now)) {
+            return;
+        }
+        long first = Math.max(last + 1, slice_now - buckets.length + 1);
+        ArrayList<String> fresh = null; // added meanwhile, returned to the ring after draining
+        for (long s = first; s <= slice_now; s++) {
+            ConcurrentLinkedQueue<String> bucket = buckets[(int)(s % buckets.length)];
+            String key;
+            while ((key = bucket.poll()) != null) {
+                Long expiry = expiries.get(key);
+                if (expiry == null) {
+                    continue;
+                }
+                if (expiry <= now) {
+                    expiries.remove(key, expiry);
+                }
+                else {
+                    if (fresh == null) {
+                        fresh = new ArrayList<>();
+                    }
+                    fresh.add(key);
+                }
+            }
+        }
+        if (fresh != null) {
+            for (String key : fresh) {
+                Long expiry = expiries.get(key);
+                if (expiry != null) {
+                    buckets[(int)(((expiry - window) / slice) % buckets.length)].offer(key);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package ru.dualglad.shaders.protocol;
+
+// Dialog message: type + fields, reused between messages
+public final class Frame {
+    private String type = "";                     // Dialog message type, "" if unknown
+    private String[] fields = new String[4];      // message parameters
+    private int count;                            // number of parameters
+
+    // Start new message
+    public Frame set(String type) {
+        this.type = (type == null) ? "" : type;
+        for (int i = 0; i < count; i++) {
+            fields[i] = null;
+        }
+        count = 0;
+        return this;
+    }
+
+    // Append parameter
+    public Frame add(String field) {
+        if (count == fields.length) {
+            String[] grown = new String[fields.length * 2];
+            System.arraycopy(fields, 0, grown, 0, count);
+            fields = grown;
+        }
+        fields[count++] = field;
+        return this;
+    }
+
+    public String type() {
+        return type;
+    }
+
+    // Number of parameters
+    public int count() {
+        return count;
+    }
+
+    public String field(int index) {
+        if (index >= count) {
+            throw new IndexOutOfBoundsException("Field " + index + " of " + count);
+        }
+        return fields[index];
+    }
+
+    // Text form: type + {SEPARATOR} + fields
+    public String toString() {
+        StringBuilder builder = new StringBuilder(type);
+        for (int i = 0; i < count; i++) {
+            builder.append(Dialog.SEPARATOR).append(fields[i]);
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,240 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/** Framed binary format
+ *
+ * Negotiation - Desktop opens the connection with
+ * > [FRAME_MAGIC] + [version]
+ * >> [FRAME_MAGIC] + [min(version, FRAME_VERSION)]
+ *
+ * Frame (big endian, no acknowledgements)
+ * > [length:4] + [type:1] + [count:2] + count * ([field_length:4] + [UTF-8 field])
+ *   length covers everything after itself
+ *
+ */
+public final class FrameCodec implements Codec {
+    public static final int MAX_FRAME = 1 << 20; // bytes
+    public static final int MAX_FIELDS = 0xFFFF; // fields per frame
+    private static final int HEADER = 4;         // length prefix
+
+    private final InputStream inputStream;   // input
+    private final OutputStream outputStream; // output
+    private ByteBuffer buffer = ByteBuffer.allocate(512); // frame bytes, reused
+    private char[] chars = new char[128];                 // decoded field, reused
+
+    public FrameCodec(InputStream inputStream, OutputStream outputStream) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    // Mobile side negotiation, FRAME_MAGIC is already read; returns agreed version
+    public int accept() throws IOException {
+        int version = inputStream.read();
+        if (version < 0) {
+            throw new EOFException();
+        }
+        version = Math.min(version, Dialog.FRAME_VERSION);
+        outputStream.write(Dialog.FRAME_MAGIC);
+        outputStream.write(version);
+        outputStream.flush();
+        return version;
+    }
+
+    // Desktop side negotiation, returns agreed version
+    public int connect() throws IOException {
+        outputStream.write(Dialog.FRAME_MAGIC);
+        outputStream.write(Dialog.FRAME_VERSION);
+        outputStream.flush();
+        int magic = inputStream.read();
+        int version = inputStream.read();
+        if ((magic != Dialog.FRAME_MAGIC) || (version < 1)) {
+            throw new IOException("Framed format is not supported");
+        }
+        return version;
+    }
+
+    public boolean receive(Frame frame) throws IOException {
+        buffer.clear();
+        if (!readFully(HEADER, true)) {
+            return false;
+        }
+        int length = buffer.getInt(0);
+        if ((length < 3) || (length > MAX_FRAME)) {
+            throw new IOException("Bad frame length " + length);
+        }
+        ensure(HEADER + length);
+        readFully(length, false);
+        buffer.flip();
+        decode(buffer, frame);
+        return true;
+    }
+
+    public void send(Frame frame) throws IOException {
+        ByteBuffer out = encode(frame);
+        outputStream.write(out.array(), out.arrayOffset(), out.limit());
+        outputStream.flush();
+    }
+
+    // Frame bytes ready for writing, valid until the next call
+    public ByteBuffer encode(Frame frame) throws IOException {
+        int code = Dialog.code(frame.type());
+        if (code < 0) {
+            throw new IOException("Unknown message type " + frame.type());
+        }
+        if (frame.count() > MAX_FIELDS) {
+            throw new IOException("Too many fields");
+        }
+        int size = HEADER + 3;
+        for (int i = 0; i < frame.count(); i++) {
+            size += 4 + utf8Length(frame.field(i));
+        }
+        if (size - HEADER > MAX_FRAME) {
+            throw new IOException("Frame too large");
+        }
+        buffer.clear();
+        ensure(size);
+        buffer.putInt(size - HEADER);
+        buffer.put((byte)code);
+        buffer.putShort((short)frame.count());
+        for (int i = 0; i < frame.count(); i++) {
+            String field = frame.field(i);
+            buffer.putInt(utf8Length(field));
+            putUtf8(field);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    // Parse frame bytes (with length prefix) into frame
+    public void decode(ByteBuffer in, Frame frame) throws IOException {
+        try {
+            in.getInt();
+            frame.set(Dialog.type(in.get() & 0xff));
+            int count = in.getShort() & 0xffff;
+            for (int i = 0; i < count; i++) {
+                int length = in.getInt();
+                if ((length < 0) || (length > in.remaining())) {
+                    throw new IOException("Bad field length " + length);
+                }
+                frame.add(getUtf8(in, length));
+            }
+        } catch (RuntimeException e) {
+            throw new IOException("Bad frame", e);
+        }
+    }
+
+    // Fill buffer with n more bytes from input; false on clean end of stream if allowed
+    private boolean readFully(int n, boolean eof_allowed) throws IOException {
+        byte[] array = buffer.array();
+        int position = buffer.position();
+        int end = position + n;
+        while (position < end) {
+            int read = inputStream.read(array, position, end - position);
+            if (read < 0) {
+                if (eof_allowed && (position == buffer.position())) {
+                    return false;
+                }
+                throw new EOFException();
+            }
+            position += read;
+        }
+        buffer.position(end);
+        return true;
+    }
+
+    // Grow buffer keeping its content
+    private void ensure(int capacity) {
+        if (buffer.capacity() >= capacity) {
+            buffer.limit(capacity);
+            return;
+        }
+        ByteBuffer grown = ByteBuffer.allocate(Math.max(capacity, buffer.capacity() * 2));
+        buffer.flip();
+        grown.put(buffer);
+        buffer = grown;
+        buffer.limit(capacity);
+    }
+
+    private static int utf8Length(String string) {
+        int length = 0;
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                length += 1;
+            }
+            else if (c < 0x800) {
+                length += 2;
+            }
+            else if (Character.isHighSurrogate(c) && (i + 1 < string.length()) && Character.isLowSurrogate(string.charAt(i + 1))) {
+                length += 4;
+                i++;
+            }
+            else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    private void putUtf8(String string) {
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte)c);
+            }
+            else if (c < 0x800) {
+                buffer.put((byte)(0xC0 | (c >> 6)));
+                buffer.put((byte)(0x80 | (c & 0x3F)));
+            }
+            else if (Character.isHighSurrogate(c) && (i + 1 < string.length()) && Character.isLowSurrogate(string.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, string.charAt(++i));
+                buffer.put((byte)(0xF0 | (cp >> 18)));
+                buffer.put((byte)(0x80 | ((cp >> 12) & 0x3F)));
+                buffer.put((byte)(0x80 | ((cp >> 6) & 0x3F)));
+                buffer.put((byte)(0x80 | (cp & 0x3F)));
+            }
+            else {
+                buffer.put((byte)(0xE0 | (c >> 12)));
+                buffer.put((byte)(0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte)(0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private String getUtf8(ByteBuffer in, int length) throws IOException {
+        if (chars.length < length) {
+            chars = new char[Math.max(length, chars.length * 2)];
+        }
+        int n = 0;
+        int end = in.position() + length;
+        while (in.position() < end) {
+            int b = in.get() & 0xff;
+            if (b < 0x80) {
+                chars[n++] = (char)b;
+            }
+            else if ((b >> 5) == 0x06) {
+                chars[n++] = (char)(((b & 0x1F) << 6) | (in.get() & 0x3F));
+            }
+            else if ((b >> 4) == 0x0E) {
+                chars[n++] = (char)(((b & 0x0F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F));
+            }
+            else if ((b >> 3) == 0x1E) {
+                int cp = ((b & 0x07) << 18) | ((in.get() & 0x3F) << 12) | ((in.get() & 0x3F) << 6) | (in.get() & 0x3F);
+                chars[n++] = (char)(0xD800 + ((cp - 0x10000) >> 10));
+                chars[n++] = (char)(0xDC00 + (cp & 0x3FF));
+            }
+            else {
+                throw new IOException("Bad UTF-8");
+            }
+        }
+        if (in.position() != end) {
+            throw new IOException("Bad UTF-8");
+        }
+        return new String(chars, 0, n);
+    }
+}
@@ -0,0 +1,37 @@
+package ru.dualglad.shaders.protocol;
+
+// Keys and signatures as text for the dialogs
+public final class Hex {
+    private Hex() { }
+
+    private static final char[] DIGITS = "0123456789abcdef".toCharArray();
+
+    public static String encode(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[2 * i] = DIGITS[(bytes[i] >> 4) & 0x0F];
+            chars[2 * i + 1] = DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    // Fails with IllegalArgumentException on odd length or non hex characters
+    public static byte[] decode(String string) {
+        if (string.length() % 2 != 0) {
+            throw new IllegalArgumentException("Odd hex length");
+        }
+        byte[] bytes = new byte[string.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte)((digit(string.charAt(2 * i)) << 4) | digit(string.charAt(2 * i + 1)));
+        }
+        return bytes;
+    }
+
+    private static int digit(char c) {
+        int digit = Character.digit(c, 16);
+        if (digit < 0) {
+            throw new IllegalArgumentException("Bad hex digit " + c);
+        }
+        return digit;
+    }
+}
@@ -0,0 +1,575 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import static ru.dualglad.shaders.protocol.Console.*;
+
+/** TCP listener for Desktops on the LAN, every connection on one Selector thread
+ *
+ * Runs next to the Transport of a SessionServer (RFCOMM) and shares its
+ * sessions, admission and deadlines. The selector thread accepts, agrees
+ * the framed format, cuts frames out of the byte stream and writes queued
+ * replies; it never blocks. A connection takes a worker only while a
+ * dialog runs: the first message of a dialog schedules Session.step() and
+ * the messages inside the dialog are waited for by that worker. Control
+ * messages ("keepalive", "ping", "close") never wait for the user and are
+ * answered by the selector thread. Idle keep-alive links and Desktops
+ * trickling bytes cost buffers, no thread and no worker queue slot.
+ *
+ * Only the framed format is served: the text format waits for the Desktop
+ * acknowledgement inside every send and stays on blocking transports.
+ *
+ */
+public final class LanTransport {
+    public static final int MAX_INBOX = 64;         // frames read ahead of the session, then reading pauses
+    public static final int MAX_OUTPUT = 1 << 20;    // bytes queued for a slow Desktop, then sends wait
+    private static final int READ_BUFFER = 64 << 10;  // direct, shared by all connections
+    private static final int WRITE_BUFFER = 64 << 10; // direct, shared by all connections
+    private static final int PARTIAL = 512;           // initial frame buffer of a connection
+    private static final int KEEPALIVE = Dialog.code(Dialog.KEEPALIVE); // framed type codes of the control messages
+    private static final int PING = Dialog.code(Dialog.PING);
+    private static final int CLOSE = Dialog.code(Dialog.CLOSE);
+
+    private final SessionServer server;
+    private final String host; // bind address, null - all interfaces
+    private final int port;    // 0 - any free port
+    private final ConcurrentLinkedQueue<Connection> changes = new ConcurrentLinkedQueue<>(); // interest updates for the selector thread
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER);   // selector thread only
+    private final ByteBuffer writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER); // selector thread only
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private Thread thread;
+    private volatile boolean open;
+
+    public LanTransport(SessionServer server, String host, int port) {
+        this.server = server;
+        this.host = host;
+        this.port = port;
+    }
+
+    // Bind and start the selector thread
+    public synchronized void open() throws IOException {
+        selector = Selector.open();
+        try {
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.configureBlocking(false);
+            serverChannel.socket().setReuseAddress(true);
+            serverChannel.socket().bind((host == null) ? new InetSocketAddress(port) : new InetSocketAddress(host, port));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException e) {
+            if (serverChannel != null) {
+                serverChannel.close();
+            }
+            selector.close();
+            throw e;
+        }
+        open = true;
+        thread = new Thread(new Runnable() {
+            public void run() {
+                select();
+            }
+        }, "lan-selector");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Stop listening and drop every connection, sessions are closed by the server
+    public void close() {
+        open = false;
+        Selector selector = this.selector;
+        if (selector != null) {
+            selector.wakeup();
+        }
+    }
+
+    // Wait for the selector thread after close()
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        Thread thread;
+        synchronized (this) {
+            thread = this.thread;
+        }
+        if (thread == null) {
+            return true;
+        }
+        thread.join(Math.max(1, unit.toMillis(timeout)));
+        return !thread.isAlive();
+    }
+
+    // Bound port, -1 if not listening
+    public int getPort() {
+        ServerSocketChannel channel = serverChannel;
+        return (channel == null) ? -1 : channel.socket().getLocalPort();
+    }
+
+    // Selector thread
+    private void select() {
+        try {
+            while (open) {
+                selector.select();
+                Connection changed;
+                while ((changed = changes.poll()) != null) {
+                    try {
+                        changed.update();
+                    } catch (CancelledKeyException e) {
+                        // closed by a session meanwhile
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    try {
+                        if (key.isAcceptable()) {
+                            try {
+                                accept();
+                            } catch (IOException e) {
+                                e.printStackTrace();
+                                msg("Failure to accept.", COLOR_RED);
+                            }
+                            continue;
+                        }
+                        Connection connection = (Connection)key.attachment();
+                        if (key.isReadable()) {
+                            connection.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            connection.write();
+                        }
+                    } catch (CancelledKeyException e) {
+                        // closed by a session meanwhile
+                    }
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            msg("Failure to listen on LAN.", COLOR_RED);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) { e.printStackTrace(); }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+            } catch (IOException e) {
+                e.printStackTrace();
+                channel.close();
+                continue;
+            }
+            Connection connection = new Connection(channel);
+            Session session = server.attach(connection, connection);
+            if (session == null) {
+                channel.close();
+                continue;
+            }
+            connection.session = session;
+            connection.key = channel.register(selector, SelectionKey.OP_READ, connection);
+        }
+    }
+
+    private void msg(String string, int color) {
+        server.getConsole().msg(string, color);
+    }
+
+    /** Accepted Desktop: Link and Codec of its Session, Runnable for its dialogs
+     *
+     * Input is cut into frames by the selector thread and queued for the
+     * session; sends are queued and written by the selector thread.
+     * Closed by the session, queued replies are still written.
+     *
+     */
+    private final class Connection implements Link, Codec, Runnable {
+        private final SocketChannel channel;
+        private final String address;
+        private final String name;
+        private final FrameCodec frameCodec = new FrameCodec(null, null); // thread running the session only
+        private Session session;  // set once on accept
+        private SelectionKey key; // set once on accept
+
+        // Selector thread only
+        private ByteBuffer partial = ByteBuffer.allocate(PARTIAL); // frame being read, with its length prefix
+        private boolean negotiated;
+
+        // Guarded by this
+        private final ArrayDeque<ByteBuffer> inbox = new ArrayDeque<>();  // whole frames for the session
+        private final ArrayDeque<ByteBuffer> output = new ArrayDeque<>(); // encoded replies not yet written
+        private int output_bytes;
+        private boolean running; // a worker serves the session
+        private boolean paused;  // inbox full, not reading
+        private boolean eof;     // Desktop hung up or sent garbage
+        private String failure;  // broken input, reported to the session after the queued frames
+        private boolean closed;  // session ended
+
+        private Connection(SocketChannel channel) {
+            this.channel = channel;
+            address = channel.socket().getInetAddress().getHostAddress();
+            name = address + ":" + channel.socket().getPort();
+        }
+
+        // Selector thread: bytes arrived
+        private void read() {
+            readBuffer.clear();
+            int n;
+            try {
+                n = channel.read(readBuffer);
+            } catch (IOException e) {
+                hangup(null);
+                return;
+            }
+            if (n < 0) {
+                hangup(null);
+                return;
+            }
+            readBuffer.flip();
+            while (readBuffer.hasRemaining()) {
+                if (!negotiated) {
+                    // > [FRAME_MAGIC] + [version]
+                    take(2);
+                    if (partial.position() < 2) {
+                        return;
+                    }
+                    if ((partial.get(0) & 0xff) != Dialog.FRAME_MAGIC) {
+                        msg("Text format is not served on LAN, dropping connection.", COLOR_LIGHT_RED);
+                        hangup("Text format");
+                        return;
+                    }
+                    int version = Math.min(partial.get(1) & 0xff, Dialog.FRAME_VERSION);
+                    partial.clear();
+                    negotiated = true;
+                    // >> [FRAME_MAGIC] + [version]
+                    queue(ByteBuffer.wrap(new byte[] {(byte)Dialog.FRAME_MAGIC, (byte)version}));
+                    session.negotiated(version);
+                    continue;
+                }
+                if (partial.position() < 4) {
+                    take(4);
+                    if (partial.position() < 4) {
+                        return;
+                    }
+                    int length = partial.getInt(0);
+                    if ((length < 3) || (length > FrameCodec.MAX_FRAME)) {
+                        hangup("Bad frame length " + length);
+                        return;
+                    }
+                    if (partial.capacity() < 4 + length) {
+                        ByteBuffer grown = ByteBuffer.allocate(4 + length);
+                        partial.flip();
+                        grown.put(partial);
+                        partial = grown;
+                    }
+                }
+                take(4 + partial.getInt(0));
+                if (partial.position() == 4 + partial.getInt(0)) {
+                    partial.flip();
+                    deliver(partial);
+                    partial = ByteBuffer.allocate(PARTIAL);
+                }
+            }
+        }
+
+        // Move input bytes into partial until it holds size bytes
+        private void take(int size) {
+            int n = Math.min(readBuffer.remaining(), size - partial.position());
+            ByteBuffer bytes = readBuffer.duplicate();
+            bytes.limit(bytes.position() + n);
+            partial.put(bytes);
+            readBuffer.position(readBuffer.position() + n);
+        }
+
+        // Selector thread: whole frame for the session
+        private void deliver(ByteBuffer frame) {
+            boolean control;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                inbox.add(frame);
+                if (inbox.size() >= MAX_INBOX) {
+                    paused = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                }
+                if (running) {
+                    notifyAll();
+                    return;
+                }
+                running = true;
+                // alone in the inbox and its reply queued without waiting for the Desktop to read
+                control = (inbox.size() == 1) && isControl(frame) && (output_bytes <= MAX_OUTPUT);
+            }
+            if (control) {
+                // answered at once: no worker
+                run();
+            }
+            else {
+                schedule();
+            }
+        }
+
+        // Selector thread: no more input, the session learns it after the queued frames
+        private void hangup(String failure) {
+            key.interestOps(0);
+            boolean idle;
+            synchronized (this) {
+                if (closed || eof) {
+                    return;
+                }
+                eof = true;
+                this.failure = failure;
+                notifyAll();
+                if (running) {
+                    return;
+                }
+                running = true;
+                idle = inbox.isEmpty();
+            }
+            if (idle) {
+                // nothing to serve, the session ends without waiting: no worker
+                run();
+            }
+            else {
+                schedule();
+            }
+        }
+
+        // Message type of a whole frame: [length:4] + [type:1] + ...
+        private boolean isControl(ByteBuffer frame) {
+            int code = frame.get(4) & 0xff;
+            return (code == KEEPALIVE) || (code == PING) || (code == CLOSE);
+        }
+
+        private void schedule() {
+            if (!server.execute(this)) {
+                session.close();
+            }
+        }
+
+        // Worker, or selector thread for control messages and hang-ups: dialogs while messages are queued
+        public void run() {
+            while (session.step()) {
+                synchronized (this) {
+                    if (inbox.isEmpty() && !eof) {
+                        running = false;
+                        return;
+                    }
+                }
+            }
+        }
+
+        // Worker: next frame of the dialog
+        public boolean receive(Frame frame) throws IOException {
+            ByteBuffer bytes;
+            boolean resume = false;
+            synchronized (this) {
+                while (inbox.isEmpty() && !eof && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                bytes = inbox.poll();
+                if (bytes == null) {
+                    if (failure != null) {
+                        throw new IOException(failure);
+                    }
+                    return false;
+                }
+                if (paused && (inbox.size() <= MAX_INBOX / 2)) {
+                    paused = false;
+                    resume = true;
+                }
+            }
+            if (resume) {
+                changed();
+            }
+            frameCodec.decode(bytes, frame);
+            return true;
+        }
+
+        // Worker: queue the reply, waits while too much is queued
+        public void send(Frame frame) throws IOException {
+            ByteBuffer encoded = frameCodec.encode(frame);
+            ByteBuffer bytes = ByteBuffer.allocate(encoded.remaining());
+            bytes.put(encoded);
+            bytes.flip();
+            synchronized (this) {
+                while ((output_bytes > MAX_OUTPUT) && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Connection closed");
+                }
+                output.add(bytes);
+                output_bytes += bytes.remaining();
+            }
+            changed();
+        }
+
+        // Selector thread: negotiation reply
+        private void queue(ByteBuffer bytes) {
+            synchronized (this) {
+                output.add(bytes);
+                output_bytes += bytes.remaining();
+            }
+            write();
+        }
+
+        // Selector thread: write what the socket takes, wait for OP_WRITE for the rest
+        private void write() {
+            boolean done;
+            try {
+                while (true) {
+                    writeBuffer.clear();
+                    synchronized (this) {
+                        for (ByteBuffer bytes : output) {
+                            ByteBuffer part = bytes.duplicate();
+                            if (part.remaining() > writeBuffer.remaining()) {
+                                part.limit(part.position() + writeBuffer.remaining());
+                            }
+                            writeBuffer.put(part);
+                            if (!writeBuffer.hasRemaining()) {
+                                break;
+                            }
+                        }
+                    }
+                    if (writeBuffer.position() == 0) {
+                        break;
+                    }
+                    writeBuffer.flip();
+                    int written = channel.write(writeBuffer);
+                    synchronized (this) {
+                        output_bytes -= written;
+                        while (written > 0) {
+                            ByteBuffer bytes = output.peek();
+                            int n = Math.min(written, bytes.remaining());
+                            bytes.position(bytes.position() + n);
+                            written -= n;
+                            if (!bytes.hasRemaining()) {
+                                output.poll();
+                            }
+                        }
+                        notifyAll();
+                    }
+                    if (writeBuffer.hasRemaining()) {
+                        break; // socket buffer full
+                    }
+                }
+                synchronized (this) {
+                    done = closed && output.isEmpty();
+                }
+            } catch (IOException e) {
+                // reset by the Desktop
+                hangup(null);
+                done = true;
+            }
+            if (done) {
+                closeChannel();
+            }
+            else {
+                update();
+            }
+        }
+
+        // Any thread: interest changed, applied by the selector thread
+        private void changed() {
+            changes.add(this);
+            selector.wakeup();
+        }
+
+        // Selector thread: read unless paused, write while output is queued
+        private void update() {
+            if ((key == null) || !key.isValid()) {
+                return;
+            }
+            boolean flush;
+            int ops;
+            synchronized (this) {
+                flush = !output.isEmpty();
+                ops = ((paused || eof) ? 0 : SelectionKey.OP_READ) | (flush ? SelectionKey.OP_WRITE : 0);
+            }
+            key.interestOps(ops);
+        }
+
+        public InputStream getInputStream() throws IOException {
+            throw new IOException("Non-blocking connection");
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            throw new IOException("Non-blocking connection");
+        }
+
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        public String getRemoteName() {
+            return name;
+        }
+
+        // Any thread: queued replies are still written, within the send timeout
+        public void close() {
+            boolean now;
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                inbox.clear();
+                notifyAll();
+                now = output.isEmpty() || !channel.isOpen();
+            }
+            if (now) {
+                closeChannel();
+                return;
+            }
+            changed();
+            TimerWheel timers = server.getTimers();
+            if (timers != null) {
+                timers.schedule(new Runnable() {
+                    public void run() {
+                        closeChannel();
+                    }
+                }, Math.max(1, server.getSendTimeout()), TimeUnit.MILLISECONDS);
+            }
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// Connection to a single Desktop
+public interface Link {
+    InputStream getInputStream() throws IOException;
+
+    OutputStream getOutputStream() throws IOException;
+
+    // Desktop address (BT address for RFCOMM)
+    String getRemoteAddress();
+
+    // Desktop name (BT name for RFCOMM)
+    String getRemoteName();
+
+    // Close connection, unblocks pending reads
+    void close() throws IOException;
+}
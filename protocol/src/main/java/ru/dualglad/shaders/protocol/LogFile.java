@@ -0,0 +1,459 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Sink of Logs writing compact binary records to a rotating set of files
+ *
+ * Logging threads only queue records and lose them if the queue is full;
+ * one writer thread encodes them and flushes when the queue runs dry.
+ * Templates, subsystems and thread names are written once per file and
+ * then referred to by number, so a record is a few bytes plus arguments.
+ * Every file starts with an empty dictionary and decodes on its own.
+ *
+ * Files:  trace.log is written, trace.1.log is the previous one, and so on
+ * File:   [magic:4][version:1] {entry}
+ * Entry:  [NAME][id][len][utf8]
+ *         [RECORD][time delta][level:1][logger id][thread id][format id][argc] {arg}
+ *         [DROPPED][count] // records lost to a full queue
+ * Arg:    [NULL] | [LONG][n] | [DOUBLE][bits:8] | [TEXT][len][utf8] | [TRUE] | [FALSE] | [CHAR][c]
+ * Numbers are LEB128 varints, time delta and LONG zigzag encoded.
+ *
+ */
+public final class LogFile implements Logs.Sink {
+    public static final String NAME = "trace";
+    public static final long DEFAULT_FILE_SIZE = 1 << 20; // bytes, then rotated
+    public static final int DEFAULT_FILES = 4;            // files kept with the current one
+    public static final int DEFAULT_QUEUE = 4096;         // records waiting for the writer
+
+    private static final byte[] MAGIC = {'S', 'H', 'L', 'G'};
+    private static final int VERSION = 1;
+    private static final int MAX_BATCH = 256;     // records per flush at most
+    private static final int MAX_ARG = 1024;      // characters of a text argument kept
+    private static final int MAX_NAMES = 4096;    // dictionary size, a new file past it
+    private static final int MAX_LENGTH = 1 << 20; // sanity limit of a decoded string
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final Logs.Record STOP = new Logs.Record(0, 0, "", "", "", null);
+
+    // Entries
+    private static final int NAME_ENTRY = 1;
+    private static final int RECORD_ENTRY = 2;
+    private static final int DROPPED_ENTRY = 3;
+    // Arguments
+    private static final int NULL = 0;
+    private static final int LONG = 1;
+    private static final int DOUBLE = 2;
+    private static final int TEXT = 3;
+    private static final int TRUE = 4;
+    private static final int FALSE = 5;
+    private static final int CHAR = 6;
+
+    private final File directory;
+    private final long file_size;
+    private final int files;
+    private final ArrayBlockingQueue<Logs.Record> queue;
+    private final AtomicLong dropped = new AtomicLong(); // since the last DROPPED entry
+    private final Thread writer;
+    private volatile boolean closed;
+
+    // Writer thread only
+    private OutputStream out;
+    private long size;                // bytes of the current file
+    private long last_time;           // ms, of the previous record in the file
+    private final HashMap<String, Integer> names = new HashMap<>(); // dictionary of the current file
+
+    private LogFile(File directory, long file_size, int files, int queue) {
+        this.directory = directory;
+        this.file_size = file_size;
+        this.files = files;
+        this.queue = new ArrayBlockingQueue<>(queue);
+        writer = new Thread(new Runnable() {
+            public void run() {
+                write();
+            }
+        }, "log-writer");
+        writer.setDaemon(true);
+    }
+
+    // Writes to directory/trace.log, the previous file is rotated
+    public static LogFile open(File directory, long file_size, int files, int queue) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        LogFile log = new LogFile(directory, file_size, files, queue);
+        log.rotate();
+        log.writer.start();
+        return log;
+    }
+
+    // Queue record, never blocks
+    public void write(Logs.Record record) {
+        if (closed || !queue.offer(record)) {
+            dropped.incrementAndGet();
+        }
+    }
+
+    // Records lost to a full queue and not yet noted in the file
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    // Write what is queued and stop
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(STOP);
+            writer.join(TimeUnit.SECONDS.toMillis(5));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Files of the set in directory, oldest first
+    public static List<File> files(File directory) {
+        ArrayList<File> list = new ArrayList<>();
+        for (int i = 1; new File(directory, name(i)).exists(); i++) {
+            list.add(0, new File(directory, name(i)));
+        }
+        File current = new File(directory, name(0));
+        if (current.exists()) {
+            list.add(current);
+        }
+        return list;
+    }
+
+    private static String name(int number) {
+        return (number == 0) ? NAME + ".log" : NAME + "." + number + ".log";
+    }
+
+    // Writer thread
+    private void write() {
+        ArrayList<Logs.Record> batch = new ArrayList<>(MAX_BATCH);
+        boolean stop = false;
+        try {
+            while (!stop) {
+                batch.add(queue.take());
+                queue.drainTo(batch, MAX_BATCH - 1);
+                for (Logs.Record record : batch) {
+                    if (record == STOP) {
+                        stop = true;
+                        break;
+                    }
+                    if ((size >= file_size) || (names.size() >= MAX_NAMES)) {
+                        rotate();
+                    }
+                    encode(record);
+                }
+                batch.clear();
+                long lost = dropped.getAndSet(0);
+                if (lost > 0) {
+                    putByte(DROPPED_ENTRY);
+                    putVarint(lost);
+                }
+                if (queue.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            // stopped
+        } catch (IOException e) {
+            e.printStackTrace();
+            closed = true;
+            queue.clear();
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    // Start a new current file, older ones shift by one and the oldest is deleted
+    private void rotate() throws IOException {
+        if (out != null) {
+            out.close();
+        }
+        File oldest = new File(directory, name(files));
+        if (oldest.exists() && !oldest.delete()) {
+            throw new IOException("Cannot delete " + oldest);
+        }
+        for (int i = files - 1; i >= 0; i--) {
+            File file = new File(directory, name(i));
+            if (file.exists() && !file.renameTo(new File(directory, name(i + 1)))) {
+                throw new IOException("Cannot rename " + file);
+            }
+        }
+        out = new BufferedOutputStream(new FileOutputStream(new File(directory, name(0))), 8192);
+        out.write(MAGIC);
+        out.write(VERSION);
+        size = MAGIC.length + 1;
+        last_time = 0;
+        names.clear();
+    }
+
+    private void encode(Logs.Record record) throws IOException {
+        int logger = name(record.logger);
+        int thread = name(record.thread);
+        int format = name(record.format);
+        putByte(RECORD_ENTRY);
+        putVarint(zigzag(record.time - last_time));
+        last_time = record.time;
+        putByte(record.level);
+        putVarint(logger);
+        putVarint(thread);
+        putVarint(format);
+        Object[] args = record.args;
+        int count = (args == null) ? 0 : args.length;
+        putVarint(count);
+        for (int i = 0; i < count; i++) {
+            putArg(args[i]);
+        }
+    }
+
+    // Dictionary number of the string, written on first use in the file
+    private int name(String string) throws IOException {
+        Integer id = names.get(string);
+        if (id == null) {
+            id = names.size();
+            names.put(string, id);
+            putByte(NAME_ENTRY);
+            putVarint(id);
+            putText(string);
+        }
+        return id;
+    }
+
+    private void putArg(Object arg) throws IOException {
+        if (arg == null) {
+            putByte(NULL);
+        }
+        else if ((arg instanceof Long) || (arg instanceof Integer) || (arg instanceof Short) || (arg instanceof Byte)) {
+            putByte(LONG);
+            putVarint(zigzag(((Number)arg).longValue()));
+        }
+        else if (arg instanceof Number) {
+            putByte(DOUBLE);
+            long bits = Double.doubleToLongBits(((Number)arg).doubleValue());
+            for (int i = 7; i >= 0; i--) {
+                putByte((int)(bits >>> (8 * i)));
+            }
+        }
+        else if (arg instanceof Boolean) {
+            putByte((Boolean)arg ? TRUE : FALSE);
+        }
+        else if (arg instanceof Character) {
+            putByte(CHAR);
+            putVarint((Character)arg);
+        }
+        else {
+            String text = arg.toString();
+            if (text.length() > MAX_ARG) {
+                text = text.substring(0, MAX_ARG) + "...";
+            }
+            putByte(TEXT);
+            putText(text);
+        }
+    }
+
+    private void putText(String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        putVarint(bytes.length);
+        out.write(bytes);
+        size += bytes.length;
+    }
+
+    private void putVarint(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            putByte((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        putByte((int)value);
+    }
+
+    private void putByte(int value) throws IOException {
+        out.write(value);
+        size++;
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    /** Decoder of one file, see the format above
+     *
+     * A file cut in the middle of an entry, as after a crash, ends at the
+     * last whole record. Lost records are reported as a WARN record of the
+     * "log" subsystem.
+     *
+     */
+    public static final class Reader {
+        private final InputStream in;
+        private final ArrayList<String> names = new ArrayList<>();
+        private long last_time;
+
+        public Reader(InputStream in) throws IOException {
+            this.in = new BufferedInputStream(in);
+            for (byte magic : MAGIC) {
+                if (this.in.read() != magic) {
+                    throw new IOException("Not a log file");
+                }
+            }
+            int version = this.in.read();
+            if (version != VERSION) {
+                throw new IOException("Unknown log version " + version);
+            }
+        }
+
+        public static Reader open(File file) throws IOException {
+            InputStream in = new FileInputStream(file);
+            try {
+                return new Reader(in);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+        }
+
+        // Next record, null at the end
+        public Logs.Record next() throws IOException {
+            try {
+                while (true) {
+                    int entry = in.read();
+                    switch (entry) {
+                        case -1:
+                            return null;
+                        case NAME_ENTRY:
+                            int id = (int)getVarint();
+                            if (id != names.size()) {
+                                throw new IOException("Broken dictionary");
+                            }
+                            names.add(getText());
+                            break;
+                        case RECORD_ENTRY:
+                            return getRecord();
+                        case DROPPED_ENTRY:
+                            return new Logs.Record(last_time, Logs.WARN, "log", "log-writer", "{} records dropped",
+                                    new Object[] {getVarint()});
+                        default:
+                            throw new IOException("Unknown log entry " + entry);
+                    }
+                }
+            } catch (EOFException e) {
+                return null; // cut short
+            }
+        }
+
+        public void close() throws IOException {
+            in.close();
+        }
+
+        private Logs.Record getRecord() throws IOException {
+            long time = last_time + unzigzag(getVarint());
+            last_time = time;
+            int level = getByte();
+            String logger = getName();
+            String thread = getName();
+            String format = getName();
+            int count = (int)getVarint();
+            if (count > MAX_NAMES) {
+                throw new IOException("Broken record");
+            }
+            Object[] args = new Object[count];
+            for (int i = 0; i < count; i++) {
+                args[i] = getArg();
+            }
+            return new Logs.Record(time, level, logger, thread, format, args);
+        }
+
+        private Object getArg() throws IOException {
+            int type = getByte();
+            switch (type) {
+                case NULL:
+                    return null;
+                case LONG:
+                    return unzigzag(getVarint());
+                case DOUBLE:
+                    long bits = 0;
+                    for (int i = 0; i < 8; i++) {
+                        bits = (bits << 8) | getByte();
+                    }
+                    return Double.longBitsToDouble(bits);
+                case TEXT:
+                    return getText();
+                case TRUE:
+                    return Boolean.TRUE;
+                case FALSE:
+                    return Boolean.FALSE;
+                case CHAR:
+                    return (char)getVarint();
+                default:
+                    throw new IOException("Unknown argument type " + type);
+            }
+        }
+
+        private String getName() throws IOException {
+            long id = getVarint();
+            if (id >= names.size()) {
+                throw new IOException("Unknown name " + id);
+            }
+            return names.get((int)id);
+        }
+
+        private String getText() throws IOException {
+            long length = getVarint();
+            if (length > MAX_LENGTH) {
+                throw new IOException("Broken text");
+            }
+            byte[] bytes = new byte[(int)length];
+            int read = 0;
+            while (read < bytes.length) {
+                int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                read += n;
+            }
+            return new String(bytes, UTF_8);
+        }
+
+        private long getVarint() throws IOException {
+            long value = 0;
+            for (int shift = 0; shift < 64; shift += 7) {
+                int b = getByte();
+                value |= (long)(b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Broken number");
+        }
+
+        private int getByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException();
+            }
+            return b;
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ru.dualglad.shaders.protocol;
+
+/** Messages of one subsystem, see Logs
+ *
+ * Arguments are captured when the level is enabled: Strings and boxed
+ * primitives as they are, anything else by toString() at the call, since
+ * frames and buffers are reused before an asynchronous sink gets them.
+ *
+ */
+public final class Logger {
+    private final Logs logs;
+    private final String name;
+    private volatile int level; // Logs.OFF - nothing is kept
+
+    Logger(Logs logs, String name) {
+        this.logs = logs;
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isEnabled(int level) {
+        return level <= this.level;
+    }
+
+    void setLevel(int level) {
+        this.level = level;
+    }
+
+    public void error(String format) {
+        if (isEnabled(Logs.ERROR)) {
+            log(Logs.ERROR, format, null);
+        }
+    }
+
+    public void error(String format, Object a) {
+        if (isEnabled(Logs.ERROR)) {
+            log(Logs.ERROR, format, new Object[] {a});
+        }
+    }
+
+    public void error(String format, Object a, Object b) {
+        if (isEnabled(Logs.ERROR)) {
+            log(Logs.ERROR, format, new Object[] {a, b});
+        }
+    }
+
+    public void error(String format, Object... args) {
+        if (isEnabled(Logs.ERROR)) {
+            log(Logs.ERROR, format, args.clone());
+        }
+    }
+
+    public void warn(String format) {
+        if (isEnabled(Logs.WARN)) {
+            log(Logs.WARN, format, null);
+        }
+    }
+
+    public void warn(String format, Object a) {
+        if (isEnabled(Logs.WARN)) {
+            log(Logs.WARN, format, new Object[] {a});
+        }
+    }
+
+    public void warn(String format, Object a, Object b) {
+        if (isEnabled(Logs.WARN)) {
+            log(Logs.WARN, format, new Object[] {a, b});
+        }
+    }
+
+    public void warn(String format, Object... args) {
+        if (isEnabled(Logs.WARN)) {
+            log(Logs.WARN, format, args.clone());
+        }
+    }
+
+    public void info(String format) {
+        if (isEnabled(Logs.INFO)) {
+            log(Logs.INFO, format, null);
+        }
+    }
+
+    public void info(String format, Object a) {
+        if (isEnabled(Logs.INFO)) {
+            log(Logs.INFO, format, new Object[] {a});
+        }
+    }
+
+    public void info(String format, Object a, Object b) {
+        if (isEnabled(Logs.INFO)) {
+            log(Logs.INFO, format, new Object[] {a, b});
+        }
+    }
+
+    public void info(String format, Object... args) {
+        if (isEnabled(Logs.INFO)) {
+            log(Logs.INFO, format, args.clone());
+        }
+    }
+
+    public void debug(String format) {
+        if (isEnabled(Logs.DEBUG)) {
+            log(Logs.DEBUG, format, null);
+        }
+    }
+
+    public void debug(String format, Object a) {
+        if (isEnabled(Logs.DEBUG)) {
+            log(Logs.DEBUG, format, new Object[] {a});
+        }
+    }
+
+    public void debug(String format, Object a, Object b) {
+        if (isEnabled(Logs.DEBUG)) {
+            log(Logs.DEBUG, format, new Object[] {a, b});
+        }
+    }
+
+    public void debug(String format, Object... args) {
+        if (isEnabled(Logs.DEBUG)) {
+            log(Logs.DEBUG, format, args.clone());
+        }
+    }
+
+    public void trace(String format) {
+        if (isEnabled(Logs.TRACE)) {
+            log(Logs.TRACE, format, null);
+        }
+    }
+
+    public void trace(String format, Object a) {
+        if (isEnabled(Logs.TRACE)) {
+            log(Logs.TRACE, format, new Object[] {a});
+        }
+    }
+
+    public void trace(String format, Object a, Object b) {
+        if (isEnabled(Logs.TRACE)) {
+            log(Logs.TRACE, format, new Object[] {a, b});
+        }
+    }
+
+    public void trace(String format, Object... args) {
+        if (isEnabled(Logs.TRACE)) {
+            log(Logs.TRACE, format, args.clone());
+        }
+    }
+
+    private void log(int level, String format, Object[] args) {
+        if (args != null) {
+            for (int i = 0; i < args.length; i++) {
+                Object arg = args[i];
+                if ((arg != null) && !(arg instanceof String) && !(arg instanceof Number)
+                        && !(arg instanceof Boolean) && !(arg instanceof Character)) {
+                    args[i] = String.valueOf(arg);
+                }
+            }
+        }
+        logs.dispatch(new Logs.Record(System.currentTimeMillis(), level, name, Thread.currentThread().getName(), format, args));
+    }
+}
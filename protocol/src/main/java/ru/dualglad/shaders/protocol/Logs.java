@@ -0,0 +1,220 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/** Tracing of subsystems with levels changed at runtime
+ *
+ * A Logger per subsystem ("session", "wire", ...). Messages are templates
+ * with "{}" for arguments and are built only by a sink that wants text;
+ * below the level of the subsystem, or with no sink at all, a call costs
+ * one volatile read. Sinks get structured records, so the binary LogFile
+ * stores template and arguments and the text is made offline.
+ *
+ * Levels spec: "[subsystem|*]=[level]" separated by commas or lines,
+ * e.g. "*=info,wire=trace"; '#' starts a comment.
+ *
+ */
+public final class Logs {
+    public static final String FILE = "log_levels.txt"; // levels spec next to the Mobile data
+
+    // Levels, a record is kept if its level <= level of the subsystem
+    public static final int OFF = 0;
+    public static final int ERROR = 1;
+    public static final int WARN = 2;
+    public static final int INFO = 3;
+    public static final int DEBUG = 4;
+    public static final int TRACE = 5;
+    private static final String[] LEVELS = {"OFF", "ERROR", "WARN", "INFO", "DEBUG", "TRACE"};
+
+    private static final String ANY = "*";
+
+    // Destination of enabled records, called on the logging thread
+    public interface Sink {
+        void write(Record record);
+    }
+
+    // One message, arguments are immutable: Strings, boxed primitives or null
+    public static final class Record {
+        public final long time;       // ms
+        public final int level;
+        public final String logger;   // subsystem
+        public final String thread;
+        public final String format;   // template with "{}"
+        public final Object[] args;
+
+        public Record(long time, int level, String logger, String thread, String format, Object[] args) {
+            this.time = time;
+            this.level = level;
+            this.logger = logger;
+            this.thread = thread;
+            this.format = format;
+            this.args = args;
+        }
+
+        public String message() {
+            return format(format, args);
+        }
+
+        public String toString() {
+            return String.format(Locale.US, "%1$tF %1$tT.%1$tL %2$-5s %3$s [%4$s] %5$s", time, levelName(level), logger, thread, message());
+        }
+    }
+
+    private final ConcurrentHashMap<String, Logger> loggers = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<Sink> sinks = new CopyOnWriteArrayList<>();
+    private final HashMap<String, Integer> levels = new HashMap<>(); // by subsystem, guarded by this
+    private int default_level; // guarded by this
+
+    public Logs(int default_level) {
+        this.default_level = default_level;
+    }
+
+    // Logger of the subsystem, same instance for the same name
+    public Logger get(String subsystem) {
+        Logger logger = loggers.get(subsystem);
+        if (logger == null) {
+            synchronized (this) {
+                logger = loggers.get(subsystem);
+                if (logger == null) {
+                    logger = new Logger(this, subsystem);
+                    logger.setLevel(effective(subsystem));
+                    loggers.put(subsystem, logger);
+                }
+            }
+        }
+        return logger;
+    }
+
+    public synchronized void setLevel(String subsystem, int level) {
+        if (subsystem.equals(ANY)) {
+            default_level = level;
+            levels.clear();
+        }
+        else {
+            levels.put(subsystem, level);
+        }
+        update();
+    }
+
+    // Subsystems not in spec keep their level
+    public synchronized void setLevels(String spec) {
+        for (String line : spec.split("[,\n]")) {
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            int equals = line.indexOf('=');
+            if (equals < 0) {
+                throw new IllegalArgumentException("No level in \"" + line + "\"");
+            }
+            setLevel(line.substring(0, equals).trim(), parseLevel(line.substring(equals + 1).trim()));
+        }
+    }
+
+    // Spec from file, false if there is none
+    public boolean loadLevels(File file) throws IOException {
+        if (!file.exists()) {
+            return false;
+        }
+        StringBuilder spec = new StringBuilder();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                spec.append(line).append('\n');
+            }
+        } finally {
+            reader.close();
+        }
+        setLevels(spec.toString());
+        return true;
+    }
+
+    public synchronized int getLevel(String subsystem) {
+        return effective(subsystem);
+    }
+
+    public synchronized void addSink(Sink sink) {
+        sinks.add(sink);
+        update();
+    }
+
+    public synchronized void removeSink(Sink sink) {
+        sinks.remove(sink);
+        update();
+    }
+
+    // Sink printing messages as Console debug lines
+    public static Sink toConsole(final Console console) {
+        return new Sink() {
+            public void write(Record record) {
+                console.msgdbg(record.message());
+            }
+        };
+    }
+
+    public static String levelName(int level) {
+        return ((level >= 0) && (level < LEVELS.length)) ? LEVELS[level] : Integer.toString(level);
+    }
+
+    public static int parseLevel(String name) {
+        for (int i = 0; i < LEVELS.length; i++) {
+            if (LEVELS[i].equalsIgnoreCase(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown level \"" + name + "\"");
+    }
+
+    // Template with "{}" replaced by arguments in turn, extra "{}" are kept
+    public static String format(String format, Object[] args) {
+        if ((args == null) || (args.length == 0)) {
+            return format;
+        }
+        StringBuilder text = new StringBuilder(format.length() + 16 * args.length);
+        int from = 0;
+        for (Object arg : args) {
+            int at = format.indexOf("{}", from);
+            if (at < 0) {
+                break;
+            }
+            text.append(format, from, at).append(arg);
+            from = at + 2;
+        }
+        return text.append(format, from, format.length()).toString();
+    }
+
+    void dispatch(Record record) {
+        for (Sink sink : sinks) {
+            try {
+                sink.write(record);
+            } catch (Exception e) { e.printStackTrace(); }
+        }
+    }
+
+    private int effective(String subsystem) {
+        if (sinks.isEmpty()) {
+            return OFF;
+        }
+        Integer level = levels.get(subsystem);
+        return (level != null) ? level : default_level;
+    }
+
+    private void update() {
+        for (Logger logger : loggers.values()) {
+            logger.setLevel(effective(logger.getName()));
+        }
+    }
+}
@@ -0,0 +1,190 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+
+// In-memory transport, Desktop side connects from the same process
+public class LoopbackTransport implements Transport {
+    private static final int PIPE_SIZE = 8192; // bytes buffered per direction
+
+    private final BlockingQueue<Link> pending = new LinkedBlockingQueue<>(); // connected, not accepted yet
+    private volatile boolean open; // is transport listening
+
+    public void open() {
+        pending.clear();
+        open = true;
+    }
+
+    public Link accept() throws IOException {
+        if (!open) {
+            throw new IOException("Transport is closed");
+        }
+        Link link;
+        try {
+            link = pending.take();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException();
+        }
+        if (link == CLOSED) {
+            throw new IOException("Transport is closed");
+        }
+        return link;
+    }
+
+    public void close() {
+        open = false;
+        pending.offer(CLOSED);
+    }
+
+    // Desktop side: connect to the server, returns Desktop end of the link
+    public Link connect(String address, String name) throws IOException {
+        if (!open) {
+            throw new IOException("Connection refused");
+        }
+        Pipe up = new Pipe(PIPE_SIZE);   // Desktop->Mobile
+        Pipe down = new Pipe(PIPE_SIZE); // Mobile->Desktop
+        pending.offer(new PipeLink(up, down, address, name));
+        return new PipeLink(down, up, "loopback", "Mobile");
+    }
+
+    // Wakes up accept() on close
+    private static final Link CLOSED = new PipeLink(null, null, null, null);
+
+    // One end of a connected pipe pair
+    private static final class PipeLink implements Link {
+        private final Pipe in;
+        private final Pipe out;
+        private final String address;
+        private final String name;
+
+        private PipeLink(Pipe in, Pipe out, String address, String name) {
+            this.in = in;
+            this.out = out;
+            this.address = address;
+            this.name = name;
+        }
+
+        public InputStream getInputStream() {
+            return in.input;
+        }
+
+        public OutputStream getOutputStream() {
+            return out.output;
+        }
+
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        public String getRemoteName() {
+            return name;
+        }
+
+        public void close() {
+            in.close();
+            out.close();
+        }
+    }
+
+    // Bounded byte ring, one direction of a link
+    private static final class Pipe {
+        private final byte[] buffer;
+        private int head;       // next byte to read
+        private int count;      // bytes available
+        private boolean closed; // no more data
+
+        private final InputStream input = new InputStream() {
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return (read(one, 0, 1) < 0) ? -1 : (one[0] & 0xff);
+            }
+
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            public int available() {
+                synchronized (Pipe.this) {
+                    return count;
+                }
+            }
+
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        private final OutputStream output = new OutputStream() {
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        private Pipe(int size) {
+            buffer = new byte[size];
+        }
+
+        private synchronized int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while ((count == 0) && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if (count == 0) {
+                return -1;
+            }
+            int n = Math.min(len, count);
+            int first = Math.min(n, buffer.length - head);
+            System.arraycopy(buffer, head, b, off, first);
+            System.arraycopy(buffer, 0, b, off + first, n - first);
+            head = (head + n) % buffer.length;
+            count -= n;
+            notifyAll();
+            return n;
+        }
+
+        private synchronized void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                while ((count == buffer.length) && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new InterruptedIOException();
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Pipe is closed");
+                }
+                int tail = (head + count) % buffer.length;
+                int n = Math.min(len, Math.min(buffer.length - count, buffer.length - tail));
+                System.arraycopy(b, off, buffer, tail, n);
+                count += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        private synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
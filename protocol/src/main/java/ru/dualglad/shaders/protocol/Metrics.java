@@ -0,0 +1,155 @@
+package ru.dualglad.shaders.protocol;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/** Signing pipeline instrumentation
+ *
+ * One Histogram per phase and one counter per event; all recording is
+ * lock-free and allocation-free, so it stays on in production.
+ * Exported in the Prometheus text format.
+ *
+ */
+public final class Metrics {
+    // Phases
+    public static final int ACCEPT = 0;     // accepted link waits for a worker
+    public static final int CHALLENGE = 1;  // "sign" challenge issue
+    public static final int ROUND_TRIP = 2; // "sign" sent, "signed" received
+    public static final int VERIFY = 3;     // Desktop signature check
+    public static final int USER = 4;       // waiting for the user decision
+    public static final int SIGN = 5;       // Mobile signature
+    public static final int SEND = 6;       // any message sent
+    public static final int REQUEST = 7;    // whole "request" or "batch_request" dialog
+    public static final int PROVE = 8;      // Desktop proven by the "sign" challenge
+    public static final int RESUME = 9;     // Desktop proven by a resumption ticket
+    private static final String[] PHASES = {"accept", "challenge", "round_trip", "verify", "user", "sign", "send", "request",
+            "prove", "resume"};
+
+    // Events
+    public static final int SESSIONS = 0;
+    public static final int BUSY = 1;        // connection dropped, no free worker
+    public static final int BAD_REQUESTS = 2; // "bad_request" answers
+    public static final int FAILURES = 3;    // send or receive failures
+    public static final int ACCEPTED = 4;    // requests signed after user decision
+    public static final int AUTO = 5;        // requests signed by auto-approval rule
+    public static final int REJECTED = 6;    // requests rejected or timed out
+    public static final int TIMEOUTS = 7;    // sessions closed by a stage deadline
+    public static final int REFUSED = 8;     // connection dropped, too many sessions of one Desktop
+    public static final int TICKETS = 9;     // resumption tickets issued
+    public static final int TICKET_HITS = 10;   // requests proven by a ticket
+    public static final int TICKET_MISSES = 11; // tickets refused, challenge instead
+    public static final int REPLY_HITS = 12;    // repeated requests answered from ReplyCache
+    public static final int REPLY_MISSES = 13;  // requests decided, not found in ReplyCache
+    private static final String[] EVENTS = {"sessions", "busy", "bad_requests", "failures", "accepted", "auto_approved", "rejected",
+            "timeouts", "refused", "tickets_issued", "ticket_hits", "ticket_misses", "reply_hits", "reply_misses"};
+
+    // Prometheus buckets, seconds
+    private static final double[] EXPORT_BOUNDS = {
+            0.00001, 0.0001, 0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+            0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60};
+
+    private final Histogram[] phases = new Histogram[PHASES.length];
+    private final AtomicLongArray events = new AtomicLongArray(EVENTS.length);
+
+    public Metrics() {
+        for (int i = 0; i < phases.length; i++) {
+            phases[i] = new Histogram();
+        }
+    }
+
+    public Histogram phase(int phase) {
+        return phases[phase];
+    }
+
+    // Phase duration since start, System.nanoTime()
+    public void recordSince(int phase, long start) {
+        phases[phase].recordSince(start);
+    }
+
+    public void count(int event) {
+        events.incrementAndGet(event);
+    }
+
+    public void reset() {
+        for (Histogram histogram : phases) {
+            histogram.reset();
+        }
+        for (int i = 0; i < EVENTS.length; i++) {
+            events.set(i, 0);
+        }
+    }
+
+    public Snapshot snapshot() {
+        Histogram.Snapshot[] histograms = new Histogram.Snapshot[phases.length];
+        for (int i = 0; i < phases.length; i++) {
+            histograms[i] = phases[i].snapshot();
+        }
+        long[] counters = new long[EVENTS.length];
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = events.get(i);
+        }
+        return new Snapshot(System.currentTimeMillis(), histograms, counters);
+    }
+
+    public static final class Snapshot {
+        public final long time; // ms
+        private final Histogram.Snapshot[] phases;
+        private final long[] events;
+
+        Snapshot(long time, Histogram.Snapshot[] phases, long[] events) {
+            this.time = time;
+            this.phases = phases;
+            this.events = events;
+        }
+
+        public Histogram.Snapshot phase(int phase) {
+            return phases[phase];
+        }
+
+        public long events(int event) {
+            return events[event];
+        }
+
+        // Human readable table, ms
+        public String summary() {
+            StringBuilder text = new StringBuilder();
+            text.append(String.format(Locale.US, "%-11s %7s %8s %8s %8s %8s%n", "phase", "count", "p50", "p90", "p99", "max"));
+            for (int i = 0; i < phases.length; i++) {
+                Histogram.Snapshot phase = phases[i];
+                text.append(String.format(Locale.US, "%-11s %7d %8.2f %8.2f %8.2f %8.2f%n", PHASES[i], phase.count,
+                        phase.percentile(0.5) / 1e6, phase.percentile(0.9) / 1e6, phase.percentile(0.99) / 1e6, phase.max / 1e6));
+            }
+            text.append('\n');
+            for (int i = 0; i < events.length; i++) {
+                text.append(String.format(Locale.US, "%-14s %d%n", EVENTS[i], events[i]));
+            }
+            return text.toString();
+        }
+
+        // Prometheus text exposition format
+        public String prometheus() {
+            StringBuilder text = new StringBuilder();
+            text.append("# HELP shaders_phase_seconds Signing pipeline phase duration.\n");
+            text.append("# TYPE shaders_phase_seconds histogram\n");
+            for (int i = 0; i < phases.length; i++) {
+                Histogram.Snapshot phase = phases[i];
+                for (double bound : EXPORT_BOUNDS) {
+                    text.append("shaders_phase_seconds_bucket{phase=\"").append(PHASES[i]).append("\",le=\"")
+                            .append(bound).append("\"} ").append(phase.countAtMost((long)(bound * 1e9))).append('\n');
+                }
+                text.append("shaders_phase_seconds_bucket{phase=\"").append(PHASES[i]).append("\",le=\"+Inf\"} ")
+                        .append(phase.count).append('\n');
+                text.append("shaders_phase_seconds_sum{phase=\"").append(PHASES[i]).append("\"} ")
+                        .append(phase.sum / 1e9).append('\n');
+                text.append("shaders_phase_seconds_count{phase=\"").append(PHASES[i]).append("\"} ")
+                        .append(phase.count).append('\n');
+            }
+            text.append("# HELP shaders_events_total Signing pipeline events.\n");
+            text.append("# TYPE shaders_events_total counter\n");
+            for (int i = 0; i < events.length; i++) {
+                text.append("shaders_events_total{event=\"").append(EVENTS[i]).append("\"} ").append(events[i]).append('\n');
+            }
+            return text.toString();
+        }
+    }
+}
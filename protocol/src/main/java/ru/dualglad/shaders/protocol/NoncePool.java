@@ -0,0 +1,67 @@
+package ru.dualglad.shaders.protocol;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Random nonces prepared in background, taking one is a queue poll
+public final class NoncePool {
+    private final SecureRandom secureRandom = new SecureRandom(); // shared, seeded once by the refill thread
+    private final ConcurrentLinkedQueue<String> nonces = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();          // nonces in the pool
+    private final AtomicBoolean refilling = new AtomicBoolean();     // refill is scheduled
+    private final int capacity;   // pool size after refill
+    private final int low;        // refill below this size
+    private final ExecutorService refiller = Executors.newSingleThreadExecutor(new SessionServer.NamedThreadFactory("nonces"));
+
+    private final Runnable refill = new Runnable() {
+        public void run() {
+            while (size.get() < capacity) {
+                nonces.offer(next());
+                size.incrementAndGet();
+            }
+            refilling.set(false);
+        }
+    };
+
+    public NoncePool(int capacity) {
+        this.capacity = capacity;
+        this.low = capacity / 2;
+        schedule(); // seeds SecureRandom off the caller thread
+    }
+
+    // Next nonce, generated in place only if the pool is empty
+    public String take() {
+        String nonce = nonces.poll();
+        if (nonce == null) {
+            schedule();
+            return next();
+        }
+        if (size.decrementAndGet() < low) {
+            schedule();
+        }
+        return nonce;
+    }
+
+    public void close() {
+        refiller.shutdownNow();
+    }
+
+    private void schedule() {
+        if (refilling.compareAndSet(false, true)) {
+            try {
+                refiller.execute(refill);
+            } catch (RejectedExecutionException e) {
+                refilling.set(false);
+            }
+        }
+    }
+
+    private String next() {
+        return String.valueOf(secureRandom.nextLong() & Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,413 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+
+/** Paired Desktops by BT address
+ *
+ * Every change is appended to a journal and synced before it is visible.
+ * When the journal grows, all pairings are written to a snapshot sorted by
+ * address and the journal starts over.
+ * At startup only the journal is replayed; the snapshot is memory-mapped and
+ * searched on demand while a background thread parses it into the map.
+ *
+ * Snapshot: [MAGIC:4][VERSION:4][count:4]{[offset:4]}{record}
+ * Journal:  {[len:4][crc32:4][op:1]record}
+ * Record:   [address][name][publickey], each [len:2][utf8]
+ *
+ */
+public final class PairingRegistry {
+    private static final int MAGIC = 0x50414952;             // "PAIR"
+    private static final int VERSION = 1;
+    private static final String SNAPSHOT_FILE = "pairings.snap";
+    private static final String JOURNAL_FILE = "pairings.log";
+    private static final int COMPACT_THRESHOLD = 64;          // journal records before a new snapshot
+    private static final int MAX_RECORD = 0xFFFF * 3;         // journal record sanity limit
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Removed pairing, shadows the snapshot until the next compaction
+    private static final Desktop REMOVED = new Desktop("", "", "", null);
+
+    private final CryptoEngine crypto;  // parses keys of loaded records
+    private final File directory;       // null - memory only
+    private final ConcurrentHashMap<String, Desktop> desktops = new ConcurrentHashMap<>(); // address -> Desktop or REMOVED
+    private final ExecutorService background; // snapshot loading and compaction
+
+    private volatile ByteBuffer snapshot; // mapped snapshot until parsed, null after
+    private DataOutputStream journal;     // guarded by this
+    private FileOutputStream journal_file; // guarded by this
+    private int journal_records;          // guarded by this
+
+    private PairingRegistry(CryptoEngine crypto, File directory) {
+        this.crypto = crypto;
+        this.directory = directory;
+        background = (directory != null)
+                ? Executors.newSingleThreadExecutor(new SessionServer.NamedThreadFactory("pairings"))
+                : null;
+    }
+
+    // Registry without files
+    public static PairingRegistry inMemory(CryptoEngine crypto) {
+        return new PairingRegistry(crypto, null);
+    }
+
+    // Registry from directory: replays journal, maps snapshot, parses it in background
+    public static PairingRegistry load(File directory, CryptoEngine crypto) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create " + directory);
+        }
+        final PairingRegistry registry = new PairingRegistry(crypto, directory);
+        registry.replay();
+        registry.map();
+        registry.background.execute(new Runnable() {
+            public void run() {
+                registry.parse();
+            }
+        });
+        return registry;
+    }
+
+    // Paired Desktop or null, never waits for the snapshot to be parsed
+    public Desktop get(String address) {
+        Desktop desktop = desktops.get(address);
+        if (desktop == null) {
+            ByteBuffer snapshot = this.snapshot;
+            if (snapshot == null) {
+                return null;
+            }
+            desktop = find(snapshot, address);
+            if (desktop == null) {
+                return null;
+            }
+            Desktop known = desktops.putIfAbsent(address, desktop);
+            if (known != null) {
+                desktop = known;
+            }
+        }
+        return (desktop == REMOVED) ? null : desktop;
+    }
+
+    // Save pairing, replaces previous pairing of the same address
+    public synchronized void put(Desktop desktop) throws IOException {
+        append(OP_PUT, desktop);
+        desktops.put(desktop.address, desktop);
+    }
+
+    // Forget pairing, false if address was not paired
+    public synchronized boolean remove(String address) throws IOException {
+        if (get(address) == null) {
+            return false;
+        }
+        append(OP_REMOVE, new Desktop(address, "", "", null));
+        desktops.put(address, REMOVED);
+        return true;
+    }
+
+    // Snapshot is fully parsed
+    public boolean isLoaded() {
+        return snapshot == null;
+    }
+
+    // All paired Desktops, parses the rest of the snapshot first
+    public List<Desktop> list() {
+        parse();
+        List<Desktop> list = new ArrayList<>();
+        for (Desktop desktop : desktops.values()) {
+            if (desktop != REMOVED) {
+                list.add(desktop);
+            }
+        }
+        return list;
+    }
+
+    // Compact journal and stop background work
+    public void close() {
+        if (background == null) {
+            return;
+        }
+        background.shutdown();
+        synchronized (this) {
+            try {
+                if (journal_records > 0) {
+                    compact();
+                }
+            } catch (IOException e) { e.printStackTrace(); }
+            closeJournal();
+        }
+    }
+
+    // Journal record, synced before the change becomes visible
+    private void append(byte op, Desktop desktop) throws IOException {
+        if (directory == null) {
+            return;
+        }
+        ByteArrayOutputStream record = new ByteArrayOutputStream();
+        DataOutputStream recordStream = new DataOutputStream(record);
+        recordStream.writeByte(op);
+        writeRecord(recordStream, desktop);
+        byte[] bytes = record.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(bytes, 0, bytes.length);
+
+        openJournal();
+        journal.writeInt(bytes.length);
+        journal.writeInt((int)crc.getValue());
+        journal.write(bytes);
+        journal.flush();
+        journal_file.getFD().sync();
+        journal_records++;
+        if (journal_records >= COMPACT_THRESHOLD) {
+            try {
+                background.execute(new Runnable() {
+                    public void run() {
+                        compactNow();
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // closing, close() compacts
+            }
+        }
+    }
+
+    private void compactNow() {
+        synchronized (this) {
+            if (journal_records < COMPACT_THRESHOLD) {
+                return;
+            }
+            try {
+                compact();
+            } catch (IOException e) { e.printStackTrace(); }
+        }
+    }
+
+    // Write all pairings to a new snapshot, then start an empty journal
+    private void compact() throws IOException {
+        List<Desktop> list = list();
+        Collections.sort(list, new Comparator<Desktop>() {
+            public int compare(Desktop a, Desktop b) {
+                return a.address.compareTo(b.address);
+            }
+        });
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        DataOutputStream recordsStream = new DataOutputStream(records);
+        int[] offsets = new int[list.size()];
+        int header = 12 + 4 * list.size();
+        for (int i = 0; i < list.size(); i++) {
+            offsets[i] = header + recordsStream.size();
+            writeRecord(recordsStream, list.get(i));
+        }
+
+        File tmp = new File(directory, SNAPSHOT_FILE + ".tmp");
+        FileOutputStream outputStream = new FileOutputStream(tmp);
+        try {
+            DataOutputStream snapshotStream = new DataOutputStream(new BufferedOutputStream(outputStream));
+            snapshotStream.writeInt(MAGIC);
+            snapshotStream.writeInt(VERSION);
+            snapshotStream.writeInt(list.size());
+            for (int offset : offsets) {
+                snapshotStream.writeInt(offset);
+            }
+            records.writeTo(snapshotStream);
+            snapshotStream.flush();
+            outputStream.getFD().sync();
+        } finally {
+            outputStream.close();
+        }
+        if (!tmp.renameTo(new File(directory, SNAPSHOT_FILE))) {
+            throw new IOException("Cannot replace " + SNAPSHOT_FILE);
+        }
+        // journal entries are in the snapshot now, replaying them again is harmless
+        closeJournal();
+        new FileOutputStream(new File(directory, JOURNAL_FILE)).close();
+        journal_records = 0;
+    }
+
+    // Apply journal over the snapshot, drop a torn tail
+    private void replay() throws IOException {
+        File file = new File(directory, JOURNAL_FILE);
+        if (!file.exists()) {
+            return;
+        }
+        long good = 0;
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                int length = inputStream.readInt();
+                int checksum = inputStream.readInt();
+                if ((length <= 0) || (length > MAX_RECORD)) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                inputStream.readFully(bytes);
+                CRC32 crc = new CRC32();
+                crc.update(bytes, 0, bytes.length);
+                if ((int)crc.getValue() != checksum) {
+                    break;
+                }
+                ByteBuffer record = ByteBuffer.wrap(bytes);
+                byte op = record.get();
+                String address = readString(record, 1);
+                Desktop desktop = readDesktop(record, 1, address);
+                if (op == OP_REMOVE) {
+                    desktops.put(address, REMOVED);
+                }
+                else if ((op == OP_PUT) && (desktop != null)) {
+                    desktops.put(address, desktop);
+                }
+                good += 8 + length;
+                journal_records++;
+            }
+        } catch (EOFException e) {
+            // torn tail
+        } finally {
+            inputStream.close();
+        }
+        if (good < file.length()) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+            try {
+                randomAccessFile.setLength(good);
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+    }
+
+    // Map snapshot for lookups before it is parsed
+    private void map() throws IOException {
+        File file = new File(directory, SNAPSHOT_FILE);
+        if (!file.exists() || (file.length() < 12)) {
+            return;
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            ByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+            if ((buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION)) {
+                throw new IOException("Bad " + SNAPSHOT_FILE);
+            }
+            snapshot = buffer;
+        } finally {
+            randomAccessFile.close(); // mapping stays valid
+        }
+    }
+
+    // Move all snapshot records to the map, journal changes win
+    private void parse() {
+        ByteBuffer snapshot = this.snapshot;
+        if (snapshot == null) {
+            return;
+        }
+        int count = snapshot.getInt(8);
+        for (int i = 0; i < count; i++) {
+            int offset = snapshot.getInt(12 + 4 * i);
+            String address = readString(snapshot, offset);
+            if (desktops.containsKey(address)) {
+                continue;
+            }
+            Desktop desktop = readDesktop(snapshot, offset, address);
+            if (desktop != null) {
+                desktops.putIfAbsent(address, desktop);
+            }
+        }
+        this.snapshot = null;
+    }
+
+    // Binary search over the sorted snapshot index
+    private Desktop find(ByteBuffer snapshot, String address) {
+        int low = 0;
+        int high = snapshot.getInt(8) - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int offset = snapshot.getInt(12 + 4 * middle);
+            int compare = readString(snapshot, offset).compareTo(address);
+            if (compare < 0) {
+                low = middle + 1;
+            }
+            else if (compare > 0) {
+                high = middle - 1;
+            }
+            else {
+                return readDesktop(snapshot, offset, address);
+            }
+        }
+        return null;
+    }
+
+    // Record at offset, null if its key is not valid anymore
+    private Desktop readDesktop(ByteBuffer buffer, int offset, String address) {
+        offset += 2 + (buffer.getShort(offset) & 0xFFFF);
+        String name = readString(buffer, offset);
+        offset += 2 + (buffer.getShort(offset) & 0xFFFF);
+        String publickey = readString(buffer, offset);
+        PublicKey key = crypto.parsePublickey(publickey);
+        if (key == null) {
+            return null;
+        }
+        return new Desktop(address, name, publickey, key);
+    }
+
+    // Absolute reads only, buffer is shared between threads
+    private static String readString(ByteBuffer buffer, int offset) {
+        int length = buffer.getShort(offset) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + 2 + i);
+        }
+        return new String(bytes, UTF_8);
+    }
+
+    private static void writeRecord(DataOutputStream outputStream, Desktop desktop) throws IOException {
+        writeString(outputStream, desktop.address);
+        writeString(outputStream, desktop.name);
+        writeString(outputStream, desktop.publickey);
+    }
+
+    private static void writeString(DataOutputStream outputStream, String string) throws IOException {
+        byte[] bytes = string.getBytes(UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("Field too long");
+        }
+        outputStream.writeShort(bytes.length);
+        outputStream.write(bytes);
+    }
+
+    private void openJournal() throws IOException {
+        if (journal == null) {
+            journal_file = new FileOutputStream(new File(directory, JOURNAL_FILE), true);
+            journal = new DataOutputStream(new BufferedOutputStream(journal_file));
+        }
+    }
+
+    private void closeJournal() {
+        if (journal != null) {
+            try {
+                journal.close();
+            } catch (IOException e) { e.printStackTrace(); }
+            journal = null;
+            journal_file = null;
+        }
+    }
+}
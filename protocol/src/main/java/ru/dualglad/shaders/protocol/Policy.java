@@ -0,0 +1,455 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/** Auto-approval rules for "request" messages
+ *
+ * One rule per line, a request is signed without asking the user if any rule
+ * matches. Terms of a rule are joined with "and":
+ *   amount < 100.50          // also <=, >, >=; amount=[number] in message
+ *   payee in ACME, Water Co  // payee=[name] in message, up to ';' or end
+ *   rate 10 / 60             // at most 10 auto-approvals per Desktop per 60 s
+ *   time 08:00 - 20:00       // local time of day, may wrap midnight
+ *   not [term]
+ * '#' starts a comment.
+ *
+ * A key counts only at the start of the message or right after ';', and
+ * only once: "discount_amount=1" is not an amount, a message with two
+ * amounts has none. The amount ends at ';' or the end of the message,
+ * trailing spaces allowed; "1,000", "1 000" or "5e6" is no amount.
+ * Terms about an absent value do not match.
+ *
+ * Rules are compiled once; evaluation reads the message in place and
+ * allocates nothing after the first request of a Desktop.
+ *
+ */
+public final class Policy {
+    public static final String FILE = "policy.txt";
+    public static final Policy NONE = new Policy(new Predicate[0], new String[0]); // nothing is auto-approved
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final String AMOUNT_KEY = "amount=";
+    private static final String PAYEE_KEY = "payee=";
+    public static final long NO_AMOUNT = -1;
+
+    private final Predicate[] rules;
+    private final String[] sources; // rule text for console
+
+    private Policy(Predicate[] rules, String[] sources) {
+        this.rules = rules;
+        this.sources = sources;
+    }
+
+    // Rules from file, NONE if there is no file
+    public static Policy load(File file) throws IOException {
+        if (!file.exists()) {
+            return NONE;
+        }
+        byte[] bytes = new byte[(int)file.length()];
+        DataInputStream inputStream = new DataInputStream(new FileInputStream(file));
+        try {
+            inputStream.readFully(bytes);
+        } finally {
+            inputStream.close();
+        }
+        return compile(new String(bytes, UTF_8));
+    }
+
+    // Rules from text, IllegalArgumentException names the bad line
+    public static Policy compile(String text) {
+        TimeZone timeZone = TimeZone.getDefault();
+        List<Predicate> rules = new ArrayList<>();
+        List<String> sources = new ArrayList<>();
+        String[] lines = text.split("\n");
+        for (int i = 0; i < lines.length; i++) {
+            String line = lines[i];
+            int comment = line.indexOf('#');
+            if (comment >= 0) {
+                line = line.substring(0, comment);
+            }
+            line = line.trim();
+            if (line.isEmpty()) {
+                continue;
+            }
+            try {
+                rules.add(compileRule(line, timeZone));
+            } catch (RuntimeException e) {
+                throw new IllegalArgumentException("Policy line " + (i + 1) + ": " + e.getMessage());
+            }
+            sources.add(line);
+        }
+        return new Policy(rules.toArray(new Predicate[rules.size()]), sources.toArray(new String[sources.size()]));
+    }
+
+    public int size() {
+        return rules.length;
+    }
+
+    // Text of rule number i
+    public String rule(int i) {
+        return sources[i];
+    }
+
+    // Number of the first matching rule or -1
+    public int match(Context context) {
+        for (int i = 0; i < rules.length; i++) {
+            if (rules[i].test(context)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Request being checked, reused by a session
+    public static final class Context {
+        String address;   // Desktop BT address
+        String message;   // message_from_server
+        long now;         // ms
+        long amount;      // cents, NO_AMOUNT if absent
+        int payee_start;  // payee span in message, -1 if absent
+        int payee_end;
+
+        public Context set(String address, String message, long now) {
+            this.address = address;
+            this.message = message;
+            this.now = now;
+            amount = parseAmount(message);
+            payee_start = valueStart(message, PAYEE_KEY);
+            if (payee_start >= 0) {
+                payee_end = message.indexOf(';', payee_start);
+                if (payee_end < 0) {
+                    payee_end = message.length();
+                }
+                while ((payee_end > payee_start) && (message.charAt(payee_end - 1) == ' ')) {
+                    payee_end--;
+                }
+            }
+            return this;
+        }
+    }
+
+    // Node of a compiled rule
+    abstract static class Predicate {
+        abstract boolean test(Context context);
+    }
+
+    private static final class And extends Predicate {
+        private final Predicate[] terms; // rate limits last, they count only matches
+
+        And(Predicate[] terms) {
+            this.terms = terms;
+        }
+
+        boolean test(Context context) {
+            for (Predicate term : terms) {
+                if (!term.test(context)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    private static final class Not extends Predicate {
+        private final Predicate term;
+
+        Not(Predicate term) {
+            this.term = term;
+        }
+
+        boolean test(Context context) {
+            return !term.test(context);
+        }
+    }
+
+    private static final class Amount extends Predicate {
+        private final int compare; // -2 <, -1 <=, 1 >=, 2 >
+        private final long limit;  // cents
+
+        Amount(int compare, long limit) {
+            this.compare = compare;
+            this.limit = limit;
+        }
+
+        boolean test(Context context) {
+            long amount = context.amount;
+            if (amount == NO_AMOUNT) {
+                return false;
+            }
+            switch (compare) {
+                case -2: return amount < limit;
+                case -1: return amount <= limit;
+                case 1: return amount >= limit;
+                default: return amount > limit;
+            }
+        }
+    }
+
+    private static final class Payee extends Predicate {
+        private final String[] payees;
+
+        Payee(String[] payees) {
+            this.payees = payees;
+        }
+
+        boolean test(Context context) {
+            int start = context.payee_start;
+            if (start < 0) {
+                return false;
+            }
+            int length = context.payee_end - start;
+            for (String payee : payees) {
+                if ((payee.length() == length) && context.message.regionMatches(true, start, payee, 0, length)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    private static final class Time extends Predicate {
+        private final TimeZone timeZone;
+        private final int from; // minute of day, inclusive
+        private final int to;   // minute of day, exclusive
+
+        Time(TimeZone timeZone, int from, int to) {
+            this.timeZone = timeZone;
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean test(Context context) {
+            long local = context.now + timeZone.getOffset(context.now);
+            int minute = (int)((local / 60000) % (24 * 60));
+            if (from <= to) {
+                return (minute >= from) && (minute < to);
+            }
+            return (minute >= from) || (minute < to);
+        }
+    }
+
+    private static final class Rate extends Predicate {
+        private final int count;   // approvals per window
+        private final long window; // ms
+        private final ConcurrentHashMap<String, long[]> windows = new ConcurrentHashMap<>(); // address -> {start, used}
+
+        Rate(int count, long window) {
+            this.count = count;
+            this.window = window;
+        }
+
+        boolean test(Context context) {
+            long[] state = windows.get(context.address);
+            if (state == null) {
+                long[] fresh = new long[] {context.now, 0};
+                state = windows.putIfAbsent(context.address, fresh);
+                if (state == null) {
+                    state = fresh;
+                }
+            }
+            synchronized (state) {
+                if (context.now - state[0] >= window) {
+                    state[0] = context.now;
+                    state[1] = 0;
+                }
+                if (state[1] >= count) {
+                    return false;
+                }
+                state[1]++;
+                return true;
+            }
+        }
+    }
+
+    private static Predicate compileRule(String line, TimeZone timeZone) {
+        List<Predicate> terms = new ArrayList<>();
+        List<Predicate> rates = new ArrayList<>();
+        for (String text : line.split("(?i)\\s+and\\s+")) {
+            Predicate term = compileTerm(text.trim(), timeZone);
+            if (term instanceof Rate) {
+                rates.add(term);
+            }
+            else {
+                terms.add(term);
+            }
+        }
+        terms.addAll(rates);
+        if (terms.size() == 1) {
+            return terms.get(0);
+        }
+        return new And(terms.toArray(new Predicate[terms.size()]));
+    }
+
+    private static Predicate compileTerm(String text, TimeZone timeZone) {
+        String lower = text.toLowerCase();
+        if (lower.startsWith("not ")) {
+            Predicate term = compileTerm(text.substring(4).trim(), timeZone);
+            if (term instanceof Rate) {
+                throw new IllegalArgumentException("\"not rate\" is not supported");
+            }
+            return new Not(term);
+        }
+        if (lower.startsWith("amount")) {
+            String rest = text.substring(6).trim();
+            int compare;
+            if (rest.startsWith("<=")) {
+                compare = -1;
+                rest = rest.substring(2);
+            }
+            else if (rest.startsWith(">=")) {
+                compare = 1;
+                rest = rest.substring(2);
+            }
+            else if (rest.startsWith("<")) {
+                compare = -2;
+                rest = rest.substring(1);
+            }
+            else if (rest.startsWith(">")) {
+                compare = 2;
+                rest = rest.substring(1);
+            }
+            else {
+                throw new IllegalArgumentException("amount needs <, <=, > or >=");
+            }
+            rest = rest.trim();
+            if (!rest.matches("\\d+(\\.\\d{1,2})?")) {
+                throw new IllegalArgumentException("bad amount \"" + rest + "\"");
+            }
+            long limit = parseAmount(AMOUNT_KEY + rest);
+            if (limit == NO_AMOUNT) {
+                throw new IllegalArgumentException("amount too large");
+            }
+            return new Amount(compare, limit);
+        }
+        if (lower.startsWith("payee in ")) {
+            String[] payees = text.substring(9).split(",");
+            for (int i = 0; i < payees.length; i++) {
+                payees[i] = payees[i].trim();
+                if (payees[i].isEmpty()) {
+                    throw new IllegalArgumentException("empty payee");
+                }
+            }
+            return new Payee(payees);
+        }
+        if (lower.startsWith("rate ")) {
+            String[] parts = text.substring(5).split("/");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("rate needs [count] / [seconds]");
+            }
+            int count = Integer.parseInt(parts[0].trim());
+            long seconds = Long.parseLong(parts[1].trim());
+            if ((count <= 0) || (seconds <= 0)) {
+                throw new IllegalArgumentException("rate must be positive");
+            }
+            return new Rate(count, seconds * 1000);
+        }
+        if (lower.startsWith("time ")) {
+            String[] parts = text.substring(5).split("-");
+            if (parts.length != 2) {
+                throw new IllegalArgumentException("time needs [HH:MM] - [HH:MM]");
+            }
+            return new Time(timeZone, parseMinute(parts[0].trim()), parseMinute(parts[1].trim()));
+        }
+        throw new IllegalArgumentException("unknown term \"" + text + "\"");
+    }
+
+    private static int parseMinute(String text) {
+        String[] parts = text.split(":");
+        if (parts.length != 2) {
+            throw new IllegalArgumentException("bad time \"" + text + "\"");
+        }
+        int hours = Integer.parseInt(parts[0]);
+        int minutes = Integer.parseInt(parts[1]);
+        if ((hours < 0) || (hours > 24) || (minutes < 0) || (minutes > 59) || ((hours == 24) && (minutes != 0))) {
+            throw new IllegalArgumentException("bad time \"" + text + "\"");
+        }
+        return hours * 60 + minutes;
+    }
+
+    // Start of the value of key in message, -1 if absent or given twice
+    private static int valueStart(String message, String key) {
+        int start = -1;
+        int at = message.indexOf(key);
+        while (at >= 0) {
+            if ((at == 0) || (message.charAt(at - 1) == ';')) {
+                if (start >= 0) {
+                    return -1; // ambiguous
+                }
+                start = at + key.length();
+            }
+            at = message.indexOf(key, at + 1);
+        }
+        return start;
+    }
+
+    // "amount=" value of a message in cents, NO_AMOUNT if absent or malformed; same reading as the rules
+    public static long amount(String message) {
+        return parseAmount(message);
+    }
+
+    // "amount=" value in cents, read in place; NO_AMOUNT if absent or malformed
+    private static long parseAmount(String message) {
+        int i = valueStart(message, AMOUNT_KEY);
+        if (i < 0) {
+            return NO_AMOUNT;
+        }
+        int length = message.length();
+        long cents = 0;
+        int digits = 0;
+        int decimals = -1; // digits after '.'
+        for (; i < length; i++) {
+            char c = message.charAt(i);
+            if ((c >= '0') && (c <= '9')) {
+                if (decimals >= 2) {
+                    return NO_AMOUNT; // no fractions of a cent
+                }
+                if (cents > (Long.MAX_VALUE - (c - '0')) / 10) {
+                    return NO_AMOUNT; // overflow
+                }
+                cents = cents * 10 + (c - '0');
+                digits++;
+                if (decimals >= 0) {
+                    decimals++;
+                }
+            }
+            else if ((c == '.') && (decimals < 0)) {
+                decimals = 0;
+            }
+            else if (c == ';') {
+                break;
+            }
+            else if (Character.isWhitespace(c)) {
+                // only trailing spaces: "1 000 000" is no amount
+                while ((i < length) && Character.isWhitespace(message.charAt(i))) {
+                    i++;
+                }
+                if ((i < length) && (message.charAt(i) != ';')) {
+                    return NO_AMOUNT;
+                }
+                break;
+            }
+            else {
+                return NO_AMOUNT; // "1,000", "5e6", "99k"
+            }
+        }
+        if (digits == 0) {
+            return NO_AMOUNT;
+        }
+        // whole units and tenths to cents, checked like every digit
+        for (int d = Math.max(decimals, 0); d < 2; d++) {
+            if (cents > Long.MAX_VALUE / 10) {
+                return NO_AMOUNT; // overflow
+            }
+            cents *= 10;
+        }
+        return cents;
+    }
+}
@@ -0,0 +1,169 @@
+package ru.dualglad.shaders.protocol;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/** Recent decisions by request, so a retried request is not asked again
+ *
+ * Key is SHA-256 of the Desktop address, message_from_server and
+ * part_for_signature. A retry within the window gets the same reply at once,
+ * a retry of a request still waiting for the user waits for that decision
+ * instead of asking twice. Least recently used entries are evicted first.
+ *
+ */
+public final class ReplyCache {
+    public static final int DEFAULT_CAPACITY = 256;  // requests remembered
+    public static final long DEFAULT_WINDOW = 60000; // ms a decision is reused
+    private static final byte REQUEST_KEY = 0; // first byte of the key input: "request"
+    private static final byte STREAM_KEY = 1;  // "stream_request", texts given by digests
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // Decision and signature, signed is "" unless accepted
+    public static final class Reply {
+        public final byte decision; // AuditLog.ACCEPTED, AUTO or REJECTED
+        public final String signed;
+
+        public Reply(byte decision, String signed) {
+            this.decision = decision;
+            this.signed = signed;
+        }
+
+        public boolean isAccepted() {
+            return (decision == AuditLog.ACCEPTED) || (decision == AuditLog.AUTO);
+        }
+    }
+
+    // Request being decided or decided
+    private static final class Slot {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Reply reply; // null while pending or if abandoned
+        private volatile long time;   // ms, decision time
+    }
+
+    private final long window; // ms
+    private final LinkedHashMap<String, Slot> slots; // access order, guarded by itself
+
+    // Engines are not thread safe, one per thread
+    private static final ThreadLocal<MessageDigest> digests = new ThreadLocal<MessageDigest>() {
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance(CryptoEngine.DIGEST_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    public ReplyCache(final int capacity, long window) {
+        this.window = window;
+        slots = new LinkedHashMap<String, Slot>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, Slot> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    // Key of a "request"
+    public static String key(String address, String message_from_server, String part_for_signature) {
+        MessageDigest digest = digests.get();
+        digest.update(REQUEST_KEY);
+        update(digest, address.getBytes(UTF_8));
+        update(digest, message_from_server.getBytes(UTF_8));
+        update(digest, part_for_signature.getBytes(UTF_8));
+        return Hex.encode(digest.digest());
+    }
+
+    // Key of a "stream_request", from the digests of its texts
+    public static String key(String address, byte[] message_digest, byte[] part_digest) {
+        MessageDigest digest = digests.get();
+        digest.update(STREAM_KEY);
+        update(digest, address.getBytes(UTF_8));
+        update(digest, message_digest);
+        update(digest, part_digest);
+        return Hex.encode(digest.digest());
+    }
+
+    // Length before the bytes, so fields can't be shifted into each other
+    private static void update(MessageDigest digest, byte[] bytes) {
+        digest.update((byte)(bytes.length >>> 24));
+        digest.update((byte)(bytes.length >>> 16));
+        digest.update((byte)(bytes.length >>> 8));
+        digest.update((byte)bytes.length);
+        digest.update(bytes);
+    }
+
+    /** Reply to reuse, or null if the caller decides
+     *
+     * After null the caller must call complete() or abandon() with the key.
+     * Waits for a pending decision of the same request up to the window.
+     *
+     */
+    public Reply claim(String key) throws InterruptedException {
+        while (true) {
+            Slot slot;
+            synchronized (slots) {
+                slot = slots.get(key);
+                if ((slot == null) || ((slot.reply != null) && (System.currentTimeMillis() - slot.time > window))) {
+                    slots.put(key, new Slot());
+                    return null;
+                }
+            }
+            if (slot.reply != null) {
+                return slot.reply;
+            }
+            if (!slot.done.await(window, TimeUnit.MILLISECONDS)) {
+                return null; // decide in parallel rather than hang
+            }
+            if (slot.reply != null) {
+                return slot.reply;
+            }
+            // abandoned, claim again
+        }
+    }
+
+    // Decision of a claimed request
+    public void complete(String key, Reply reply) {
+        Slot slot;
+        synchronized (slots) {
+            slot = slots.get(key);
+            if ((slot == null) || (slot.reply != null)) {
+                // evicted meanwhile, or decided in parallel
+                slot = new Slot();
+                slots.put(key, slot);
+            }
+        }
+        slot.time = System.currentTimeMillis();
+        slot.reply = reply;
+        slot.done.countDown();
+    }
+
+    // Claimed request left undecided, waiters claim it again
+    public void abandon(String key) {
+        Slot slot;
+        synchronized (slots) {
+            slot = slots.get(key);
+            if ((slot == null) || (slot.reply != null)) {
+                return;
+            }
+            slots.remove(key);
+        }
+        slot.done.countDown();
+    }
+
+    public int size() {
+        synchronized (slots) {
+            return slots.size();
+        }
+    }
+
+    public void clear() {
+        synchronized (slots) {
+            slots.clear();
+        }
+    }
+}
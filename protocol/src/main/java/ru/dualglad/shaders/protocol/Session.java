@@ -0,0 +1,962 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static ru.dualglad.shaders.protocol.Console.*;
+
+// Single Desktop<->Mobile session, runs on a server worker
+final class Session implements Runnable {
+    private static final int BATCH_SUMMARY_ITEMS = 20; // batch requests listed in the summary
+    private final SessionServer server; // shared server state
+    private final Console console;      // output
+    private final CryptoEngine crypto;  // Mobile keys and signatures
+    private final Link link;            // connection
+    private final Metrics metrics;      // phase timings and events
+    private final Logger log;           // dialog steps
+    private final Logger wire;          // messages as sent and received
+    private final long accepted_at;     // System.nanoTime() of accept
+
+    private Codec codec;                       // wire format, negotiated on the first byte
+    private final Frame in = new Frame();      // received message, reused
+    private final Frame out = new Frame();     // message to send, reused
+    private final Policy.Context policyContext = new Policy.Context(); // auto-approval input, reused
+    private String remote_device_name;         // connected device BT name
+    private String remote_device_address;      // connected device BT address
+    private String challenge;                  // last "sign" challenge answered by the Desktop, or ticket presented
+    private String issued_ticket;              // ticket for the final reply of the dialog, null - none
+    private ChunkedText streamMessage;         // chunked message_from_server: preview and digest, created on first use
+    private ChunkedText streamPart;            // chunked part_for_signature: digest only
+    private ReplyCache replies;                // cache the claimed request belongs to
+    private String claimed;                    // ReplyCache key of the request being decided, null - none
+    private boolean started;                   // event-driven mode: first step() done
+    private boolean keepalive;                 // event-driven mode: "keepalive" answered
+    private volatile TimerWheel.Timeout deadline; // armed stage deadline, null - none
+    private volatile String stage;             // stage guarded by the deadline
+    private final Runnable expire = new Runnable() {
+        public void run() {
+            expire();
+        }
+    };
+
+    // Negotiation deadline starts at accept, so connections stuck in the queue do not take a worker
+    Session(SessionServer server, Link link) {
+        this.server = server;
+        this.console = server.getConsole();
+        this.crypto = server.getCrypto();
+        this.link = link;
+        this.metrics = server.getMetrics();
+        this.log = server.getLogs().get("session");
+        this.wire = server.getLogs().get("wire");
+        accepted_at = System.nanoTime();
+        remote_device_address = link.getRemoteAddress();
+        remote_device_name = link.getRemoteName();
+        arm("negotiate", server.getNegotiateTimeout());
+    }
+
+    // Event-driven session of LanTransport: wire format is agreed by the transport, see step()
+    Session(SessionServer server, Link link, Codec codec) {
+        this(server, link);
+        this.codec = codec;
+    }
+
+    public void run() {
+        metrics.recordSince(Metrics.ACCEPT, accepted_at);
+        metrics.count(Metrics.SESSIONS);
+        msg("Starting session.", COLOR_WHITE);
+        try {
+            msg("Connected to:\n\t\"" + remote_device_name + "\"\n\t[" + remote_device_address + "]", COLOR_YELLOW);
+            boolean negotiated = negotiate();
+            disarm();
+            if (negotiated) {
+                connect();
+            }
+            else {
+                msg("Failure to receive.", COLOR_RED);
+            }
+        } catch (Exception e) { e.printStackTrace(); }
+
+        close();
+        msg("Ending session.\n", COLOR_WHITE);
+    }
+
+    // Event-driven mode, selector thread: framed format agreed, the first message is due
+    void negotiated(int version) {
+        log.debug("FRAMED FORMAT V{}", version);
+        arm("request", server.getMessageTimeout());
+    }
+
+    /** Event-driven mode, worker: serve the dialog whose first message has arrived
+     *
+     * Same dialogs as connect(), one per call. Messages inside the dialog
+     * are waited for here; between dialogs the session holds no thread and
+     * the idle deadline runs. Also called after the Desktop hung up.
+     * Returns false once the session has ended.
+     *
+     */
+    boolean step() {
+        if (!started) {
+            started = true;
+            metrics.recordSince(Metrics.ACCEPT, accepted_at);
+            metrics.count(Metrics.SESSIONS);
+            msg("Starting session.", COLOR_WHITE);
+            msg("Connected to:\n\t\"" + remote_device_name + "\"\n\t[" + remote_device_address + "]", COLOR_YELLOW);
+            log.debug("CONNECTION STARTED SUCCESSFULLY");
+        }
+        boolean more = false;
+        try {
+            // already queued, no deadline
+            Frame in_f = receiveS(keepalive ? "idle" : "request", 0);
+            if (in_f == null) {
+                msg("Failure to receive.", COLOR_RED);
+            }
+            else if (keepalive) {
+                more = dispatch(in_f) && server.isAlive();
+            }
+            else if (in_f.type().equals(Dialog.KEEPALIVE)) {
+                // >> "keepalive"
+                more = sendS(Dialog.KEEPALIVE);
+                if (more) {
+                    keepalive = true;
+                    log.debug("KEEP-ALIVE SESSION");
+                }
+                else {
+                    msg("Failure to send.", COLOR_RED);
+                }
+            }
+            else {
+                // one dialog per connection
+                dispatch(in_f);
+            }
+        } catch (Exception e) { e.printStackTrace(); }
+
+        if (more) {
+            arm("idle", server.getIdleTimeout());
+            return true;
+        }
+        log.debug("CONNECTION ENDED SUCCESSFULLY");
+        close();
+        msg("Ending session.\n", COLOR_WHITE);
+        return false;
+    }
+
+    // Pick wire format: framed if the Desktop starts with FRAME_MAGIC, legacy text otherwise
+    private boolean negotiate() throws IOException {
+        InputStream inputStream = new BufferedInputStream(link.getInputStream());
+        OutputStream outputStream = new BufferedOutputStream(link.getOutputStream());
+        inputStream.mark(1);
+        int first = inputStream.read();
+        if (first < 0) {
+            return false;
+        }
+        if (first == Dialog.FRAME_MAGIC) {
+            FrameCodec frameCodec = new FrameCodec(inputStream, outputStream);
+            int version = frameCodec.accept();
+            log.debug("FRAMED FORMAT V{}", version);
+            codec = frameCodec;
+        }
+        else {
+            inputStream.reset();
+            log.debug("TEXT FORMAT");
+            codec = new TextCodec(inputStream, outputStream);
+        }
+        return true;
+    }
+
+    // Close the link after timeout ms unless disarmed, replaces the previous deadline
+    private void arm(String stage, long timeout) {
+        disarm();
+        TimerWheel timers = server.getTimers();
+        if ((timeout > 0) && (timers != null)) {
+            this.stage = stage;
+            deadline = timers.schedule(expire, timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void disarm() {
+        TimerWheel.Timeout timeout = deadline;
+        if (timeout != null) {
+            deadline = null;
+            timeout.cancel();
+        }
+    }
+
+    // Timer thread: stage took too long, blocked read or write fails on close
+    private void expire() {
+        metrics.count(Metrics.TIMEOUTS);
+        msg("Session timed out: " + stage + ".", COLOR_LIGHT_RED);
+        close();
+    }
+
+    String getAddress() {
+        return remote_device_address;
+    }
+
+    // Drop connection, unblocks pending reads
+    void close() {
+        disarm();
+        try {
+            link.close();
+        } catch (Exception e) { e.printStackTrace(); }
+        server.remove(this);
+    }
+
+    private void msg(String string, int color) {
+        console.msg(string, color);
+    }
+
+    /** Desktop<->Mobile connection dialogs
+     *
+     * First connection - Desktop adds Mobile to its list, they exchange their public keys
+     *   // Desktop->Mobile: Desktop sends its public key
+     * > "pubkey" + {SEPARATOR} + [desktop_public_key]
+     *    // Mobile->Desktop: Mobile user cancels connection (by user)
+     * >> "bad_request"
+     *    // Mobile->Desktop: Mobile sends its public key
+     * >> "pubkey" + {SEPARATOR} + [mobile_public_key]
+     *
+     * Sign - Desktop asks Mobile for permission
+     *   // Desktop->Mobile: Desktop sends message from server with separated part for signing
+     * > "request" + {SEPARATOR} + [message_from_server] + {SEPARATOR} + [part_for_signature]
+     *    // Mobile->Desktop: Mobile doesn't know this address
+     * >> "bad_request"
+     *    // Mobile->Desktop: known Desktop should sign time+random stamp
+     * >> "sign" + {SEPARATOR} + [T_plus_rand]
+     *   // Desktop->Mobile: Desktop signs using its private key
+     * > "signed" + {SEPARATOR} + [signed_T_plus_rand]
+     *    // Mobile->Desktop: wrong signature
+     * >> "bad_request"
+     *    // Mobile->Desktop: request accepted (by user)
+     * >> "answer" + {SEPARATOR} + [signed_message_from_server]
+     *
+     * Batch sign - Desktop asks Mobile for permission for N requests with one challenge
+     * > "batch_request" + N * ({SEPARATOR} + [message_from_server] + {SEPARATOR} + [part_for_signature])
+     *    // Mobile->Desktop: same challenge as for "request"
+     * >> "sign" + {SEPARATOR} + [T_plus_rand]
+     * > "signed" + {SEPARATOR} + [signed_T_plus_rand]
+     *    // Mobile->Desktop: nothing accepted (by user)
+     * >> "bad_request"
+     *    // Mobile->Desktop: signatures in request order, "" for rejected requests
+     * >> "answer" + N * ({SEPARATOR} + [signed_message_from_server])
+     *
+     * Stream sign - large request in chunks, Mobile keeps only a preview and digests
+     * > "stream_request" + {SEPARATOR} + [message_chunks] + {SEPARATOR} + [part_chunks]
+     *   // Desktop->Mobile: message_from_server, then part_for_signature, no replies in between
+     * > "chunk" + {SEPARATOR} + [text]
+     *    // Mobile->Desktop: same challenge as for "request"
+     * >> "sign" + {SEPARATOR} + [T_plus_rand]
+     * > "signed" + {SEPARATOR} + [signed_T_plus_rand]
+     *    // Mobile->Desktop: same signature as "request" of the joined texts
+     * >> "answer" + {SEPARATOR} + [signed_message_from_server]
+     *
+     * Resumption - recently proven Desktop skips the challenge
+     *   // Desktop->Mobile: asks for a ticket when answering the challenge
+     * > "signed" + {SEPARATOR} + [signed_T_plus_rand] + {SEPARATOR} + "ticket"
+     *    // Mobile->Desktop: ticket is the extra last field of the final reply ("answer" or "bad_request")
+     * >> "answer" + {SEPARATOR} + [signed_message_from_server] + {SEPARATOR} + [ticket]
+     *   // Desktop->Mobile: any request above with the ticket as the extra last field
+     * > "request" + {SEPARATOR} + [message_from_server] + {SEPARATOR} + [part_for_signature] + {SEPARATOR} + [ticket]
+     *    // Mobile->Desktop: valid ticket - no "sign", straight to the decision; otherwise "sign" as usual
+     * >> "answer" + {SEPARATOR} + [signed_message_from_server]
+     *
+     * Repeated request - same "request" or "stream_request" of the Desktop within the ReplyCache window
+     *    // Mobile->Desktop: proven as usual, then the first decision again without asking the user
+     * >> "answer" + {SEPARATOR} + [signed_message_from_server]
+     *    // Mobile->Desktop: first decision was a rejection
+     * >> "bad_request"
+     *    // a prompt that expired or was cancelled is no decision, the user is asked again
+     *
+     * Keep-alive - Desktop keeps the link open for many dialogs
+     *   // Desktop->Mobile: first message of the connection
+     * > "keepalive"
+     *    // Mobile->Desktop: Mobile serves dialogs above until "close" or idle timeout
+     * >> "keepalive"
+     *   // Desktop->Mobile: keep link warm
+     * > "ping"
+     * >> "pong"
+     *   // Desktop->Mobile: end of session
+     * > "close"
+     *
+     * Without "keepalive" the connection carries exactly one dialog.
+     *
+     */
+
+    // Desktop<->Mobile connection dialog
+    private void connect() {
+        log.debug("CONNECTION STARTED SUCCESSFULLY");
+        Frame in_f = receiveS("request", server.getMessageTimeout());
+        if (in_f == null) {
+            msg("Failure to receive.", COLOR_RED);
+            return;
+        }
+
+        if (!in_f.type().equals(Dialog.KEEPALIVE)) {
+            // one dialog per connection
+            dispatch(in_f);
+            log.debug("CONNECTION ENDED SUCCESSFULLY");
+            return;
+        }
+
+        // >> "keepalive"
+        boolean out_b = sendS(Dialog.KEEPALIVE);
+        if (!out_b) {
+            msg("Failure to send.", COLOR_RED);
+            return;
+        }
+        log.debug("KEEP-ALIVE SESSION");
+        while (server.isAlive()) {
+            in_f = receiveS("idle", server.getIdleTimeout());
+            if (in_f == null) {
+                msg("Failure to receive.", COLOR_RED);
+                return;
+            }
+            if (!dispatch(in_f)) {
+                break;
+            }
+        }
+        log.debug("CONNECTION ENDED SUCCESSFULLY");
+    }
+
+    // Single Desktop message, returns false when the session should end
+    private boolean dispatch(Frame request) {
+        long started = System.nanoTime();
+        switch (request.type()) {
+            // First connection - Desktop adds Mobile to its list, they exchange their public keys
+            // > "pubkey" + {SEPARATOR} + [desktop_public_key]
+            case Dialog.PUBKEY:
+                // >> "bad_request" // wrong number of parameters
+                if (request.count() != 1) {
+                    msg("Bad request.", COLOR_RED);
+                    log.debug("PUBKEY[2] : Bad request: \"{}\"", request);
+                    boolean out_b = sendS(Dialog.BAD_REQUEST);
+                    if (!out_b) {
+                        msg("Failure to send.", COLOR_RED);
+                        return false;
+                    }
+                    break;
+                }
+                request_PUBKEY(request);
+                break;
+            // Sign - Desktop asks Mobile for permission
+            // > "request" + {SEPARATOR} + [message_from_server] + {SEPARATOR} + [part_for_signature] (+ {SEPARATOR} + [ticket])
+            case Dialog.REQUEST:
+                // >> "bad_request" // wrong number of parameters
+                if ((request.count() != 2) && (request.count() != 3)) {
+                    msg("Bad request.", COLOR_RED);
+                    log.debug("REQUEST[3] : Bad request: \"{}\"", request);
+                    boolean out_b = sendS(Dialog.BAD_REQUEST);
+                    if (!out_b) {
+                        msg("Failure to send.", COLOR_RED);
+                        return false;
+                    }
+                    break;
+                }
+                request_REQUEST(request);
+                metrics.recordSince(Metrics.REQUEST, started);
+                break;
+            // Batch sign - Desktop asks Mobile for permission for many requests at once
+            // > "batch_request" + N * ({SEPARATOR} + [message_from_server] + {SEPARATOR} + [part_for_signature]) (+ {SEPARATOR} + [ticket])
+            case Dialog.BATCH_REQUEST:
+                // >> "bad_request" // wrong number of parameters
+                if (request.count() < 2) {
+                    msg("Bad request.", COLOR_RED);
+                    log.debug("BATCH_REQUEST[2N+1] : Bad request: \"{}\"", request);
+                    boolean out_b = sendS(Dialog.BAD_REQUEST);
+                    if (!out_b) {
+                        msg("Failure to send.", COLOR_RED);
+                        return false;
+                    }
+                    break;
+                }
+                request_BATCH_REQUEST(request);
+                metrics.recordSince(Metrics.REQUEST, started);
+                break;
+            // Stream sign - Desktop sends a large request in chunks
+            // > "stream_request" + {SEPARATOR} + [message_chunks] + {SEPARATOR} + [part_chunks] (+ {SEPARATOR} + [ticket])
+            case Dialog.STREAM_REQUEST: {
+                // >> "bad_request" // wrong parameters, chunks that follow can't be skipped
+                boolean well_formed = (request.count() == 2) || (request.count() == 3);
+                int message_chunks = well_formed ? chunks(request.field(0)) : -1;
+                int part_chunks = well_formed ? chunks(request.field(1)) : -1;
+                if ((message_chunks < 0) || (part_chunks < 0)) {
+                    msg("Bad request.", COLOR_RED);
+                    log.debug("STREAM_REQUEST[3] : Bad request: \"{}\"", request);
+                    sendS(Dialog.BAD_REQUEST);
+                    return false;
+                }
+                boolean in_b = request_STREAM_REQUEST(message_chunks, part_chunks, (request.count() == 3) ? request.field(2) : null);
+                metrics.recordSince(Metrics.REQUEST, started);
+                if (!in_b) {
+                    return false;
+                }
+                break;
+            }
+            // Keep link warm
+            // > "ping"
+            case Dialog.PING: {
+                // >> "pong"
+                boolean out_b = sendS(Dialog.PONG);
+                if (!out_b) {
+                    msg("Failure to send.", COLOR_RED);
+                    return false;
+                }
+                break;
+            }
+            // End of keep-alive session
+            // > "close"
+            case Dialog.CLOSE:
+                return false;
+            // Invalid message
+            // >> "bad_request" // wrong request type
+            default:
+                msg("Bad request.", COLOR_RED);
+                log.debug("\"UNDEF\" : Bad request: \"{}\"", request);
+                boolean out_b = sendS(Dialog.BAD_REQUEST);
+                if (!out_b) {
+                    msg("Failure to send.", COLOR_RED);
+                    return false;
+                }
+                break;
+        }
+        return true;
+    }
+
+    // > "pubkey" + {SEPARATOR} + [desktop_public_key]
+    private void request_PUBKEY(Frame request) {
+        log.debug("\"PUBKEY\" STARTED SUCCESSFULLY");
+        PublicKey key = crypto.parsePublickey(request.field(0));
+        if (key == null) {
+            msg("Bad Desktop public key.", COLOR_LIGHT_RED);
+            // >> "bad_request" // not a public key
+            boolean out_b = sendS(Dialog.BAD_REQUEST);
+            if (!out_b) {
+                msg("Failure to send.", COLOR_RED);
+            }
+            return;
+        }
+        boolean result = server.getApprover().askUser("Desktop wants to save this Mobile device to the list.\nCompare BT addresses before accepting!", COLOR_YELLOW) == Approval.ACCEPTED;
+        if (result) {
+            msg("Accept Desktop public key.\nSending Mobile public key.", COLOR_LIGHT_GREEN);
+            // > "pubkey" + {SEPARATOR} + [desktop_public_key]
+            Desktop desktop = new Desktop(remote_device_address, remote_device_name, request.field(0), key);
+            try {
+                server.getPairings().put(desktop);
+            } catch (IOException e) {
+                e.printStackTrace();
+                msg("Failure to save Desktop.", COLOR_RED);
+                // >> "bad_request" // pairing is not saved
+                boolean out_b = sendS(Dialog.BAD_REQUEST);
+                if (!out_b) {
+                    msg("Failure to send.", COLOR_RED);
+                }
+                return;
+            }
+            // >> "pubkey" + {SEPARATOR} + [mobile_public_key]
+            boolean out_b = sendS(Dialog.PUBKEY, crypto.getPublickey());
+            if (!out_b) {
+                msg("Failure to send.", COLOR_RED);
+                return;
+            }
+            msg("Desktop is \"" + desktop.name + "\" (" + desktop.address + ")", COLOR_WHITE);
+        }
+        else {
+            msg("Cancel Desktop public key.", COLOR_LIGHT_RED);
+            // >> "bad_request" // Mobile user cancels connection
+            boolean out_b = sendS(Dialog.BAD_REQUEST);
+            if (!out_b) {
+                msg("Failure to send.", COLOR_RED);
+                return;
+            }
+        }
+        log.debug("\"PUBKEY\" ENDED SUCCESSFULLY");
+    }
+
+    // > "request" + {SEPARATOR} + [message_from_server] + {SEPARATOR} + [part_for_signature]
+    private void request_REQUEST(Frame request) {
+        log.debug("\"REQUEST\" STARTED SUCCESSFULLY");
+        // request frame is reused for the next message
+        String message_from_server = request.field(0);
+        String part_for_signature = request.field(1);
+        String ticket = (request.count() == 3) ? request.field(2) : null;
+        if (!proveDevice(ticket)) {
+            log.debug("\"REQUEST\" ENDED SUCCESSFULLY");
+            return;
+        }
+        if (replay(ReplyCache.key(remote_device_address, message_from_server, part_for_signature), message_from_server)) {
+            log.debug("\"REQUEST\" ENDED SUCCESSFULLY");
+            return;
+        }
+        boolean sent;
+        try {
+            sent = decide(message_from_server, message_from_server, part_for_signature, null, true);
+        } finally {
+            unclaim();
+        }
+        if (sent) {
+            log.debug("\"REQUEST\" ENDED SUCCESSFULLY");
+        }
+    }
+
+    /** Decision and reply of a "request" or "stream_request" not answered from the cache, false if not sent
+     *
+     * shown is asked to the user, message_from_server and part_for_signature
+     * go to the journal. The part is signed as text, or as part_digest if
+     * not null. auto_allowed is false for a message known only by its preview.
+     *
+     */
+    private boolean decide(String message_from_server, String shown, String part_for_signature, byte[] part_digest,
+                           boolean auto_allowed) {
+        int answer; // Approval state
+        Policy policy = server.getPolicy();
+        int rule = auto_allowed
+                ? policy.match(policyContext.set(remote_device_address, message_from_server, System.currentTimeMillis())) : -1;
+        if (rule >= 0) {
+            msg("Incoming request:\n\"" + shown + "\"", COLOR_CYAN);
+            msg("Auto-approved by rule \"" + policy.rule(rule) + "\".", COLOR_GRAY);
+            answer = Approval.ACCEPTED;
+        }
+        else {
+            long asked = System.nanoTime();
+            answer = server.getApprover().askUser("Incoming request:\n\"" + shown + "\"", COLOR_CYAN);
+            metrics.recordSince(Metrics.USER, asked);
+        }
+        if (answer == Approval.ACCEPTED) {
+            msg("Accepted.", COLOR_LIGHT_GREEN);
+            metrics.count((rule >= 0) ? Metrics.AUTO : Metrics.ACCEPTED);
+            long signing = System.nanoTime();
+            String signed = (part_digest == null) ? crypto.sign(part_for_signature) : crypto.signDigest(part_digest);
+            metrics.recordSince(Metrics.SIGN, signing);
+            audit((rule >= 0) ? AuditLog.AUTO : AuditLog.ACCEPTED, message_from_server, part_for_signature, signed);
+            remember((rule >= 0) ? AuditLog.AUTO : AuditLog.ACCEPTED, signed);
+            // >> "answer" + {SEPARATOR} + [signed_message_from_server]
+            boolean out_b = sendS(ticket(out.set(Dialog.ANSWER).add(signed)));
+            if (!out_b) {
+                msg("Failure to send.", COLOR_RED);
+                return false;
+            }
+        }
+        else {
+            msg("Canceled.", COLOR_LIGHT_RED);
+            metrics.count(Metrics.REJECTED);
+            audit(decision(answer), message_from_server, part_for_signature, "");
+            if (answer == Approval.REJECTED) {
+                remember(AuditLog.REJECTED, "");
+            }
+            else {
+                unclaim(); // prompt expired or cancelled unseen, a retry asks again
+            }
+            // >> "bad_request" // cancelled by user or no answer
+            boolean out_b = sendS(ticket(out.set(Dialog.BAD_REQUEST)));
+            if (!out_b) {
+                msg("Failure to send.", COLOR_RED);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // > "batch_request" + N * ({SEPARATOR} + [message_from_server] + {SEPARATOR} + [part_for_signature])
+    private void request_BATCH_REQUEST(Frame request) {
+        log.debug("\"BATCH_REQUEST\" STARTED SUCCESSFULLY");
+        // request frame is reused for the next message
+        int count = request.count() / 2;
+        String ticket = (request.count() % 2 != 0) ? request.field(request.count() - 1) : null;
+        String[] messages_from_server = new String[count];
+        String[] parts_for_signature = new String[count];
+        long total = 0;       // cents, sum of "amount=" of the messages
+        int no_amount = 0;    // messages without a readable amount
+        for (int i = 0; i < count; i++) {
+            messages_from_server[i] = request.field(2 * i);
+            parts_for_signature[i] = request.field(2 * i + 1);
+            long amount = Policy.amount(messages_from_server[i]);
+            // NO_AMOUNT or any negative value is no amount, the sum never wraps
+            if ((amount < 0) || (total > Long.MAX_VALUE - amount)) {
+                no_amount++;
+            }
+            else {
+                total += amount;
+            }
+        }
+        if (!proveDevice(ticket)) {
+            log.debug("\"BATCH_REQUEST\" ENDED SUCCESSFULLY");
+            return;
+        }
+
+        // One decision for the whole batch, or one per request if the user wants to review
+        byte[] decisions = new byte[count]; // AuditLog decision of every request
+        StringBuilder summary = new StringBuilder();
+        summary.append("Incoming batch: ").append(count).append(" requests, total amount ")
+                .append(total / 100).append('.').append((char)('0' + total % 100 / 10)).append((char)('0' + total % 10));
+        if (no_amount > 0) {
+            summary.append(" + ").append(no_amount).append(" without amount");
+        }
+        summary.append(":");
+        for (int i = 0; (i < count) && (i < BATCH_SUMMARY_ITEMS); i++) {
+            summary.append("\n\t").append(i + 1).append(". \"").append(messages_from_server[i]).append("\"");
+        }
+        if (count > BATCH_SUMMARY_ITEMS) {
+            summary.append("\n\t... and ").append(count - BATCH_SUMMARY_ITEMS).append(" more");
+        }
+        summary.append("\nAccept all?");
+        Approver approver = server.getApprover();
+        long asked = System.nanoTime();
+        int answer = approver.askUser(summary.toString(), COLOR_CYAN);
+        if (answer == Approval.ACCEPTED) {
+            Arrays.fill(decisions, AuditLog.ACCEPTED);
+        }
+        else {
+            int review = approver.askUser("Review requests one by one?", COLOR_YELLOW);
+            if (review == Approval.ACCEPTED) {
+                for (int i = 0; i < count; i++) {
+                    decisions[i] = decision(approver.askUser("Request " + (i + 1) + " of " + count + ":\n\"" + messages_from_server[i] + "\"", COLOR_CYAN));
+                }
+            }
+            else {
+                // either refusal is the user's, only two unanswered prompts are no decision
+                Arrays.fill(decisions, ((answer == Approval.REJECTED) || (review == Approval.REJECTED)) ? AuditLog.REJECTED : AuditLog.EXPIRED);
+            }
+        }
+        metrics.recordSince(Metrics.USER, asked);
+
+        // >> "answer" + N * ({SEPARATOR} + [signed_message_from_server]) // "" for rejected requests
+        out.set(Dialog.ANSWER);
+        int signed_count = 0;
+        for (int i = 0; i < count; i++) {
+            if (decisions[i] == AuditLog.ACCEPTED) {
+                long signing = System.nanoTime();
+                String signed = crypto.sign(parts_for_signature[i]);
+                metrics.recordSince(Metrics.SIGN, signing);
+                metrics.count(Metrics.ACCEPTED);
+                audit(AuditLog.ACCEPTED, messages_from_server[i], parts_for_signature[i], signed);
+                out.add(signed);
+                signed_count++;
+            }
+            else {
+                metrics.count(Metrics.REJECTED);
+                audit(decisions[i], messages_from_server[i], parts_for_signature[i], "");
+                out.add("");
+            }
+        }
+        if (signed_count == 0) {
+            msg("Canceled.", COLOR_LIGHT_RED);
+            // >> "bad_request" // cancelled by user
+            out.set(Dialog.BAD_REQUEST);
+        }
+        else {
+            msg("Accepted " + signed_count + " of " + count + ".", COLOR_LIGHT_GREEN);
+        }
+        boolean out_b = sendS(ticket(out));
+        if (!out_b) {
+            msg("Failure to send.", COLOR_RED);
+            return;
+        }
+        log.debug("\"BATCH_REQUEST\" ENDED SUCCESSFULLY");
+    }
+
+    // > "stream_request" + {SEPARATOR} + [message_chunks] + {SEPARATOR} + [part_chunks] (+ {SEPARATOR} + [ticket])
+    // returns false if the chunks are not received
+    private boolean request_STREAM_REQUEST(int message_chunks, int part_chunks, String ticket) {
+        log.debug("\"STREAM_REQUEST\" STARTED SUCCESSFULLY");
+        if (streamMessage == null) {
+            streamMessage = new ChunkedText(Dialog.STREAM_PREVIEW);
+            streamPart = new ChunkedText(0);
+        }
+        // > "chunk" + {SEPARATOR} + [text]
+        if (!receiveChunks(streamMessage.reset(), message_chunks) || !receiveChunks(streamPart.reset(), part_chunks)) {
+            return false;
+        }
+        byte[] message_digest = streamMessage.digest();
+        byte[] part_digest = streamPart.digest();
+        if (!proveDevice(ticket)) {
+            log.debug("\"STREAM_REQUEST\" ENDED SUCCESSFULLY");
+            return true;
+        }
+
+        // Only the preview is kept: a message longer than it is never auto-approved
+        String message_from_server = streamMessage.preview();
+        String shown = message_from_server;
+        if (!streamMessage.isComplete()) {
+            shown += "\n... " + streamMessage.length() + " characters in total";
+            message_from_server += " ... [" + streamMessage.length() + " characters, SHA-256 " + Hex.encode(message_digest) + "]";
+        }
+        if (replay(ReplyCache.key(remote_device_address, message_digest, part_digest), shown)) {
+            log.debug("\"STREAM_REQUEST\" ENDED SUCCESSFULLY");
+            return true;
+        }
+        boolean sent;
+        try {
+            String part_for_signature = "[" + streamPart.length() + " characters, SHA-256 " + Hex.encode(part_digest) + "]";
+            sent = decide(message_from_server, shown, part_for_signature, part_digest, streamMessage.isComplete());
+        } finally {
+            unclaim();
+        }
+        if (sent) {
+            log.debug("\"STREAM_REQUEST\" ENDED SUCCESSFULLY");
+        }
+        return sent;
+    }
+
+    // Feed count "chunk" messages to text, answers "bad_request" itself on a wrong message
+    private boolean receiveChunks(ChunkedText text, int count) {
+        for (int i = 0; i < count; i++) {
+            Frame chunk = receiveS("chunk", server.getMessageTimeout());
+            if (chunk == null) {
+                msg("Failure to receive.", COLOR_RED);
+                return false;
+            }
+            // text format drops an empty field
+            if (!chunk.type().equals(Dialog.CHUNK) || (chunk.count() > 1)) {
+                msg("Bad request.", COLOR_RED);
+                log.debug("\"CHUNK\" : Bad request: \"{}\"", chunk);
+                sendS(Dialog.BAD_REQUEST);
+                return false;
+            }
+            text.append((chunk.count() == 0) ? "" : chunk.field(0));
+        }
+        return true;
+    }
+
+    // Number of chunks in "stream_request", -1 if malformed
+    private static int chunks(String field) {
+        try {
+            int count = Integer.parseInt(field);
+            return ((count >= 0) && (count <= Dialog.MAX_STREAM_CHUNKS)) ? count : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    // Prove the paired Desktop by ticket or "sign" challenge, answers "bad_request" itself on failure
+    private boolean proveDevice(String ticket) {
+        issued_ticket = null;
+        Desktop desktop = server.getPairings().get(remote_device_address);
+        if (desktop == null) {
+            msg("Unknown device.", COLOR_LIGHT_RED);
+            // >> "bad_request" // Mobile doesn't know this address
+            boolean out_b = sendS(Dialog.BAD_REQUEST);
+            if (!out_b) {
+                msg("Failure to send.", COLOR_RED);
+            }
+            return false;
+        }
+
+        Tickets tickets = server.getTickets();
+        if (ticket != null) {
+            long resuming = System.nanoTime();
+            int checked = (tickets == null) ? Tickets.REVOKED : tickets.check(ticket, desktop);
+            if (checked == Tickets.OK) {
+                metrics.recordSince(Metrics.RESUME, resuming);
+                metrics.count(Metrics.TICKET_HITS);
+                msg("Device resumed.", COLOR_WHITE);
+                challenge = Dialog.TICKET + Dialog.SEPARATOR + ticket;
+                return true;
+            }
+            // fall back to the challenge
+            metrics.count(Metrics.TICKET_MISSES);
+            msg((checked == Tickets.EXPIRED) ? "Ticket expired." : (checked == Tickets.REVOKED) ? "Ticket revoked." : "Bad ticket.", COLOR_LIGHT_RED);
+        }
+
+        msg("Prove device.", COLOR_WHITE);
+        long issuing = System.nanoTime();
+        String checker = server.getChallenges().issue();
+        metrics.recordSince(Metrics.CHALLENGE, issuing);
+        // >> "sign" + {SEPARATOR} + [T_plus_rand]
+        long round_trip = System.nanoTime();
+        boolean out_b = sendS(Dialog.SIGN, checker);
+        if (!out_b) {
+            msg("Failure to send.", COLOR_RED);
+            return false;
+        }
+
+        // > "signed" + {SEPARATOR} + [signed_T_plus_rand]
+        Frame parts = receiveS("signed", server.getMessageTimeout());
+        if (parts == null) {
+            msg("Failure to receive.", COLOR_RED);
+            return false;
+        }
+        metrics.recordSince(Metrics.ROUND_TRIP, round_trip);
+        boolean wants_ticket = (parts.count() == 2) && Dialog.TICKET.equals(parts.field(1));
+        if (((parts.count() != 1) && !wants_ticket) || (!parts.type().equals(Dialog.SIGNED))) {
+            msg("Bad request.", COLOR_RED);
+            log.debug("\"SIGNED\" : Bad request: \"{}\"", parts);
+            // >> "bad_request" // unexpected answer
+            out_b = sendS(Dialog.BAD_REQUEST);
+            if (!out_b) {
+                msg("Failure to send.", COLOR_RED);
+            }
+            return false;
+        }
+        // Cheap checks before signature verification
+        long verifying = System.nanoTime();
+        int redeemed = server.getChallenges().redeem(checker, parts.field(0));
+        if (redeemed != Challenges.OK) {
+            msg((redeemed == Challenges.STALE) ? "Challenge expired." : "Replayed signature.", COLOR_LIGHT_RED);
+            // >> "bad_request" // late or replayed answer
+            out_b = sendS(Dialog.BAD_REQUEST);
+            if (!out_b) {
+                msg("Failure to send.", COLOR_RED);
+            }
+            return false;
+        }
+        boolean signature = crypto.verify(desktop.key, checker, parts.field(0));
+        metrics.recordSince(Metrics.VERIFY, verifying);
+        if (!signature) {
+            msg("Bad device.", COLOR_LIGHT_RED);
+            // >> "bad_request" // wrong signature
+            out_b = sendS(Dialog.BAD_REQUEST);
+            if (!out_b) {
+                msg("Failure to send.", COLOR_RED);
+            }
+            return false;
+        }
+        metrics.recordSince(Metrics.PROVE, issuing);
+        challenge = checker;
+        if (wants_ticket && (tickets != null)) {
+            issued_ticket = tickets.issue(desktop);
+            metrics.count(Metrics.TICKETS);
+        }
+        return true;
+    }
+
+    // Final reply of a proven dialog carries the ticket asked for
+    private Frame ticket(Frame reply) {
+        if (issued_ticket != null) {
+            reply.add(issued_ticket);
+            issued_ticket = null;
+        }
+        return reply;
+    }
+
+    /** Answer a repeated request with the first decision
+     *
+     * true if answered from the cache. Otherwise the request is claimed: the
+     * same request of other sessions waits for remember() or unclaim().
+     *
+     */
+    private boolean replay(String key, String shown) {
+        ReplyCache replies = server.getReplies();
+        if (replies == null) {
+            return false;
+        }
+        ReplyCache.Reply reply;
+        try {
+            reply = replies.claim(key);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (reply == null) {
+            metrics.count(Metrics.REPLY_MISSES);
+            this.replies = replies;
+            claimed = key;
+            return false;
+        }
+        metrics.count(Metrics.REPLY_HITS);
+        msg("Repeated request:\n\"" + shown + "\"", COLOR_CYAN);
+        if (reply.isAccepted()) {
+            msg("Accepted before, same answer.", COLOR_GRAY);
+            // >> "answer" + {SEPARATOR} + [signed_message_from_server]
+            out.set(Dialog.ANSWER).add(reply.signed);
+        }
+        else {
+            msg("Canceled before, same answer.", COLOR_GRAY);
+            // >> "bad_request"
+            out.set(Dialog.BAD_REQUEST);
+        }
+        if (!sendS(ticket(out))) {
+            msg("Failure to send.", COLOR_RED);
+        }
+        return true;
+    }
+
+    // Decision of the claimed request, reused for its repetitions
+    private void remember(byte decision, String signed) {
+        if (claimed != null) {
+            replies.complete(claimed, new ReplyCache.Reply(decision, signed));
+            claimed = null;
+        }
+    }
+
+    // Claimed request left without a decision
+    private void unclaim() {
+        if (claimed != null) {
+            replies.abandon(claimed);
+            claimed = null;
+        }
+    }
+
+    // Journal decision of an Approval state
+    private static byte decision(int answer) {
+        switch (answer) {
+            case Approval.ACCEPTED:
+                return AuditLog.ACCEPTED;
+            case Approval.REJECTED:
+                return AuditLog.REJECTED;
+            default:
+                return AuditLog.EXPIRED;
+        }
+    }
+
+    // Decision for the audit journal, written in background
+    private void audit(byte decision, String message_from_server, String part_for_signature, String signed) {
+        AuditLog audit = server.getAudit();
+        if (audit != null) {
+            audit.append(new AuditLog.Entry(System.currentTimeMillis(), decision, remote_device_address, challenge,
+                    message_from_server, part_for_signature, signed));
+        }
+    }
+
+    // Safe receiving with a deadline in ms, returned frame is valid until the next call
+    private Frame receiveS(String stage, long timeout) {
+        boolean received = false;
+        arm(stage, timeout);
+        try {
+            received = codec.receive(in);
+        } catch (Exception e) {
+            e.printStackTrace();
+            metrics.count(Metrics.FAILURES);
+        }
+        disarm();
+
+        wire.trace("RECEIVE: \"{}\"", received ? in : null);
+        return received ? in : null;
+    }
+
+    // Safe sending
+    private boolean sendS(String type) {
+        return sendS(out.set(type));
+    }
+
+    // Safe sending
+    private boolean sendS(String type, String field) {
+        return sendS(out.set(type).add(field));
+    }
+
+    // Safe sending
+    private boolean sendS(Frame frame) {
+        boolean sent = false;
+        long sending = System.nanoTime();
+        arm("send", server.getSendTimeout()); // text format waits for the Desktop acknowledgement
+        try {
+            codec.send(frame);
+            sent = true;
+        } catch (Exception e) {
+            e.printStackTrace();
+            metrics.count(Metrics.FAILURES);
+        }
+        disarm();
+        metrics.recordSince(Metrics.SEND, sending);
+        if (Dialog.BAD_REQUEST.equals(frame.type())) {
+            metrics.count(Metrics.BAD_REQUESTS);
+        }
+
+        wire.trace("SEND: \"{}\"", frame);
+        return sent;
+    }
+}
@@ -0,0 +1,437 @@
+package ru.dualglad.shaders.protocol;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static ru.dualglad.shaders.protocol.Console.*;
+
+// Server: one listener and optionally LanTransport, every accepted Desktop is served by a worker pool
+public class SessionServer {
+    public static final int DEFAULT_WORKERS = 4; // sessions served at the same time
+    public static final int DEFAULT_MAX_PENDING = 16; // accepted sessions waiting for a worker
+    public static final int DEFAULT_MAX_PER_DESKTOP = 0; // sessions of one Desktop address, 0 - no limit
+    public static final long DEFAULT_NEGOTIATE_TIMEOUT = 10000; // ms, from accept to the wire format
+    public static final long DEFAULT_MESSAGE_TIMEOUT = 30000;   // ms, Desktop message inside a dialog
+    public static final long DEFAULT_SEND_TIMEOUT = 30000;      // ms, message sent and acknowledged
+    public static final long DEFAULT_IDLE_TIMEOUT = 60000;      // ms, keep-alive session without messages
+    private static final long TIMER_TICK = 100;                 // ms, deadline precision
+    private static final int TIMER_BUCKETS = 512;               // one wheel turn is ~51 s
+
+    private final Transport transport; // connections source, null - LAN only
+    private final Console console;     // output
+    private final Approver approver;   // user decisions
+    private final CryptoEngine crypto; // Mobile keys and signatures
+    private final PairingRegistry pairings; // paired Desktops
+    private final int workers;         // worker pool size
+    private int max_pending = DEFAULT_MAX_PENDING;
+    private int max_per_desktop = DEFAULT_MAX_PER_DESKTOP;
+    private volatile long negotiate_timeout = DEFAULT_NEGOTIATE_TIMEOUT; // ms, 0 - no deadline
+    private volatile long message_timeout = DEFAULT_MESSAGE_TIMEOUT;     // ms, 0 - no deadline
+    private volatile long send_timeout = DEFAULT_SEND_TIMEOUT;           // ms, 0 - no deadline
+    private volatile long idle_timeout = DEFAULT_IDLE_TIMEOUT;           // ms, 0 - no deadline
+    private long ticket_lifetime = Tickets.DEFAULT_LIFETIME;             // ms, 0 - no resumption
+    private String lan_host;                                             // LAN bind address, null - all interfaces
+    private int lan_port = -1;                                           // LAN TCP port, 0 - any, -1 - no LAN
+
+    private final Set<Session> sessions = Collections.newSetFromMap(new ConcurrentHashMap<Session, Boolean>()); // active sessions
+    private final HashMap<String, Integer> per_desktop = new HashMap<>(); // active sessions by address, guarded by itself
+
+    private volatile Challenges challenges; // "sign" challenges of running server
+    private volatile Tickets tickets;       // resumption tickets of running server, null - off
+    private volatile Policy policy = Policy.NONE; // auto-approval rules
+    private volatile AuditLog audit;              // journal of decisions, null - off
+    private volatile ReplyCache replies = new ReplyCache(ReplyCache.DEFAULT_CAPACITY, ReplyCache.DEFAULT_WINDOW); // recent decisions, null - off
+    private volatile Metrics metrics = new Metrics(); // phase timings and events
+    private volatile Logs logs = new Logs(Logs.INFO);  // tracing, off until a sink is added
+
+    private volatile boolean server_alive; // is server active
+    private ThreadPoolExecutor executor;   // session workers
+    private Thread acceptor;               // listener thread
+    private volatile TimerWheel timers;    // stage deadlines of all sessions
+    private volatile LanTransport lan;     // Desktops on TCP of running server, null - none
+
+    public SessionServer(Transport transport, Console console, Approver approver, CryptoEngine crypto,
+                         PairingRegistry pairings, int workers) {
+        this.transport = transport;
+        this.console = console;
+        this.approver = approver;
+        this.crypto = crypto;
+        this.pairings = pairings;
+        this.workers = workers;
+    }
+
+    // Activate server
+    public synchronized void start() {
+        if (server_alive) {
+            return;
+        }
+        server_alive = true;
+        challenges = new Challenges(Challenges.DEFAULT_WINDOW);
+        tickets = (ticket_lifetime > 0) ? new Tickets(ticket_lifetime) : null;
+        timers = new TimerWheel(TIMER_TICK, TimeUnit.MILLISECONDS, TIMER_BUCKETS, "deadlines");
+        executor = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                pending(max_pending), new NamedThreadFactory("session"));
+        lan = null;
+        if (lan_port >= 0) {
+            LanTransport lan = new LanTransport(this, lan_host, lan_port);
+            try {
+                lan.open();
+                this.lan = lan;
+                msg("Listening on LAN port " + lan.getPort() + ".", COLOR_GREEN);
+            } catch (Exception e) {
+                e.printStackTrace();
+                msg("Failure to listen on LAN.", COLOR_RED);
+            }
+        }
+        if (transport != null) {
+            acceptor = new Thread(new Runnable() {
+                public void run() {
+                    listen();
+                }
+            }, "acceptor");
+            acceptor.start();
+        }
+    }
+
+    // Deactivate server
+    public synchronized void stop() {
+        if (!server_alive) {
+            return;
+        }
+        server_alive = false;
+        if (transport != null) {
+            try {
+                transport.close();
+            } catch (Exception e) { e.printStackTrace(); }
+        }
+        if (lan != null) {
+            lan.close();
+        }
+        executor.shutdown();
+        challenges.close();
+        for (Session session : sessions) {
+            session.close();
+        }
+        timers.stop();
+    }
+
+    public boolean isAlive() {
+        return server_alive;
+    }
+
+    // Wait until all sessions are finished after stop()
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        ThreadPoolExecutor executor;
+        Thread acceptor;
+        LanTransport lan;
+        synchronized (this) {
+            executor = this.executor;
+            acceptor = this.acceptor;
+            lan = this.lan;
+        }
+        if (executor == null) {
+            return true;
+        }
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        if (acceptor != null) {
+            acceptor.join(Math.max(1, unit.toMillis(timeout)));
+        }
+        if (lan != null) {
+            lan.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+        return executor.awaitTermination(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+    }
+
+    // Accept loop, single listener for the whole server lifetime
+    private void listen() {
+        try {
+            transport.open();
+        } catch (Exception e) {
+            e.printStackTrace();
+            msg("Failure to listen.", COLOR_RED);
+            stop();
+            return;
+        }
+
+        while (server_alive) {
+            Link link;
+            try {
+                link = transport.accept();
+            }
+            catch (Exception e) {
+                if (!server_alive) {
+                    return;
+                }
+                e.printStackTrace();
+                msg("Failure to accept.", COLOR_RED);
+                // reopen broken listener
+                try {
+                    transport.close();
+                    transport.open();
+                    continue;
+                } catch (Exception e2) {
+                    e2.printStackTrace();
+                    msg("Failure to listen.", COLOR_RED);
+                    stop();
+                    return;
+                }
+            }
+
+            admit(link);
+        }
+    }
+
+    // Admission control: refuse at once instead of queueing behind a saturated pool
+    private void admit(Link link) {
+        String address = link.getRemoteAddress();
+        if (!acquire(address)) {
+            msg("Too many sessions of " + address + ", dropping connection.", COLOR_LIGHT_RED);
+            metrics.count(Metrics.REFUSED);
+            try {
+                link.close();
+            } catch (Exception e) { e.printStackTrace(); }
+            return;
+        }
+        Session session = new Session(this, link);
+        sessions.add(session);
+        try {
+            executor.execute(session);
+        } catch (RejectedExecutionException e) {
+            msg("Server is busy, dropping connection.", COLOR_LIGHT_RED);
+            metrics.count(Metrics.BUSY);
+            session.close();
+        }
+    }
+
+    // Event-driven connection of LanTransport, null if refused; its dialogs go through execute()
+    Session attach(Link link, Codec codec) {
+        String address = link.getRemoteAddress();
+        if (!acquire(address)) {
+            msg("Too many sessions of " + address + ", dropping connection.", COLOR_LIGHT_RED);
+            metrics.count(Metrics.REFUSED);
+            return null;
+        }
+        Session session = new Session(this, link, codec);
+        sessions.add(session);
+        return session;
+    }
+
+    // Dialog of an event-driven session on a worker, false if the pool and its queue are full
+    boolean execute(Runnable dialog) {
+        try {
+            executor.execute(dialog);
+            return true;
+        } catch (RejectedExecutionException e) {
+            msg("Server is busy, dropping connection.", COLOR_LIGHT_RED);
+            metrics.count(Metrics.BUSY);
+            return false;
+        }
+    }
+
+    // Count a session of the address, false over the limit
+    private boolean acquire(String address) {
+        synchronized (per_desktop) {
+            Integer count = per_desktop.get(address);
+            int active = (count == null) ? 0 : count;
+            if ((max_per_desktop > 0) && (active >= max_per_desktop)) {
+                return false;
+            }
+            per_desktop.put(address, active + 1);
+            return true;
+        }
+    }
+
+    private void release(String address) {
+        synchronized (per_desktop) {
+            Integer count = per_desktop.get(address);
+            if ((count == null) || (count <= 1)) {
+                per_desktop.remove(address);
+            }
+            else {
+                per_desktop.put(address, count - 1);
+            }
+        }
+    }
+
+    // Sessions waiting for a worker, direct hand-off if none may wait
+    private static BlockingQueue<Runnable> pending(int max_pending) {
+        if (max_pending == 0) {
+            return new SynchronousQueue<>();
+        }
+        return new ArrayBlockingQueue<>(max_pending);
+    }
+
+    // Session finished, safe to call more than once
+    void remove(Session session) {
+        if (sessions.remove(session)) {
+            release(session.getAddress());
+        }
+    }
+
+    // Queue of accepted sessions, 0 - only to a free worker; sessions per Desktop address, 0 - no limit; applied on start()
+    public synchronized void setAdmission(int max_pending, int max_per_desktop) {
+        if ((max_pending < 0) || (max_per_desktop < 0)) {
+            throw new IllegalArgumentException("Negative admission limit");
+        }
+        this.max_pending = max_pending;
+        this.max_per_desktop = max_per_desktop;
+    }
+
+    // Stage deadlines in ms, 0 - no deadline; applied to the next stages
+    public void setTimeouts(long negotiate_timeout, long message_timeout, long send_timeout, long idle_timeout) {
+        this.negotiate_timeout = negotiate_timeout;
+        this.message_timeout = message_timeout;
+        this.send_timeout = send_timeout;
+        this.idle_timeout = idle_timeout;
+    }
+
+    // TCP port for Desktops on the LAN next to the transport, 0 - any free port, -1 - none; applied on start()
+    public synchronized void setLan(String host, int port) {
+        lan_host = host;
+        lan_port = port;
+    }
+
+    // Bound LAN port of the running server, -1 if none
+    public int getLanPort() {
+        LanTransport lan = this.lan;
+        return (lan == null) ? -1 : lan.getPort();
+    }
+
+    // Resumption ticket lifetime in ms, 0 - always challenge; applied on start()
+    public synchronized void setTicketLifetime(long ticket_lifetime) {
+        this.ticket_lifetime = ticket_lifetime;
+    }
+
+    // Refuse tickets issued until now to the address, null - to every Desktop
+    public void revokeTickets(String address) {
+        Tickets tickets = this.tickets;
+        if (tickets == null) {
+            return;
+        }
+        if (address == null) {
+            tickets.revokeAll();
+        }
+        else {
+            tickets.revoke(address);
+        }
+    }
+
+    long getNegotiateTimeout() {
+        return negotiate_timeout;
+    }
+
+    long getMessageTimeout() {
+        return message_timeout;
+    }
+
+    long getSendTimeout() {
+        return send_timeout;
+    }
+
+    long getIdleTimeout() {
+        return idle_timeout;
+    }
+
+    TimerWheel getTimers() {
+        return timers;
+    }
+
+    Console getConsole() {
+        return console;
+    }
+
+    Approver getApprover() {
+        return approver;
+    }
+
+    Challenges getChallenges() {
+        return challenges;
+    }
+
+    Tickets getTickets() {
+        return tickets;
+    }
+
+    CryptoEngine getCrypto() {
+        return crypto;
+    }
+
+    public PairingRegistry getPairings() {
+        return pairings;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    // Auto-approval rules, applied to the next requests
+    public void setPolicy(Policy policy) {
+        this.policy = policy;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Instrumentation shared with the UI, applied to new sessions
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    public Logs getLogs() {
+        return logs;
+    }
+
+    // Tracing of subsystems, applied to new sessions
+    public void setLogs(Logs logs) {
+        this.logs = logs;
+    }
+
+    public AuditLog getAudit() {
+        return audit;
+    }
+
+    // Journal of decisions, null to stop journaling
+    public void setAudit(AuditLog audit) {
+        this.audit = audit;
+    }
+
+    public ReplyCache getReplies() {
+        return replies;
+    }
+
+    // Recent decisions reused for repeated requests, null to ask every time
+    public void setReplies(ReplyCache replies) {
+        this.replies = replies;
+    }
+
+    private void msg(String string, int color) {
+        console.msg(string, color);
+    }
+
+    // Numbered daemon threads
+    static final class NamedThreadFactory implements ThreadFactory {
+        private final AtomicInteger number = new AtomicInteger();
+        private final String prefix;
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + "-" + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
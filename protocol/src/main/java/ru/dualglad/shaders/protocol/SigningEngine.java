@@ -0,0 +1,252 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+import static ru.dualglad.shaders.protocol.Console.*;
+
+/** Mobile signing server without a screen
+ *
+ * Owns what outlives any UI: keys, paired Desktops, audit journal, trace
+ * files and the session server. Transport, user decisions and output are plugged in, so
+ * the same engine is hosted by the Android service and runs on a plain JVM.
+ *
+ * Lifecycle: start() and stop() any number of times, then close().
+ * State is loaded on the first start() and kept until close().
+ *
+ */
+public final class SigningEngine {
+    public static final String KEYS_DIR = "keys";         // Mobile key pair location
+    public static final String PAIRINGS_DIR = "pairings"; // paired Desktops location
+    public static final String AUDIT_DIR = "audit";       // journal of signing decisions location
+    public static final String LOGS_DIR = "logs";         // binary trace files location
+    private static final long STOP_WAIT = 5000;           // ms, sessions finishing on close()
+
+    private final File directory;   // data location, null - generated keys and nothing saved
+    private final Console console;  // output
+    private final Approver approver; // user decisions
+    private final Metrics metrics;  // shared with the UI, kept across restarts
+    private final Logs logs = new Logs(Logs.INFO); // tracing, levels reread on every start
+
+    private int workers = SessionServer.DEFAULT_WORKERS;
+    private int max_pending = SessionServer.DEFAULT_MAX_PENDING;
+    private int max_per_desktop = SessionServer.DEFAULT_MAX_PER_DESKTOP;
+    private long[] timeouts; // negotiate, message, send, idle ms; null - server defaults
+    private String lan_host; // LAN bind address, null - all interfaces
+    private int lan_port = -1; // LAN TCP port, 0 - any, -1 - no LAN
+    private ReplyCache replies = new ReplyCache(ReplyCache.DEFAULT_CAPACITY, ReplyCache.DEFAULT_WINDOW); // kept across restarts, null - off
+
+    private CryptoEngine crypto;        // Mobile keys, loaded once
+    private PairingRegistry pairings;   // paired Desktops, loaded once
+    private AuditLog audit;             // journal of decisions, opened once, null without directory
+    private LogFile logFile;            // trace files, opened once, null without directory
+    private SessionServer server;       // current run, null when stopped
+    private boolean closed;
+
+    public SigningEngine(File directory, Console console, Approver approver, Metrics metrics) {
+        this.directory = directory;
+        this.console = console;
+        this.approver = approver;
+        this.metrics = metrics;
+    }
+
+    // Session workers, applied on the next start()
+    public synchronized void setWorkers(int workers) {
+        this.workers = workers;
+    }
+
+    // See SessionServer.setAdmission(), applied on the next start()
+    public synchronized void setAdmission(int max_pending, int max_per_desktop) {
+        this.max_pending = max_pending;
+        this.max_per_desktop = max_per_desktop;
+    }
+
+    // See SessionServer.setTimeouts(), applied on the next start()
+    public synchronized void setTimeouts(long negotiate_timeout, long message_timeout, long send_timeout, long idle_timeout) {
+        timeouts = new long[] {negotiate_timeout, message_timeout, send_timeout, idle_timeout};
+    }
+
+    // See SessionServer.setReplies(), applied on the next start()
+    public synchronized void setReplies(ReplyCache replies) {
+        this.replies = replies;
+    }
+
+    // See SessionServer.setLan(), applied on the next start()
+    public synchronized void setLan(String host, int port) {
+        lan_host = host;
+        lan_port = port;
+    }
+
+    // Serve Desktops from transport, null - LAN only; false if state could not be loaded
+    public synchronized boolean start(Transport transport) {
+        if (closed) {
+            throw new IllegalStateException("Engine is closed");
+        }
+        if (isRunning()) {
+            return true;
+        }
+        if (!load()) {
+            return false;
+        }
+        // Auto-approval rules, reread on every start
+        Policy policy = Policy.NONE;
+        if (directory != null) {
+            try {
+                policy = Policy.load(new File(directory, Policy.FILE));
+            } catch (Exception e) {
+                e.printStackTrace();
+                msg("Failure to load auto-approval rules: " + e.getMessage(), COLOR_RED);
+            }
+        }
+        // Trace levels, reread on every start
+        if (directory != null) {
+            try {
+                logs.loadLevels(new File(directory, Logs.FILE));
+            } catch (Exception e) {
+                e.printStackTrace();
+                msg("Failure to load log levels: " + e.getMessage(), COLOR_RED);
+            }
+        }
+        msg("Starting server.", COLOR_GREEN);
+        if (policy.size() > 0) {
+            msg("Auto-approval rules: " + policy.size() + ".", COLOR_YELLOW);
+        }
+        server = new SessionServer(transport, console, approver, crypto, pairings, workers);
+        server.setPolicy(policy);
+        server.setAudit(audit);
+        server.setReplies(replies);
+        server.setMetrics(metrics);
+        server.setLogs(logs);
+        server.setAdmission(max_pending, max_per_desktop);
+        server.setLan(lan_host, lan_port);
+        if (timeouts != null) {
+            server.setTimeouts(timeouts[0], timeouts[1], timeouts[2], timeouts[3]);
+        }
+        server.start();
+        return true;
+    }
+
+    // Stop serving, sessions are dropped; state stays loaded
+    public synchronized void stop() {
+        if (server == null) {
+            return;
+        }
+        msg("Stopping server.", COLOR_RED);
+        server.stop();
+        server = null;
+    }
+
+    // Stop and release state, the engine can't be started again
+    public void close() {
+        SessionServer last;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            last = server;
+            stop();
+        }
+        // sessions still append to the journal until they end
+        if (last != null) {
+            try {
+                last.awaitTermination(STOP_WAIT, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            if (pairings != null) {
+                pairings.close();
+            }
+            if (audit != null) {
+                audit.close();
+            }
+            if (logFile != null) {
+                logs.removeSink(logFile);
+                logFile.close();
+            }
+        }
+    }
+
+    // Serving, false also after the server stopped itself on a transport failure
+    public synchronized boolean isRunning() {
+        return (server != null) && server.isAlive();
+    }
+
+    // Current run, null when stopped
+    public synchronized SessionServer getServer() {
+        return server;
+    }
+
+    // Mobile keys, null before the first start()
+    public synchronized CryptoEngine getCrypto() {
+        return crypto;
+    }
+
+    // Paired Desktops, null before the first start()
+    public synchronized PairingRegistry getPairings() {
+        return pairings;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    // Levels and sinks of the tracing, changed at any time
+    public Logs getLogs() {
+        return logs;
+    }
+
+    // Recent decisions, null if off
+    public synchronized ReplyCache getReplies() {
+        return replies;
+    }
+
+    // Keys, paired Desktops, journal and trace files, each loaded once
+    private boolean load() {
+        if (crypto == null) {
+            try {
+                crypto = (directory == null) ? CryptoEngine.generate() : CryptoEngine.load(new File(directory, KEYS_DIR));
+            } catch (Exception e) {
+                e.printStackTrace();
+                msg("Failure to load Mobile keys.", COLOR_RED);
+                return false;
+            }
+        }
+        if (pairings == null) {
+            try {
+                pairings = (directory == null) ? PairingRegistry.inMemory(crypto)
+                        : PairingRegistry.load(new File(directory, PAIRINGS_DIR), crypto);
+            } catch (Exception e) {
+                e.printStackTrace();
+                msg("Failure to load paired Desktops.", COLOR_RED);
+                return false;
+            }
+        }
+        if ((audit == null) && (directory != null)) {
+            try {
+                audit = AuditLog.open(new File(directory, AUDIT_DIR));
+            } catch (Exception e) {
+                e.printStackTrace();
+                msg("Failure to open audit journal: " + e.getMessage(), COLOR_RED);
+                return false;
+            }
+        }
+        if ((logFile == null) && (directory != null)) {
+            try {
+                logFile = LogFile.open(new File(directory, LOGS_DIR), LogFile.DEFAULT_FILE_SIZE, LogFile.DEFAULT_FILES, LogFile.DEFAULT_QUEUE);
+                logs.addSink(logFile);
+            } catch (Exception e) {
+                // signing works without traces
+                e.printStackTrace();
+                msg("Failure to open trace files: " + e.getMessage(), COLOR_RED);
+            }
+        }
+        return true;
+    }
+
+    private void msg(String string, int color) {
+        console.msg(string, color);
+    }
+}
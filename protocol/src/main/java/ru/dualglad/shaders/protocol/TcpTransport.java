@@ -0,0 +1,88 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// TCP stand-in for RFCOMM, lets the server run on a plain JVM
+public class TcpTransport implements Transport {
+    private final String host; // bind address, null - all interfaces
+    private final int port;    // 0 - any free port
+    private volatile ServerSocket serverSocket;
+
+    public TcpTransport(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    public void open() throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind((host == null) ? new InetSocketAddress(port) : new InetSocketAddress(host, port));
+        serverSocket = socket;
+    }
+
+    public Link accept() throws IOException {
+        ServerSocket socket = serverSocket;
+        if (socket == null) {
+            throw new IOException("Transport is closed");
+        }
+        return new SocketLink(socket.accept());
+    }
+
+    public void close() throws IOException {
+        ServerSocket socket = serverSocket;
+        serverSocket = null;
+        if (socket != null) {
+            socket.close();
+        }
+    }
+
+    // Bound port, -1 if not listening
+    public int getPort() {
+        ServerSocket socket = serverSocket;
+        return (socket == null) ? -1 : socket.getLocalPort();
+    }
+
+    // Desktop side: connect to the server
+    public static Link connect(String host, int port) throws IOException {
+        return new SocketLink(new Socket(host, port));
+    }
+
+    // Connected socket, the Desktop is identified by its IP like a BT device by its address
+    private static final class SocketLink implements Link {
+        private final Socket socket;
+        private final String address;
+        private final String name;
+
+        private SocketLink(Socket socket) throws IOException {
+            this.socket = socket;
+            socket.setTcpNoDelay(true);
+            address = socket.getInetAddress().getHostAddress();
+            name = address + ":" + socket.getPort();
+        }
+
+        public InputStream getInputStream() throws IOException {
+            return socket.getInputStream();
+        }
+
+        public OutputStream getOutputStream() throws IOException {
+            return socket.getOutputStream();
+        }
+
+        public String getRemoteAddress() {
+            return address;
+        }
+
+        public String getRemoteName() {
+            return name;
+        }
+
+        public void close() throws IOException {
+            socket.close();
+        }
+    }
+}
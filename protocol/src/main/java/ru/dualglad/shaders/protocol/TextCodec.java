@@ -0,0 +1,101 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+
+/** Legacy text format
+ *
+ * Every message is a line: type + {SEPARATOR} + field + {SEPARATOR} + ...
+ * Every received line is acknowledged with an empty line.
+ *
+ */
+public final class TextCodec implements Codec {
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MAX_LINE = 1 << 20; // bytes
+
+    private final InputStream inputStream;   // buffered input
+    private final OutputStream outputStream; // output
+    private byte[] line = new byte[256];     // current line, reused
+    private int length;                      // current line length
+
+    public TextCodec(InputStream inputStream, OutputStream outputStream) {
+        this.inputStream = inputStream;
+        this.outputStream = outputStream;
+    }
+
+    public boolean receive(Frame frame) throws IOException {
+        if (!readLine()) {
+            return false;
+        }
+        // ACK
+        outputStream.write('\n');
+        outputStream.flush();
+
+        parse(line, length, frame);
+        return true;
+    }
+
+    public void send(Frame frame) throws IOException {
+        byte[] bytes = frame.toString().getBytes(UTF_8);
+        outputStream.write(bytes);
+        outputStream.write('\n');
+        outputStream.flush();
+
+        // ACK
+        if (!readLine() || (length != 0)) {
+            throw new IOException("No ACK");
+        }
+    }
+
+    // Split line on SEPARATOR like String.split(): trailing empty fields are dropped
+    public static void parse(byte[] line, int length, Frame frame) {
+        int end = length;
+        while ((end > 0) && (line[end - 1] == ':')) {
+            end--;
+        }
+        int start = 0;
+        boolean first = true;
+        for (int i = 0; i <= end; i++) {
+            if ((i == end) || (line[i] == ':')) {
+                String part = new String(line, start, i - start, UTF_8);
+                if (first) {
+                    frame.set(part);
+                    first = false;
+                }
+                else {
+                    frame.add(part);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    // Read line without terminator, false on end of stream
+    private boolean readLine() throws IOException {
+        length = 0;
+        while (true) {
+            int b = inputStream.read();
+            if (b < 0) {
+                return length > 0;
+            }
+            if (b == '\n') {
+                break;
+            }
+            if (length == line.length) {
+                if (length == MAX_LINE) {
+                    throw new IOException("Line too long");
+                }
+                byte[] grown = new byte[Math.min(line.length * 2, MAX_LINE)];
+                System.arraycopy(line, 0, grown, 0, length);
+                line = grown;
+            }
+            line[length++] = (byte)b;
+        }
+        if ((length > 0) && (line[length - 1] == '\r')) {
+            length--;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,139 @@
+package ru.dualglad.shaders.protocol;
+
+import java.nio.charset.Charset;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+/** Resumption tickets: a proven Desktop skips the "sign" challenge for a while
+ *
+ * Ticket (hex) = [issued:8] + HMAC-SHA256(secret, issued + address + public key)[0:16]
+ * Only this Mobile can make or check one, and it is worthless for another
+ * address or after the Desktop is paired with a new key. The secret lives in
+ * memory only, so a server restart revokes every ticket. Like the rest of
+ * the dialog a ticket goes over the link in clear, hence the short lifetime.
+ *
+ */
+public final class Tickets {
+    public static final long DEFAULT_LIFETIME = 60000; // ms
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final int SECRET = 32; // bytes
+    private static final int TIME = 8;    // bytes
+    private static final int TAG = 16;    // bytes of MAC kept
+    private static final long SKEW = 1000; // ms, clock step tolerated for "issued in the future"
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public static final int OK = 0;
+    public static final int EXPIRED = 1; // older than the lifetime
+    public static final int REVOKED = 2; // issued before a revocation
+    public static final int INVALID = 3; // malformed, forged or for another Desktop
+
+    private final long lifetime; // ms
+    private final ConcurrentHashMap<String, Long> revoked = new ConcurrentHashMap<>(); // address -> tickets issued before are invalid
+    private volatile SecretKeySpec secret; // created on first use, SecureRandom may block
+    private volatile long revoked_all;     // ms, tickets issued before are invalid
+
+    // Engines are not thread safe, one per thread
+    private static final ThreadLocal<Mac> macs = new ThreadLocal<Mac>() {
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(MAC_ALGORITHM);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    public Tickets(long lifetime) {
+        this.lifetime = lifetime;
+    }
+
+    public String issue(Desktop desktop) {
+        long now = System.currentTimeMillis();
+        byte[] ticket = new byte[TIME + TAG];
+        for (int i = 0; i < TIME; i++) {
+            ticket[i] = (byte)(now >>> (8 * (TIME - 1 - i)));
+        }
+        System.arraycopy(tag(now, desktop), 0, ticket, TIME, TAG);
+        return Hex.encode(ticket);
+    }
+
+    // OK if the ticket was issued by this Mobile to the Desktop within the lifetime
+    public int check(String ticket, Desktop desktop) {
+        byte[] bytes;
+        try {
+            bytes = Hex.decode(ticket);
+        } catch (IllegalArgumentException e) {
+            return INVALID;
+        }
+        if (bytes.length != TIME + TAG) {
+            return INVALID;
+        }
+        long issued = 0;
+        for (int i = 0; i < TIME; i++) {
+            issued = (issued << 8) | (bytes[i] & 0xff);
+        }
+        byte[] tag = tag(issued, desktop);
+        byte[] presented = new byte[TAG];
+        System.arraycopy(bytes, TIME, presented, 0, TAG);
+        if (!MessageDigest.isEqual(tag, presented)) {
+            return INVALID;
+        }
+        long now = System.currentTimeMillis();
+        if ((issued > now + SKEW) || (now - issued > lifetime)) {
+            return EXPIRED;
+        }
+        Long revoked_at = revoked.get(desktop.address);
+        if ((issued <= revoked_all) || ((revoked_at != null) && (issued <= revoked_at))) {
+            return REVOKED;
+        }
+        return OK;
+    }
+
+    // Tickets of the address issued until now are refused
+    public void revoke(String address) {
+        revoked.put(address, System.currentTimeMillis());
+    }
+
+    // All tickets issued until now are refused
+    public void revokeAll() {
+        revoked_all = System.currentTimeMillis();
+        revoked.clear();
+    }
+
+    private byte[] tag(long issued, Desktop desktop) {
+        try {
+            Mac mac = macs.get();
+            mac.init(secret());
+            for (int i = 0; i < TIME; i++) {
+                mac.update((byte)(issued >>> (8 * (TIME - 1 - i))));
+            }
+            mac.update(desktop.address.getBytes(UTF_8));
+            mac.update((byte)0);
+            mac.update(desktop.publickey.getBytes(UTF_8));
+            byte[] tag = new byte[TAG];
+            System.arraycopy(mac.doFinal(), 0, tag, 0, TAG);
+            return tag;
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private SecretKeySpec secret() {
+        SecretKeySpec key = secret;
+        if (key == null) {
+            synchronized (this) {
+                key = secret;
+                if (key == null) {
+                    byte[] bytes = new byte[SECRET];
+                    new SecureRandom().nextBytes(bytes);
+                    secret = key = new SecretKeySpec(bytes, MAC_ALGORITHM);
+                }
+            }
+        }
+        return key;
+    }
+}
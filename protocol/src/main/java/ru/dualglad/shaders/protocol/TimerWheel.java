@@ -0,0 +1,181 @@
+package ru.dualglad.shaders.protocol;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Hashed timer wheel for many short-lived timeouts
+ *
+ * One thread advances the wheel every tick and runs expired tasks, so
+ * arming and cancelling a timeout is a queue offer and a CAS.
+ * Deadlines are rounded up to the tick. Tasks run on the wheel thread and
+ * must be short, e.g. closing a link.
+ *
+ */
+public final class TimerWheel {
+    private static final int PENDING = 0;
+    private static final int CANCELLED = 1;
+    private static final int EXPIRED = 2;
+
+    private final long tick;          // ns
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final Thread worker;
+    private final long start;         // ns
+    private volatile boolean running = true;
+    private long ticks;               // worker thread only, ticks done
+
+    // Armed task, cancel() when the guarded stage is over
+    public static final class Timeout {
+        private final TimerWheel timer;
+        private final Runnable task;
+        private final long deadline; // ns since timer start
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        // worker thread only
+        private long rounds;
+        private Bucket bucket;
+        private Timeout previous;
+        private Timeout next;
+
+        private Timeout(TimerWheel timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        // false if the task already ran
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED)) {
+                return false;
+            }
+            timer.cancelled.offer(this);
+            return true;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+    }
+
+    // Doubly linked list of timeouts, worker thread only
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            }
+            else {
+                tail.next = timeout;
+                timeout.previous = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            if (timeout.previous != null) {
+                timeout.previous.next = timeout.next;
+            }
+            else {
+                head = timeout.next;
+            }
+            if (timeout.next != null) {
+                timeout.next.previous = timeout.previous;
+            }
+            else {
+                tail = timeout.previous;
+            }
+            timeout.previous = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    // size is rounded up to a power of two
+    public TimerWheel(long tick, TimeUnit unit, int size, String name) {
+        this.tick = Math.max(1, unit.toNanos(tick));
+        int buckets = Integer.highestOneBit(Math.max(1, size - 1)) << 1;
+        wheel = new Bucket[buckets];
+        for (int i = 0; i < buckets; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = buckets - 1;
+        start = System.nanoTime();
+        worker = new Thread(new Runnable() {
+            public void run() {
+                work();
+            }
+        }, name);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Run task after delay unless cancelled
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        Timeout timeout = new Timeout(this, task, System.nanoTime() - start + unit.toNanos(delay));
+        added.offer(timeout);
+        return timeout;
+    }
+
+    // Pending timeouts are dropped without running
+    public void stop() {
+        running = false;
+        worker.interrupt();
+    }
+
+    private void work() {
+        while (running) {
+            long deadline = tick * (ticks + 1);
+            long sleep = deadline - (System.nanoTime() - start);
+            if (sleep > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleep);
+                } catch (InterruptedException e) {
+                    continue;
+                }
+            }
+            Timeout timeout;
+            while ((timeout = cancelled.poll()) != null) {
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+            while ((timeout = added.poll()) != null) {
+                if (timeout.state.get() != PENDING) {
+                    continue;
+                }
+                long due = Math.max(timeout.deadline / tick, ticks); // not in the past
+                timeout.rounds = (due - ticks) / wheel.length;
+                wheel[(int)(due & mask)].add(timeout);
+            }
+            expire(wheel[(int)(ticks & mask)], deadline);
+            ticks++;
+        }
+    }
+
+    private void expire(Bucket bucket, long now) {
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            if (timeout.state.get() != PENDING) {
+                bucket.remove(timeout);
+            }
+            else if (timeout.rounds > 0) {
+                timeout.rounds--;
+            }
+            else if (timeout.deadline <= now) {
+                bucket.remove(timeout);
+                if (timeout.state.compareAndSet(PENDING, EXPIRED)) {
+                    try {
+                        timeout.task.run();
+                    } catch (RuntimeException e) { e.printStackTrace(); }
+                }
+            }
+            timeout = next;
+        }
+    }
+}
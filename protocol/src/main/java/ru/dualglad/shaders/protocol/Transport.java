@@ -0,0 +1,15 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.IOException;
+
+// Source of Desktop connections (BT, loopback, ...)
+public interface Transport {
+    // Start listening
+    void open() throws IOException;
+
+    // Wait for the next Desktop, fails after close()
+    Link accept() throws IOException;
+
+    // Stop listening, unblocks accept()
+    void close() throws IOException;
+}
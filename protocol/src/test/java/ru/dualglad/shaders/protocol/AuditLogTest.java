@@ -0,0 +1,83 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// Audit journal: index agrees with the file, chain survives a reopen
+public class AuditLogTest {
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        directory = File.createTempFile("audit", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        PairingRegistryTest.delete(directory);
+    }
+
+    @Test
+    public void outOfOrderTimesIndexedAsWritten() throws Exception {
+        // sessions queue records out of order, the journal keeps times non-decreasing
+        long[] times = {1000, 3000, 2000, 4000, 1500};
+        AuditLog log = AuditLog.open(directory);
+        for (int i = 0; i < times.length; i++) {
+            log.append(entry(times[i], (i % 2 == 0) ? "AA:01" : "AA:02", i));
+        }
+        log.flush();
+        assertQueries(log);
+        log.close();
+
+        log = AuditLog.open(directory);
+        assertEquals(times.length, log.size());
+        assertQueries(log);
+        log.close();
+    }
+
+    @Test(expected = IOException.class)
+    public void editedRecordBreaksChain() throws Exception {
+        AuditLog log = AuditLog.open(directory);
+        log.append(entry(1000, "AA:01", 0));
+        log.append(entry(2000, "AA:01", 1));
+        log.close();
+
+        RandomAccessFile file = new RandomAccessFile(new File(directory, AuditLog.FILE), "rw");
+        try {
+            file.seek(4 + 8); // decision of the first record
+            file.write(AuditLog.REJECTED);
+        } finally {
+            file.close();
+        }
+        AuditLog.open(directory);
+    }
+
+    // Written times are 1000, 3000, 3000, 4000, 4000
+    private static void assertQueries(AuditLog log) throws Exception {
+        assertEquals(0, log.byTime(1900, 2100).size());
+        assertTimes(log.byTime(3000, 3001), 3000, 3000);
+        assertTimes(log.byTime(0, 3500), 1000, 3000, 3000);
+        assertTimes(log.byTime(3500, Long.MAX_VALUE), 4000, 4000);
+        assertTimes(log.byDesktop("AA:01", 0, 3500), 1000, 3000);
+        assertTimes(log.byDesktop("AA:02", 3500, 5000), 4000);
+    }
+
+    private static void assertTimes(List<AuditLog.Entry> entries, long... times) {
+        assertEquals(times.length, entries.size());
+        for (int i = 0; i < times.length; i++) {
+            assertEquals(times[i], entries.get(i).time);
+        }
+    }
+
+    private static AuditLog.Entry entry(long time, String address, int number) {
+        return new AuditLog.Entry(time, AuditLog.ACCEPTED, address, "challenge", "amount=" + number, "part " + number, "signature");
+    }
+}
@@ -0,0 +1,141 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// FrameCodec and TextCodec: what one side sends the other receives
+public class CodecTest {
+    @Test
+    public void frameRoundTrip() throws IOException {
+        Frame[] frames = {
+                new Frame().set(Dialog.PING),
+                new Frame().set(Dialog.REQUEST).add("amount=10;payee=ACME;").add("part"),
+                new Frame().set(Dialog.ANSWER).add("").add("подпись ✓").add(""),
+                many(Dialog.BATCH_REQUEST, 100),
+        };
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        FrameCodec sender = new FrameCodec(new ByteArrayInputStream(new byte[0]), wire);
+        for (Frame frame : frames) {
+            sender.send(frame);
+        }
+        FrameCodec receiver = new FrameCodec(new ByteArrayInputStream(wire.toByteArray()), new ByteArrayOutputStream());
+        Frame in = new Frame();
+        for (Frame frame : frames) {
+            assertTrue(receiver.receive(in));
+            assertFrame(frame, in);
+        }
+        assertFalse(receiver.receive(in));
+    }
+
+    @Test
+    public void frameEncodeDecode() throws IOException {
+        Frame out = new Frame().set(Dialog.STREAM_REQUEST).add("3").add("1");
+        FrameCodec codec = new FrameCodec(null, null);
+        ByteBuffer encoded = codec.encode(out);
+        ByteBuffer copy = ByteBuffer.allocate(encoded.remaining());
+        copy.put(encoded).flip();
+        Frame in = new Frame();
+        codec.decode(copy, in);
+        assertFrame(out, in);
+    }
+
+    @Test
+    public void frameNegotiation() throws IOException {
+        ByteArrayOutputStream desktop_out = new ByteArrayOutputStream();
+        byte[] mobile_reply = {(byte)Dialog.FRAME_MAGIC, (byte)Dialog.FRAME_VERSION};
+        FrameCodec desktop = new FrameCodec(new ByteArrayInputStream(mobile_reply), desktop_out);
+        assertEquals(Dialog.FRAME_VERSION, desktop.connect());
+
+        byte[] hello = desktop_out.toByteArray();
+        assertEquals(Dialog.FRAME_MAGIC, hello[0] & 0xff);
+        ByteArrayOutputStream mobile_out = new ByteArrayOutputStream();
+        // Mobile reads the magic byte itself, accept() reads the version
+        FrameCodec mobile = new FrameCodec(new ByteArrayInputStream(hello, 1, 1), mobile_out);
+        assertEquals(Dialog.FRAME_VERSION, mobile.accept());
+        assertArrayEquals(mobile_reply, mobile_out.toByteArray());
+    }
+
+    @Test(expected = IOException.class)
+    public void frameBadLength() throws IOException {
+        byte[] bytes = {0, 0x7f, 0, 0, 1, 0, 0};
+        new FrameCodec(new ByteArrayInputStream(bytes), null).receive(new Frame());
+    }
+
+    @Test(expected = IOException.class)
+    public void frameTruncated() throws IOException {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        new FrameCodec(null, wire).send(new Frame().set(Dialog.REQUEST).add("message").add("part"));
+        byte[] bytes = wire.toByteArray();
+        new FrameCodec(new ByteArrayInputStream(Arrays.copyOf(bytes, bytes.length - 2)), null).receive(new Frame());
+    }
+
+    @Test(expected = IOException.class)
+    public void frameUnknownType() throws IOException {
+        new FrameCodec(null, new ByteArrayOutputStream()).send(new Frame().set("no_such_type"));
+    }
+
+    @Test
+    public void textRoundTrip() throws IOException {
+        Frame[] frames = {
+                new Frame().set(Dialog.PING),
+                new Frame().set(Dialog.REQUEST).add("amount=10;payee=ACME;").add("part"),
+                new Frame().set(Dialog.ANSWER).add("").add("подпись ✓"),
+                many(Dialog.BATCH_REQUEST, 100),
+        };
+        // every line is acknowledged by an empty line
+        byte[] acks = new byte[frames.length];
+        Arrays.fill(acks, (byte)'\n');
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        TextCodec sender = new TextCodec(new ByteArrayInputStream(acks), wire);
+        for (Frame frame : frames) {
+            sender.send(frame);
+        }
+        ByteArrayOutputStream receiver_acks = new ByteArrayOutputStream();
+        TextCodec receiver = new TextCodec(new ByteArrayInputStream(wire.toByteArray()), receiver_acks);
+        Frame in = new Frame();
+        for (Frame frame : frames) {
+            assertTrue(receiver.receive(in));
+            assertFrame(frame, in);
+        }
+        assertFalse(receiver.receive(in));
+        assertArrayEquals(acks, receiver_acks.toByteArray());
+    }
+
+    @Test
+    public void textDropsTrailingEmptyFields() throws IOException {
+        byte[] line = "answer:signed::\r\n".getBytes("UTF-8");
+        Frame in = new Frame();
+        assertTrue(new TextCodec(new ByteArrayInputStream(line), new ByteArrayOutputStream()).receive(in));
+        assertEquals("answer", in.type());
+        assertEquals(1, in.count());
+        assertEquals("signed", in.field(0));
+    }
+
+    @Test(expected = IOException.class)
+    public void textNoAck() throws IOException {
+        new TextCodec(new ByteArrayInputStream("x\n".getBytes("UTF-8")), new ByteArrayOutputStream())
+                .send(new Frame().set(Dialog.PING));
+    }
+
+    private static Frame many(String type, int count) {
+        Frame frame = new Frame().set(type);
+        for (int i = 0; i < count; i++) {
+            frame.add("field " + i);
+        }
+        return frame;
+    }
+
+    private static void assertFrame(Frame expected, Frame actual) {
+        assertEquals(expected.type(), actual.type());
+        assertEquals(expected.count(), actual.count());
+        for (int i = 0; i < expected.count(); i++) {
+            assertEquals(expected.field(i), actual.field(i));
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package ru.dualglad.shaders.protocol;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// EventBus on a plain JVM: wake-ups, batches and concurrent producers
+public class EventBusTest {
+    // Counts wake-ups instead of scheduling drain()
+    static final class CountingWaker implements EventBus.Waker {
+        final AtomicInteger wakes = new AtomicInteger();
+
+        public void wake() {
+            wakes.incrementAndGet();
+        }
+    }
+
+    // Keeps handled events
+    static final class Collector implements EventBus.Listener {
+        final List<Event> events = new ArrayList<>();
+
+        public void onEvent(Event event) {
+            events.add(event);
+        }
+    }
+
+    @Test
+    public void wakesOncePerBatchInOrder() {
+        CountingWaker waker = new CountingWaker();
+        EventBus bus = new EventBus(waker);
+        for (int i = 0; i < 10; i++) {
+            bus.post(Event.print("line " + i, Console.COLOR_WHITE));
+        }
+        assertEquals(1, waker.wakes.get());
+
+        Collector collector = new Collector();
+        assertEquals(10, bus.drain(collector, 100));
+        for (int i = 0; i < 10; i++) {
+            assertEquals("line " + i, collector.events.get(i).text);
+        }
+        assertEquals(1, waker.wakes.get());
+
+        bus.post(Event.HIDE);
+        assertEquals(2, waker.wakes.get());
+    }
+
+    @Test
+    public void rescheduleWhenMoreThanMaxLeft() {
+        CountingWaker waker = new CountingWaker();
+        EventBus bus = new EventBus(waker);
+        for (int i = 0; i < 5; i++) {
+            bus.post(Event.print("line " + i, Console.COLOR_WHITE));
+        }
+        Collector collector = new Collector();
+        assertEquals(2, bus.drain(collector, 2));
+        assertEquals(2, waker.wakes.get());
+        assertEquals(2, bus.drain(collector, 2));
+        assertEquals(1, bus.drain(collector, 2));
+        assertEquals(3, waker.wakes.get());
+        assertEquals(0, bus.drain(collector, 2));
+        assertEquals(5, collector.events.size());
+    }
+
+    @Test
+    public void keepsEveryEventOfConcurrentProducers() throws Exception {
+        final int producers = 4;
+        final int per_producer = 10000;
+        CountingWaker waker = new CountingWaker();
+        final EventBus bus = new EventBus(waker);
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; p++) {
+            final int number = p;
+            threads[p] = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < per_producer; i++) {
+                        bus.post(new Event(Event.PRINT, null, number * per_producer + i));
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        // consumer drains while producers post
+        Collector collector = new Collector();
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while ((collector.events.size() < producers * per_producer) && (System.nanoTime() < deadline)) {
+            bus.drain(collector, 256);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(producers * per_producer, collector.events.size());
+
+        // events of one producer keep their order
+        int[] last = new int[producers];
+        for (Event event : collector.events) {
+            int producer = event.color / per_producer;
+            int i = event.color % per_producer;
+            assertEquals(last[producer], i);
+            last[producer] = i + 1;
+        }
+    }
+
+    @Test
+    public void busConsolePostsLines() {
+        CountingWaker waker = new CountingWaker();
+        EventBus bus = new EventBus(waker);
+        new BusConsole(bus, false).msgdbg("hidden");
+        BusConsole console = new BusConsole(bus, true);
+        console.msg("shown", Console.COLOR_GREEN);
+        console.msgdbg("debug");
+
+        Collector collector = new Collector();
+        bus.drain(collector, 100);
+        assertEquals(2, collector.events.size());
+        assertEquals(Event.PRINT, collector.events.get(0).type);
+        assertEquals("shown", collector.events.get(0).text);
+        assertEquals(Console.COLOR_GREEN, collector.events.get(0).color);
+        assertTrue(collector.events.get(1).text.contains("debug"));
+    }
+}
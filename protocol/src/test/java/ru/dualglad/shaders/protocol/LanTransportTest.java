@@ -0,0 +1,237 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import static ru.dualglad.shaders.protocol.SessionServerTest.SILENT;
+
+// LanTransport on localhost, Desktops driven by DesktopClient and raw sockets
+public class LanTransportTest {
+    private static final String HOST = "127.0.0.1"; // the Mobile knows the Desktop by this IP
+    private static final int PING_FIELD = 64 << 10;  // ping padding, fills the socket buffers quickly
+
+    // Answers once released, counts the questions
+    static final class HeldUser implements Approver {
+        final AtomicInteger asked = new AtomicInteger();
+        final CountDownLatch first = new CountDownLatch(1); // first question is being asked
+        final CountDownLatch release = new CountDownLatch(1);
+
+        public int askUser(String question, int color) {
+            asked.incrementAndGet();
+            first.countDown();
+            try {
+                return release.await(10, TimeUnit.SECONDS) ? Approval.ACCEPTED : Approval.EXPIRED;
+            } catch (InterruptedException e) {
+                return Approval.CANCELLED;
+            }
+        }
+    }
+
+    private final CryptoEngine desktop;
+    private CryptoEngine mobile;
+    private SessionServer server;
+    private int port;
+    private ExecutorService pool;
+
+    public LanTransportTest() throws Exception {
+        desktop = CryptoEngine.generate();
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        mobile = CryptoEngine.generate();
+        pool = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        pool.shutdownNow();
+        if (server != null) {
+            server.stop();
+            assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void signsOverKeepAliveLink() throws Exception {
+        start(new SessionServerTest.ScriptedUser(true), 2, 0, 0);
+        DesktopClient client = open(true);
+        for (int i = 0; i < 3; i++) {
+            String signed = client.request("amount=" + i + ";", "part " + i);
+            assertNotNull(signed);
+            assertTrue(mobile.verify(mobile.parsePublickey(mobile.getPublickey()), "part " + i, signed));
+            assertTrue(client.ping());
+        }
+        client.close();
+    }
+
+    @Test
+    public void answersControlMessagesWhileWorkersAreBusy() throws Exception {
+        final HeldUser user = new HeldUser();
+        // one worker and one queue slot, both taken by the dialog waiting for the user
+        start(user, 1, 1, 0);
+        Future<String> signed = request(open(true));
+        assertTrue(user.first.await(5, TimeUnit.SECONDS));
+        DesktopClient[] idle = new DesktopClient[8];
+        for (int i = 0; i < idle.length; i++) {
+            idle[i] = open(true);
+            assertTrue(idle[i].ping());
+        }
+        for (DesktopClient client : idle) {
+            client.close();
+        }
+        user.release.countDown();
+        assertNotNull(signed.get(10, TimeUnit.SECONDS));
+        assertEquals(0, server.getMetrics().snapshot().events(Metrics.BUSY));
+    }
+
+    @Test
+    public void refusesTextFormat() throws Exception {
+        SessionServerTest.ScriptedUser user = new SessionServerTest.ScriptedUser(true);
+        start(user, 2, 0, 0);
+        Socket socket = new Socket(HOST, port);
+        try {
+            socket.setSoTimeout(5000);
+            OutputStream outputStream = socket.getOutputStream();
+            outputStream.write("pubkey:key\n".getBytes("UTF-8"));
+            outputStream.flush();
+            // dropped without an acknowledgement
+            assertEquals(-1, socket.getInputStream().read());
+        } finally {
+            socket.close();
+        }
+        assertEquals(0, user.asked.get());
+    }
+
+    @Test
+    public void hangUpInsideFrameEndsSession() throws Exception {
+        // one session per Desktop: the next link is admitted only after the hung up one ended
+        start(new SessionServerTest.ScriptedUser(true), 2, 0, 1);
+        Socket socket = new Socket(HOST, port);
+        socket.setSoTimeout(5000);
+        OutputStream outputStream = socket.getOutputStream();
+        outputStream.write(new byte[] {(byte)Dialog.FRAME_MAGIC, (byte)Dialog.FRAME_VERSION});
+        outputStream.flush();
+        InputStream inputStream = socket.getInputStream();
+        assertEquals(Dialog.FRAME_MAGIC, inputStream.read());
+        assertEquals(Dialog.FRAME_VERSION, inputStream.read());
+        outputStream.write(new byte[] {0, 0, 1, 0, (byte)Dialog.code(Dialog.REQUEST)});
+        outputStream.flush();
+        socket.close();
+        assertNotNull(requestAdmitted());
+    }
+
+    @Test
+    public void hangUpDuringDialogEndsSession() throws Exception {
+        HeldUser user = new HeldUser();
+        start(user, 2, 0, 1);
+        Link link = TcpTransport.connect(HOST, port);
+        DesktopClient client = new DesktopClient(link, desktop);
+        client.open(true, true);
+        Future<String> signed = request(client);
+        assertTrue(user.first.await(5, TimeUnit.SECONDS));
+        link.close();
+        try {
+            signed.get(10, TimeUnit.SECONDS);
+            fail("answer received on a closed link");
+        } catch (Exception e) {
+            // link closed under the request
+        }
+        user.release.countDown();
+        assertNotNull(requestAdmitted());
+    }
+
+    @Test
+    public void pausesReadingWhileDialogWaits() throws Exception {
+        HeldUser user = new HeldUser();
+        start(user, 1, 0, 0);
+        Link link = TcpTransport.connect(HOST, port);
+        DesktopClient client = new DesktopClient(link, desktop);
+        client.open(true, true);
+        Future<String> signed = request(client);
+        assertTrue(user.first.await(5, TimeUnit.SECONDS));
+
+        // pings queued behind the dialog: more than the inbox and both socket buffers hold
+        final FrameCodec pings = new FrameCodec(null, new BufferedOutputStream(link.getOutputStream(), PING_FIELD));
+        final Frame ping = new Frame().set(Dialog.PING).add(new String(new char[PING_FIELD]).replace('\0', 'p'));
+        final int count = LanTransport.MAX_INBOX * 16;
+        Future<Void> written = pool.submit(new Callable<Void>() {
+            public Void call() throws IOException {
+                for (int i = 0; i < count; i++) {
+                    pings.send(ping);
+                }
+                return null;
+            }
+        });
+        try {
+            written.get(1, TimeUnit.SECONDS);
+            fail("Mobile kept reading while the dialog waited");
+        } catch (TimeoutException e) {
+            // Desktop held back by TCP
+        }
+
+        user.release.countDown();
+        assertNotNull(signed.get(10, TimeUnit.SECONDS));
+        written.get(10, TimeUnit.SECONDS);
+        client.close();
+    }
+
+    private void start(Approver user, int workers, int max_pending, int max_per_desktop) throws Exception {
+        server = new SessionServer(null, SILENT, user, mobile, PairingRegistry.inMemory(mobile), workers);
+        server.setAdmission((max_pending > 0) ? max_pending : SessionServer.DEFAULT_MAX_PENDING, max_per_desktop);
+        server.setLan(HOST, 0);
+        server.start();
+        port = server.getLanPort();
+        assertTrue(port > 0);
+        server.getPairings().put(new Desktop(HOST, "desktop", desktop.getPublickey(), mobile.parsePublickey(desktop.getPublickey())));
+    }
+
+    private DesktopClient open(boolean keepalive) throws IOException {
+        DesktopClient client = new DesktopClient(TcpTransport.connect(HOST, port), desktop);
+        client.open(true, keepalive);
+        return client;
+    }
+
+    private Future<String> request(final DesktopClient client) {
+        return pool.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return client.request("amount=1;", "part");
+            }
+        });
+    }
+
+    // Signed request on a new link, retried while the Desktop is still over its session limit
+    private String requestAdmitted() throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (true) {
+            try {
+                DesktopClient client = open(false);
+                try {
+                    return client.request("amount=2;", "after hang-up");
+                } finally {
+                    client.close();
+                }
+            } catch (IOException e) {
+                if (System.nanoTime() > deadline) {
+                    throw e;
+                }
+                Thread.sleep(5);
+            }
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// PairingRegistry files: journal and snapshot survive a reopen
+public class PairingRegistryTest {
+    private CryptoEngine crypto;
+    private File directory;
+
+    @Before
+    public void setUp() throws Exception {
+        crypto = CryptoEngine.generate();
+        directory = File.createTempFile("pairings", "");
+        assertTrue(directory.delete());
+    }
+
+    @After
+    public void tearDown() {
+        delete(directory);
+    }
+
+    @Test
+    public void keepsDesktopWithoutName() throws Exception {
+        CryptoEngine desktop = CryptoEngine.generate();
+        PairingRegistry registry = PairingRegistry.load(directory, crypto);
+        // BluetoothDevice.getName() is null for a device that has not told its name
+        registry.put(new Desktop("AA:01", null, desktop.getPublickey(), crypto.parsePublickey(desktop.getPublickey())));
+        assertEquals("", registry.get("AA:01").name);
+        registry.close();
+
+        registry = PairingRegistry.load(directory, crypto);
+        Desktop loaded = registry.get("AA:01");
+        registry.close();
+        assertNotNull(loaded);
+        assertEquals("", loaded.name);
+        assertEquals(desktop.getPublickey(), loaded.publickey);
+    }
+
+    @Test
+    public void reopensPutAndRemove() throws Exception {
+        CryptoEngine desktop = CryptoEngine.generate();
+        PairingRegistry registry = PairingRegistry.load(directory, crypto);
+        for (int i = 0; i < 3; i++) {
+            registry.put(new Desktop("AA:0" + i, "desktop " + i, desktop.getPublickey(), crypto.parsePublickey(desktop.getPublickey())));
+        }
+        assertTrue(registry.remove("AA:01"));
+        assertFalse(registry.remove("AA:09"));
+        registry.close();
+
+        registry = PairingRegistry.load(directory, crypto);
+        assertEquals("desktop 0", registry.get("AA:00").name);
+        assertNull(registry.get("AA:01"));
+        assertEquals("desktop 2", registry.get("AA:02").name);
+        assertEquals(2, registry.list().size());
+        registry.close();
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,115 @@
+package ru.dualglad.shaders.protocol;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// Auto-approval rules: keys are anchored, malformed amounts match nothing
+public class PolicyTest {
+    private static final String ADDRESS = "AA:01";
+
+    private final Policy.Context context = new Policy.Context();
+
+    @Test
+    public void amountBelowLimit() {
+        Policy policy = Policy.compile("amount < 100");
+        assertEquals(0, match(policy, "amount=99"));
+        assertEquals(0, match(policy, "amount=99.99"));
+        assertEquals(0, match(policy, "id=1;amount=99;payee=ACME"));
+        assertEquals(0, match(policy, "amount=99 ;payee=ACME"));
+        assertEquals(-1, match(policy, "amount=100"));
+        assertEquals(-1, match(policy, "amount=99999"));
+        assertEquals(-1, match(policy, "payee=ACME"));
+    }
+
+    @Test
+    public void groupedAmountIsNoAmount() {
+        Policy policy = Policy.compile("amount < 100");
+        assertEquals(-1, match(policy, "amount=1,000,000"));
+        assertEquals(-1, match(policy, "amount=1 000 000;amount_note=x"));
+        assertEquals(-1, match(policy, "amount=99 EUR"));
+    }
+
+    @Test
+    public void exponentAmountIsNoAmount() {
+        Policy policy = Policy.compile("amount < 100");
+        assertEquals(-1, match(policy, "amount=5e6"));
+        assertEquals(-1, match(policy, "amount=99k"));
+        assertEquals(-1, match(policy, "amount=1.005"));
+        assertEquals(-1, match(policy, "amount=-5"));
+    }
+
+    @Test
+    public void hugeAmountIsNoAmount() {
+        Policy policy = Policy.compile("amount < 100");
+        // 17 digits: fits in cents, up to Long.MAX_VALUE
+        assertEquals(9000000000000000000L, Policy.amount("amount=90000000000000000;payee=X"));
+        assertEquals(9000000000000000099L, Policy.amount("amount=90000000000000000.99"));
+        assertEquals(Long.MAX_VALUE, Policy.amount("amount=92233720368547758.07"));
+        assertEquals(Policy.NO_AMOUNT, Policy.amount("amount=92233720368547758.08"));
+        assertEquals(-1, match(policy, "amount=90000000000000000;payee=X"));
+        // 18 and 19 digits: overflow in cents, whole or with decimals
+        assertEquals(Policy.NO_AMOUNT, Policy.amount("amount=900000000000000000;payee=X"));
+        assertEquals(Policy.NO_AMOUNT, Policy.amount("amount=900000000000000000.5"));
+        assertEquals(Policy.NO_AMOUNT, Policy.amount("amount=922337203685477580.8"));
+        assertEquals(Policy.NO_AMOUNT, Policy.amount("amount=9000000000000000000"));
+        assertEquals(Policy.NO_AMOUNT, Policy.amount("amount=9000000000000000000.01"));
+        assertEquals(-1, match(policy, "amount=900000000000000000;payee=X"));
+        assertEquals(-1, match(policy, "amount=9000000000000000000;payee=X"));
+    }
+
+    @Test
+    public void keyInsideAnotherKeyIsIgnored() {
+        Policy policy = Policy.compile("amount < 100");
+        assertEquals(-1, match(policy, "discount_amount=1;amount=99999"));
+        assertEquals(-1, match(policy, "discount_amount=1"));
+        assertEquals(-1, match(policy, "note amount=1"));
+    }
+
+    @Test
+    public void repeatedKeyIsNoValue() {
+        assertEquals(-1, match(Policy.compile("amount < 100"), "amount=1;amount=99999"));
+        assertEquals(-1, match(Policy.compile("payee in ACME"), "payee=ACME;payee=Casino"));
+    }
+
+    @Test
+    public void payeeIsAnchored() {
+        Policy policy = Policy.compile("payee in ACME, Water Co");
+        assertEquals(0, match(policy, "payee=ACME"));
+        assertEquals(0, match(policy, "amount=1;payee=water co ;id=7"));
+        assertEquals(-1, match(policy, "real_payee=Casino;x_payee=ACME"));
+        assertEquals(-1, match(policy, "old_payee=ACME;payee=Casino"));
+        assertEquals(-1, match(policy, "payee=ACME Ltd"));
+    }
+
+    @Test
+    public void notAndRulesInOrder() {
+        Policy policy = Policy.compile("# small and not to a casino\n"
+                + "amount <= 10 and not payee in Casino\n"
+                + "amount < 1000 and payee in ACME\n");
+        assertEquals(2, policy.size());
+        assertEquals(0, match(policy, "amount=10.00;payee=ACME"));
+        assertEquals(1, match(policy, "amount=999.99;payee=ACME"));
+        assertEquals(-1, match(policy, "amount=5;payee=Casino"));
+    }
+
+    @Test
+    public void rateLimitsPerDesktop() {
+        Policy policy = Policy.compile("amount < 100 and rate 2 / 60");
+        long now = 1000000;
+        assertEquals(0, policy.match(context.set(ADDRESS, "amount=1", now)));
+        assertEquals(0, policy.match(context.set(ADDRESS, "amount=1", now)));
+        assertEquals(-1, policy.match(context.set(ADDRESS, "amount=1", now)));
+        assertEquals(0, policy.match(context.set("AA:02", "amount=1", now)));
+        assertEquals(0, policy.match(context.set(ADDRESS, "amount=1", now + 60000)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void badRule() {
+        Policy.compile("amount < 1,000");
+    }
+
+    private int match(Policy policy, String message) {
+        return policy.match(context.set(ADDRESS, message, System.currentTimeMillis()));
+    }
+}
@@ -0,0 +1,350 @@
+package ru.dualglad.shaders.protocol;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+// Dialogs of SessionServer over LoopbackTransport, Desktops driven by DesktopClient
+public class SessionServerTest {
+    static final Console SILENT = new Console() {
+        public void msg(String string, int color) {
+        }
+
+        public void msgdbg(String string) {
+        }
+    };
+
+    // User answers in turn, the last one repeated; Approval states
+    static final class ScriptedUser implements Approver {
+        final AtomicInteger asked = new AtomicInteger();
+        volatile String question; // last one
+        private final int[] answers;
+
+        ScriptedUser(int... answers) {
+            this.answers = answers;
+        }
+
+        ScriptedUser(boolean accept) {
+            this(accept ? Approval.ACCEPTED : Approval.REJECTED);
+        }
+
+        public int askUser(String question, int color) {
+            this.question = question;
+            int i = asked.getAndIncrement();
+            return answers[Math.min(i, answers.length - 1)];
+        }
+    }
+
+    private final CryptoEngine desktop;
+    private LoopbackTransport transport;
+    private SessionServer server;
+
+    public SessionServerTest() throws Exception {
+        desktop = CryptoEngine.generate();
+    }
+
+    @Before
+    public void setUp() {
+        transport = new LoopbackTransport();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null) {
+            server.stop();
+            assertTrue(server.awaitTermination(5, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void pairsNewDesktopAcceptedByUser() throws Exception {
+        ScriptedUser user = new ScriptedUser(true);
+        CryptoEngine mobile = start(user, 2);
+        DesktopClient client = open("AA:01", false, false);
+        assertEquals(mobile.getPublickey(), client.pair());
+        client.close();
+        assertEquals(1, user.asked.get());
+        Desktop paired = server.getPairings().get("AA:01");
+        assertNotNull(paired);
+        assertEquals(desktop.getPublickey(), paired.publickey);
+    }
+
+    @Test
+    public void refusesPairingRejectedByUser() throws Exception {
+        start(new ScriptedUser(false), 2);
+        DesktopClient client = open("AA:01", true, false);
+        assertNull(client.pair());
+        client.close();
+        assertNull(server.getPairings().get("AA:01"));
+    }
+
+    @Test
+    public void signsAcceptedRequestInBothFormats() throws Exception {
+        CryptoEngine mobile = start(new ScriptedUser(true), 2);
+        pair("AA:01", mobile);
+        for (boolean framed : new boolean[] {false, true}) {
+            DesktopClient client = open("AA:01", framed, false);
+            String signed = client.request("amount=10;payee=ACME;", "part " + framed);
+            client.close();
+            assertNotNull(signed);
+            assertTrue(mobile.verify(mobile.parsePublickey(mobile.getPublickey()), "part " + framed, signed));
+        }
+    }
+
+    @Test
+    public void refusesRequestRejectedByUser() throws Exception {
+        CryptoEngine mobile = start(new ScriptedUser(false), 2);
+        pair("AA:01", mobile);
+        DesktopClient client = open("AA:01", true, false);
+        assertNull(client.request("amount=10;", "part"));
+        client.close();
+    }
+
+    @Test
+    public void refusesRequestOfUnknownDesktop() throws Exception {
+        ScriptedUser user = new ScriptedUser(true);
+        start(user, 2);
+        DesktopClient client = open("AA:02", true, false);
+        assertNull(client.request("amount=10;", "part"));
+        client.close();
+        assertEquals(0, user.asked.get());
+    }
+
+    @Test
+    public void retryAfterRejectionIsNotAskedAgain() throws Exception {
+        ScriptedUser user = new ScriptedUser(Approval.REJECTED, Approval.ACCEPTED);
+        CryptoEngine mobile = start(user, 2);
+        pair("AA:01", mobile);
+        for (int attempt = 0; attempt < 2; attempt++) {
+            DesktopClient client = open("AA:01", true, false);
+            assertNull(client.request("id=1;amount=10;", "part"));
+            client.close();
+        }
+        assertEquals(1, user.asked.get());
+    }
+
+    @Test
+    public void retryAfterUnansweredPromptIsAskedAgain() throws Exception {
+        for (int unanswered : new int[] {Approval.EXPIRED, Approval.CANCELLED}) {
+            ScriptedUser user = new ScriptedUser(unanswered, Approval.ACCEPTED);
+            transport = new LoopbackTransport();
+            CryptoEngine mobile = start(user, 2);
+            pair("AA:01", mobile);
+            DesktopClient client = open("AA:01", true, false);
+            assertNull(client.request("id=1;amount=10;", "part"));
+            client.close();
+            client = open("AA:01", true, false);
+            assertNotNull(client.request("id=1;amount=10;", "part"));
+            client.close();
+            assertEquals(2, user.asked.get());
+            tearDown();
+        }
+        server = null;
+    }
+
+    @Test
+    public void journalsUnansweredPromptAsNoDecision() throws Exception {
+        File directory = File.createTempFile("audit", "");
+        assertTrue(directory.delete());
+        AuditLog audit = AuditLog.open(directory);
+        try {
+            CryptoEngine mobile = start(new ScriptedUser(Approval.EXPIRED, Approval.REJECTED, Approval.CANCELLED), 2);
+            server.setAudit(audit);
+            pair("AA:01", mobile);
+            for (int i = 0; i < 3; i++) {
+                DesktopClient client = open("AA:01", true, false);
+                assertNull(client.request("id=" + i + ";amount=10;", "part"));
+                client.close();
+            }
+            audit.flush();
+            List<AuditLog.Entry> entries = audit.byDesktop("AA:01", 0, Long.MAX_VALUE);
+            assertEquals(3, entries.size());
+            assertEquals(AuditLog.EXPIRED, entries.get(0).decision);
+            assertEquals(AuditLog.REJECTED, entries.get(1).decision);
+            assertEquals(AuditLog.EXPIRED, entries.get(2).decision);
+        } finally {
+            audit.close();
+            PairingRegistryTest.delete(directory);
+        }
+    }
+
+    @Test
+    public void servesManyDialogsOnKeepAliveLink() throws Exception {
+        CryptoEngine mobile = start(new ScriptedUser(true), 2);
+        pair("AA:01", mobile);
+        DesktopClient client = open("AA:01", true, true);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(client.ping());
+            assertNotNull(client.request("id=" + i + ";", "part " + i));
+        }
+        client.close();
+    }
+
+    @Test
+    public void signsBatchWithOneDecision() throws Exception {
+        ScriptedUser user = new ScriptedUser(true);
+        CryptoEngine mobile = start(user, 2);
+        pair("AA:01", mobile);
+        DesktopClient client = open("AA:01", true, false);
+        String[] signed = client.batchRequest(new String[] {"amount=1;", "amount=2;"}, new String[] {"p1", "p2"});
+        client.close();
+        assertEquals(2, signed.length);
+        PublicKey key = mobile.parsePublickey(mobile.getPublickey());
+        assertTrue(mobile.verify(key, "p1", signed[0]));
+        assertTrue(mobile.verify(key, "p2", signed[1]));
+        assertEquals(1, user.asked.get());
+    }
+
+    @Test
+    public void batchSummarySumsAmounts() throws Exception {
+        ScriptedUser user = new ScriptedUser(true);
+        CryptoEngine mobile = start(user, 2);
+        pair("AA:01", mobile);
+        DesktopClient client = open("AA:01", true, false);
+        client.batchRequest(new String[] {"amount=10.50;payee=ACME", "id=2;amount=0.75", "note=no money"}, new String[] {"p1", "p2", "p3"});
+        client.close();
+        assertTrue(user.question, user.question.startsWith("Incoming batch: 3 requests, total amount 11.25 + 1 without amount:"));
+    }
+
+    @Test
+    public void batchSummarySkipsOverflowingAmounts() throws Exception {
+        ScriptedUser user = new ScriptedUser(true);
+        CryptoEngine mobile = start(user, 2);
+        pair("AA:01", mobile);
+        DesktopClient client = open("AA:01", true, false);
+        // an amount that overflows in cents, then two that overflow the sum
+        client.batchRequest(new String[] {"amount=10.00", "amount=900000000000000000;payee=X", "amount=90000000000000000", "amount=90000000000000000"},
+                new String[] {"p1", "p2", "p3", "p4"});
+        client.close();
+        assertTrue(user.question, user.question.startsWith("Incoming batch: 4 requests, total amount 90000000000000010.00 + 2 without amount:"));
+    }
+
+    @Test
+    public void servesDesktopsConcurrently() throws Exception {
+        final int desktops = 3;
+        final CountDownLatch all_asked = new CountDownLatch(desktops);
+        // Every question waits until all Desktops are asked: passes only if sessions run in parallel
+        Approver user = new Approver() {
+            public int askUser(String question, int color) {
+                all_asked.countDown();
+                try {
+                    return all_asked.await(5, TimeUnit.SECONDS) ? Approval.ACCEPTED : Approval.EXPIRED;
+                } catch (InterruptedException e) {
+                    return Approval.CANCELLED;
+                }
+            }
+        };
+        CryptoEngine mobile = start(user, desktops);
+        ExecutorService pool = Executors.newFixedThreadPool(desktops);
+        try {
+            Future<?>[] results = new Future<?>[desktops];
+            for (int i = 0; i < desktops; i++) {
+                final String address = "AA:0" + i;
+                pair(address, mobile);
+                results[i] = pool.submit(new Callable<String>() {
+                    public String call() throws Exception {
+                        DesktopClient client = open(address, true, false);
+                        try {
+                            return client.request("amount=1;", address);
+                        } finally {
+                            client.close();
+                        }
+                    }
+                });
+            }
+            for (Future<?> result : results) {
+                assertNotNull(result.get(10, TimeUnit.SECONDS));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void refusesDesktopOverSessionLimit() throws Exception {
+        CryptoEngine mobile = start(new ScriptedUser(true), 2, 1);
+        pair("AA:01", mobile);
+        DesktopClient first = open("AA:01", true, true);
+        try {
+            open("AA:01", true, false);
+            fail("second session of the Desktop was admitted");
+        } catch (IOException e) {
+            // dropped on accept
+        }
+        assertTrue(first.ping());
+        first.close();
+    }
+
+    @Test
+    public void servesWithoutPendingQueue() throws Exception {
+        // direct hand-off: admitted only while a worker is free
+        CryptoEngine mobile = start(new ScriptedUser(true), 1, 0, 0);
+        pair("AA:01", mobile);
+        for (int i = 0; i < 3; i++) {
+            DesktopClient client = null;
+            // the probe or the previous session may still hold the worker
+            for (int attempt = 0; client == null; attempt++) {
+                try {
+                    client = open("AA:01", true, false);
+                } catch (IOException e) {
+                    assertTrue(attempt < 100);
+                    Thread.sleep(10);
+                }
+            }
+            assertNotNull(client.request("id=" + i + ";", "part"));
+            client.close();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesNegativeAdmission() throws Exception {
+        new SessionServer(transport, SILENT, new ScriptedUser(true), desktop, PairingRegistry.inMemory(desktop), 1).setAdmission(-1, 0);
+    }
+
+    private CryptoEngine start(Approver user, int workers) throws Exception {
+        return start(user, workers, SessionServer.DEFAULT_MAX_PER_DESKTOP);
+    }
+
+    private CryptoEngine start(Approver user, int workers, int max_per_desktop) throws Exception {
+        return start(user, workers, SessionServer.DEFAULT_MAX_PENDING, max_per_desktop);
+    }
+
+    private CryptoEngine start(Approver user, int workers, int max_pending, int max_per_desktop) throws Exception {
+        CryptoEngine mobile = CryptoEngine.generate();
+        server = new SessionServer(transport, SILENT, user, mobile, PairingRegistry.inMemory(mobile), workers);
+        server.setAdmission(max_pending, max_per_desktop);
+        server.start();
+        // acceptor opens the transport asynchronously
+        while (true) {
+            try {
+                transport.connect("probe", "probe").close();
+                return mobile;
+            } catch (IOException e) {
+                Thread.sleep(5);
+            }
+        }
+    }
+
+    private void pair(String address, CryptoEngine mobile) throws IOException {
+        server.getPairings().put(new Desktop(address, "desktop", desktop.getPublickey(), mobile.parsePublickey(desktop.getPublickey())));
+    }
+
+    private DesktopClient open(String address, boolean framed, boolean keepalive) throws IOException {
+        DesktopClient client = new DesktopClient(transport.connect(address, "desktop"), desktop);
+        client.open(framed, keepalive);
+        return client;
+    }
+}
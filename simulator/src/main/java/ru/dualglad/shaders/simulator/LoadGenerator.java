@@ -0,0 +1,381 @@
+package ru.dualglad.shaders.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import ru.dualglad.shaders.protocol.CryptoEngine;
+import ru.dualglad.shaders.protocol.DesktopClient;
+import ru.dualglad.shaders.protocol.Histogram;
+import ru.dualglad.shaders.protocol.Link;
+
+/** Simulated Desktops sending requests to one Mobile
+ *
+ * Every Desktop is a thread running full dialogs through DesktopClient.
+ * With a rate, dialogs start on a fixed schedule shared by all Desktops and
+ * latency counts from the scheduled start, so a slow Mobile is not hidden
+ * by Desktops waiting for it.
+ *
+ */
+final class LoadGenerator {
+    // Link to the Mobile for a Desktop address
+    interface Connector {
+        Link connect(String address, String name) throws IOException;
+    }
+
+    // Dialog outcomes
+    static final int SIGNED = 0;     // "answer" received
+    static final int REJECTED = 1;   // "bad_request" received for a valid request
+    static final int ERRORS = 2;     // broken link or unexpected reply
+    static final int DROPPED = 3;    // fault: link closed at once
+    static final int GARBAGE = 4;    // fault: random bytes sent
+    static final int FORGED = 5;     // fault: refused as expected
+    static final int UNKNOWN = 6;    // fault: refused as expected
+    static final int ACCEPTED_FAULT = 7; // fault accepted by Mobile, must stay 0
+    static final int STALLED = 8;    // fault: silent link dropped by the Mobile
+    static final int RETRIED = 9;    // dialog sent again got the same answer
+    static final int IDLE_REFUSED = 10; // idle link not opened: busy Mobile or keep-alive refused
+    static final int IDLE_DROPPED = 11; // idle link closed by the Mobile during the run
+    private static final String[] OUTCOMES = {"signed", "rejected", "errors", "dropped", "garbage", "forged", "unknown", "accepted_fault",
+            "stalled", "retried", "idle_refused", "idle_dropped"};
+
+    private static final int CONNECT_ATTEMPTS = 3;
+
+    private final Options options;
+    private final Connector connector;
+    private final String address;     // paired Desktop address
+    private final CryptoEngine desktop; // paired Desktop keys
+    private final CryptoEngine forger;  // keys the Mobile has never seen
+
+    private final Histogram latency = new Histogram(); // valid dialogs only
+    private final AtomicLongArray outcomes = new AtomicLongArray(OUTCOMES.length);
+    private final AtomicLong next_start = new AtomicLong(); // ns, rate schedule
+    private final AtomicLong started = new AtomicLong();    // dialogs started
+    private volatile long deadline;                         // ns
+
+    LoadGenerator(Options options, Connector connector, String address, CryptoEngine desktop, CryptoEngine forger) {
+        this.options = options;
+        this.connector = connector;
+        this.address = address;
+        this.desktop = desktop;
+        this.forger = forger;
+    }
+
+    // Run all Desktops until duration or request limit
+    Report run() throws InterruptedException {
+        DesktopClient[] idle = openIdle();
+        long start = System.nanoTime();
+        deadline = start + TimeUnit.SECONDS.toNanos(options.duration);
+        next_start.set(start);
+        Thread[] desktops = new Thread[options.concurrency];
+        for (int i = 0; i < desktops.length; i++) {
+            final int number = i;
+            desktops[i] = new Thread(new Runnable() {
+                public void run() {
+                    desktop(number);
+                }
+            }, "desktop-" + i);
+            desktops[i].start();
+        }
+        for (Thread thread : desktops) {
+            thread.join();
+        }
+        closeIdle(idle);
+        long[] counts = new long[OUTCOMES.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = outcomes.get(i);
+        }
+        return new Report(System.nanoTime() - start, latency.snapshot(), counts, options.batch);
+    }
+
+    // Keep-alive links that stay silent during the run, a failed one is left null
+    private DesktopClient[] openIdle() {
+        DesktopClient[] idle = new DesktopClient[options.idle];
+        for (int i = 0; i < idle.length; i++) {
+            try {
+                idle[i] = open(address, desktop, true);
+            } catch (IOException e) {
+                System.err.println("Failure to open idle link " + i + ": " + e.getMessage());
+                outcomes.incrementAndGet(IDLE_REFUSED);
+            }
+        }
+        return idle;
+    }
+
+    // Idle links still served answer "ping", the rest were dropped by the Mobile
+    private void closeIdle(DesktopClient[] idle) {
+        for (DesktopClient client : idle) {
+            if (client == null) {
+                continue;
+            }
+            boolean alive;
+            try {
+                alive = client.ping();
+            } catch (IOException e) {
+                alive = false;
+            }
+            if (!alive) {
+                outcomes.incrementAndGet(IDLE_DROPPED);
+            }
+            client.close();
+        }
+    }
+
+    // One simulated Desktop
+    private void desktop(int number) {
+        Random random = new Random(options.seed * 31 + number);
+        String message = payload("amount=" + (number + 1) + ";payee=SIM" + number + ";", random);
+        String part = payload("", random);
+        String[] messages = new String[options.batch];
+        String[] parts = new String[options.batch];
+        long sequence = 0; // dialogs of this Desktop, every request is new unless retried
+        long interval = (options.rate > 0) ? (long)(TimeUnit.SECONDS.toNanos(1) / options.rate) : 0;
+
+        DesktopClient client = null;
+        String ticket = null; // outlives links, like on a real Desktop
+        while (true) {
+            if ((options.requests > 0) && (started.incrementAndGet() > options.requests)) {
+                break;
+            }
+            long scheduled;
+            if (interval > 0) {
+                scheduled = next_start.getAndAdd(interval);
+                if (scheduled >= deadline) {
+                    break;
+                }
+                sleepUntil(scheduled);
+            }
+            else {
+                scheduled = System.nanoTime();
+                if (scheduled >= deadline) {
+                    break;
+                }
+            }
+
+            double fault = random.nextDouble();
+            if ((fault < options.faults()) && (client != null)) {
+                // one link per Desktop, as over Bluetooth
+                client.close();
+                client = null;
+            }
+            if (fault < options.drop) {
+                dropped();
+                continue;
+            }
+            fault -= options.drop;
+            if (fault < options.garbage) {
+                garbage(random);
+                continue;
+            }
+            fault -= options.garbage;
+            if (fault < options.forge) {
+                refused(address, forger, messages, parts, FORGED);
+                continue;
+            }
+            fault -= options.forge;
+            if (fault < options.unknown) {
+                refused("unknown-" + number, desktop, messages, parts, UNKNOWN);
+                continue;
+            }
+            fault -= options.unknown;
+            if (fault < options.stall) {
+                stalled();
+                continue;
+            }
+
+            sequence++;
+            for (int i = 0; i < options.batch; i++) {
+                messages[i] = "id=" + number + "." + sequence + "." + i + ";" + message;
+                parts[i] = part;
+            }
+            try {
+                if (client == null) {
+                    client = open(address, desktop, options.keepalive);
+                    client.setResumption(options.tickets);
+                    client.setTicket(ticket);
+                }
+                boolean signed = dialog(client, messages, parts);
+                ticket = client.getTicket();
+                latency.recordSince(scheduled);
+                outcomes.incrementAndGet(signed ? SIGNED : REJECTED);
+                if (random.nextDouble() < options.retry) {
+                    // answer lost on the way, same requests again on a new link
+                    client.close();
+                    client = null;
+                    client = open(address, desktop, options.keepalive);
+                    client.setResumption(options.tickets);
+                    client.setTicket(ticket);
+                    outcomes.incrementAndGet((dialog(client, messages, parts) == signed) ? RETRIED : ERRORS);
+                    ticket = client.getTicket();
+                }
+            } catch (IOException e) {
+                outcomes.incrementAndGet(ERRORS);
+                if (client != null) {
+                    client.close();
+                    client = null;
+                }
+                continue;
+            }
+            if (!options.keepalive) {
+                client.close();
+                client = null;
+            }
+        }
+        if (client != null) {
+            client.close();
+        }
+    }
+
+    // true if at least one request was signed
+    private boolean dialog(DesktopClient client, String[] messages, String[] parts) throws IOException {
+        if (options.stream) {
+            return client.streamRequest(messages[0], parts[0]) != null;
+        }
+        if (messages.length == 1) {
+            return client.request(messages[0], parts[0]) != null;
+        }
+        return client.batchRequest(messages, parts) != null;
+    }
+
+    // Valid format, but the Mobile has to refuse
+    private void refused(String address, CryptoEngine keys, String[] messages, String[] parts, int outcome) {
+        DesktopClient client = null;
+        try {
+            client = open(address, keys, false);
+            outcomes.incrementAndGet(dialog(client, messages, parts) ? ACCEPTED_FAULT : outcome);
+        } catch (IOException e) {
+            outcomes.incrementAndGet(ERRORS);
+        } finally {
+            if (client != null) {
+                client.close();
+            }
+        }
+    }
+
+    private void dropped() {
+        try {
+            connector.connect(address, "simulator").close();
+            outcomes.incrementAndGet(DROPPED);
+        } catch (IOException e) {
+            outcomes.incrementAndGet(ERRORS);
+        }
+    }
+
+    // Say nothing, wait for the Mobile deadline to close the link
+    private void stalled() {
+        Link link;
+        try {
+            link = connector.connect(address, "simulator");
+        } catch (IOException e) {
+            outcomes.incrementAndGet(ERRORS);
+            return;
+        }
+        try {
+            InputStream inputStream = link.getInputStream();
+            while (inputStream.read() >= 0) {
+            }
+        } catch (IOException e) {
+            // reset by the Mobile
+        }
+        outcomes.incrementAndGet(STALLED);
+        try {
+            link.close();
+        } catch (IOException e) { e.printStackTrace(); }
+    }
+
+    // Random bytes ending with a line break, then hang up
+    private void garbage(Random random) {
+        Link link = null;
+        try {
+            link = connector.connect(address, "simulator");
+            byte[] bytes = new byte[1 + random.nextInt(Math.max(1, options.payload))];
+            random.nextBytes(bytes);
+            bytes[bytes.length - 1] = '\n';
+            OutputStream outputStream = link.getOutputStream();
+            outputStream.write(bytes);
+            outputStream.flush();
+            outcomes.incrementAndGet(GARBAGE);
+        } catch (IOException e) {
+            outcomes.incrementAndGet(ERRORS);
+        } finally {
+            if (link != null) {
+                try {
+                    link.close();
+                } catch (IOException e) { e.printStackTrace(); }
+            }
+        }
+    }
+
+    // Busy server drops connections, retry a few times
+    private DesktopClient open(String address, CryptoEngine keys, boolean keepalive) throws IOException {
+        IOException failure = null;
+        for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+            DesktopClient client = new DesktopClient(connector.connect(address, "simulator"), keys);
+            try {
+                client.open(options.framed, keepalive);
+                return client;
+            } catch (IOException e) {
+                client.close();
+                failure = e;
+            }
+        }
+        throw failure;
+    }
+
+    private String payload(String prefix, Random random) {
+        StringBuilder text = new StringBuilder(prefix);
+        while (text.length() < options.payload) {
+            text.append((char)('a' + random.nextInt(26)));
+        }
+        return text.toString();
+    }
+
+    private static void sleepUntil(long time) {
+        long wait;
+        while ((wait = time - System.nanoTime()) > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(wait);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    // Results of one run
+    static final class Report {
+        final long elapsed; // ns
+        final Histogram.Snapshot latency;
+        final long[] outcomes;
+        final int batch;
+
+        Report(long elapsed, Histogram.Snapshot latency, long[] outcomes, int batch) {
+            this.elapsed = elapsed;
+            this.latency = latency;
+            this.outcomes = outcomes;
+            this.batch = batch;
+        }
+
+        long count(int outcome) {
+            return outcomes[outcome];
+        }
+
+        public String toString() {
+            double seconds = elapsed / 1e9;
+            long dialogs = outcomes[SIGNED] + outcomes[REJECTED];
+            StringBuilder text = new StringBuilder();
+            text.append(String.format("elapsed      %.1f s%n", seconds));
+            text.append(String.format("throughput   %.1f dialogs/s, %.1f requests/s%n", dialogs / seconds, dialogs * batch / seconds));
+            text.append(String.format("latency ms   p50 %.2f  p90 %.2f  p99 %.2f  p99.9 %.2f  max %.2f  mean %.2f%n",
+                    latency.percentile(0.5) / 1e6, latency.percentile(0.9) / 1e6, latency.percentile(0.99) / 1e6,
+                    latency.percentile(0.999) / 1e6, latency.max / 1e6, latency.mean() / 1e6));
+            for (int i = 0; i < OUTCOMES.length; i++) {
+                text.append(String.format("%-14s %d%n", OUTCOMES[i], outcomes[i]));
+            }
+            return text.toString();
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package ru.dualglad.shaders.simulator;
+
+// Command line: [serve|load|decode] {--name value}
+final class Options {
+    String mode = "load";      // serve - headless Mobile on TCP, load - Desktops against a Mobile, decode - print trace files
+    String connect;            // load: host:port of a serving Mobile, null - in-process loopback Mobile
+    int port = 7420;           // serve: TCP port
+    boolean lan;               // Mobile serves TCP on one selector thread (LanTransport) instead of a blocking listener
+    int idle;                  // load: silent keep-alive links held open during the run
+    String data;               // serve: Mobile keys, pairings, journal, traces and policy.txt location, null - in memory
+    String log_levels;         // Mobile trace levels, e.g. "*=debug,wire=trace"; printed with --verbose, written under --data
+    int workers = 4;           // Mobile session workers
+    int concurrency = 4;       // simulated Desktops
+    double rate;               // requests per second for all Desktops, 0 - as fast as possible
+    long duration = 10;        // s
+    long requests;             // stop after this many requests, 0 - duration only
+    int payload = 64;          // characters of message_from_server and of part_for_signature
+    int batch = 1;             // requests per dialog, > 1 uses "batch_request"
+    boolean framed = true;     // framed binary or legacy text format
+    boolean keepalive = true;  // one link per Desktop or one link per dialog
+    boolean stream;            // "stream_request" in chunks instead of "request", batch 1 only
+    boolean tickets;           // skip the challenge with resumption tickets
+    boolean replies = true;    // Mobile answers repeated requests from its ReplyCache
+    double retry;              // probability a dialog is sent again, as after a lost answer
+    String script = "accept";  // simulated user, see ScriptedApprover
+    long seed = 1;             // random seed of faults and script
+    boolean verbose;           // print Mobile console
+    long timeout;              // ms, Mobile deadline of every session stage, 0 - server defaults
+    int per_desktop;           // Mobile sessions per Desktop address, 0 - no limit
+
+    // Fault probabilities per dialog
+    double drop;               // link closed right after it is opened
+    double garbage;            // random bytes instead of a message
+    double forge;              // challenge signed with a key that is not paired
+    double unknown;            // request from a Desktop address that is not paired (loopback only)
+    double stall;              // link opened and left silent until the Mobile drops it
+
+    static Options parse(String[] args) {
+        Options options = new Options();
+        int i = 0;
+        if ((args.length > 0) && !args[0].startsWith("--")) {
+            options.mode = args[i++];
+        }
+        for (; i < args.length; i += 2) {
+            if (i + 1 >= args.length) {
+                throw new IllegalArgumentException("No value for " + args[i]);
+            }
+            String name = args[i];
+            String value = args[i + 1];
+            switch (name) {
+                case "--connect": options.connect = value; break;
+                case "--port": options.port = Integer.parseInt(value); break;
+                case "--lan": options.lan = Boolean.parseBoolean(value); break;
+                case "--idle": options.idle = Integer.parseInt(value); break;
+                case "--data": options.data = value; break;
+                case "--log-levels": options.log_levels = value; break;
+                case "--workers": options.workers = Integer.parseInt(value); break;
+                case "--concurrency": options.concurrency = Integer.parseInt(value); break;
+                case "--rate": options.rate = Double.parseDouble(value); break;
+                case "--duration": options.duration = Long.parseLong(value); break;
+                case "--requests": options.requests = Long.parseLong(value); break;
+                case "--payload": options.payload = Integer.parseInt(value); break;
+                case "--batch": options.batch = Integer.parseInt(value); break;
+                case "--framed": options.framed = Boolean.parseBoolean(value); break;
+                case "--keepalive": options.keepalive = Boolean.parseBoolean(value); break;
+                case "--stream": options.stream = Boolean.parseBoolean(value); break;
+                case "--tickets": options.tickets = Boolean.parseBoolean(value); break;
+                case "--replies": options.replies = Boolean.parseBoolean(value); break;
+                case "--retry": options.retry = Double.parseDouble(value); break;
+                case "--script": options.script = value; break;
+                case "--seed": options.seed = Long.parseLong(value); break;
+                case "--verbose": options.verbose = Boolean.parseBoolean(value); break;
+                case "--timeout": options.timeout = Long.parseLong(value); break;
+                case "--per-desktop": options.per_desktop = Integer.parseInt(value); break;
+                case "--drop": options.drop = Double.parseDouble(value); break;
+                case "--garbage": options.garbage = Double.parseDouble(value); break;
+                case "--forge": options.forge = Double.parseDouble(value); break;
+                case "--unknown": options.unknown = Double.parseDouble(value); break;
+                case "--stall": options.stall = Double.parseDouble(value); break;
+                default: throw new IllegalArgumentException("Unknown option " + name);
+            }
+        }
+        if (!options.mode.equals("serve") && !options.mode.equals("load") && !options.mode.equals("decode")) {
+            throw new IllegalArgumentException("Unknown mode " + options.mode);
+        }
+        if ((options.concurrency <= 0) || (options.batch <= 0) || (options.payload < 0)) {
+            throw new IllegalArgumentException("concurrency and batch must be positive");
+        }
+        if (options.mode.equals("decode") && (options.data == null)) {
+            throw new IllegalArgumentException("decode needs --data");
+        }
+        if (options.stream && (options.batch != 1)) {
+            throw new IllegalArgumentException("stream needs batch 1");
+        }
+        if (options.lan && !options.framed) {
+            throw new IllegalArgumentException("lan needs framed");
+        }
+        if (options.lan && (options.unknown > 0)) {
+            throw new IllegalArgumentException("unknown needs loopback links, lan Desktops are known by IP");
+        }
+        if ((options.idle != 0) && (!options.lan || (options.idle < 0))) {
+            throw new IllegalArgumentException("idle needs lan, a blocking listener gives every idle link a worker");
+        }
+        if (options.faults() > 1) {
+            throw new IllegalArgumentException("Fault probabilities add up to more than 1");
+        }
+        return options;
+    }
+
+    // Probability of any fault per dialog
+    double faults() {
+        return drop + garbage + forge + unknown + stall;
+    }
+
+    static String usage() {
+        return "usage: simulator [serve|load|decode] [--connect host:port] [--port N] [--lan true|false] [--data DIR] [--workers N]\n"
+                + "  [--concurrency N] [--rate R/s] [--duration S] [--requests N] [--payload N] [--batch N]\n"
+                + "  [--framed true|false] [--keepalive true|false] [--stream true|false] [--tickets true|false]\n"
+                + "  [--script accept@100,reject,0.9]\n"
+                + "  [--timeout MS] [--per-desktop N] [--replies true|false] [--retry P] [--log-levels SPEC] [--idle N]\n"
+                + "  [--drop P] [--garbage P] [--forge P] [--unknown P] [--stall P] [--seed N] [--verbose true|false]";
+    }
+}
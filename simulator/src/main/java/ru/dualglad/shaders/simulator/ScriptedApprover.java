@@ -0,0 +1,70 @@
+package ru.dualglad.shaders.simulator;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import ru.dualglad.shaders.protocol.Approval;
+import ru.dualglad.shaders.protocol.Approver;
+
+/** User replaced by a script
+ *
+ * Comma separated steps, used in turn and repeated:
+ *   accept | reject | [probability of accept 0..1], optionally @[delay ms]
+ * e.g. "accept@200,accept,reject" or "0.9@50".
+ * The first step answers the pairing question of a new Desktop.
+ *
+ */
+final class ScriptedApprover implements Approver {
+    private final double[] accept; // probability of accept per step
+    private final long[] delay;    // ms before the answer per step
+    private final AtomicInteger step = new AtomicInteger();
+    private final Random random;
+
+    ScriptedApprover(String script, long seed) {
+        String[] steps = script.split(",");
+        accept = new double[steps.length];
+        delay = new long[steps.length];
+        for (int i = 0; i < steps.length; i++) {
+            String text = steps[i].trim();
+            int at = text.indexOf('@');
+            if (at >= 0) {
+                delay[i] = Long.parseLong(text.substring(at + 1).trim());
+                text = text.substring(0, at).trim();
+            }
+            if (text.equals("accept")) {
+                accept[i] = 1;
+            }
+            else if (text.equals("reject")) {
+                accept[i] = 0;
+            }
+            else {
+                accept[i] = Double.parseDouble(text);
+                if ((accept[i] < 0) || (accept[i] > 1)) {
+                    throw new IllegalArgumentException("Bad script step \"" + steps[i] + "\"");
+                }
+            }
+        }
+        random = new Random(seed);
+    }
+
+    public int askUser(String question, int color) {
+        int i = (step.getAndIncrement() & Integer.MAX_VALUE) % accept.length;
+        if (delay[i] > 0) {
+            try {
+                Thread.sleep(delay[i]);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return Approval.CANCELLED;
+            }
+        }
+        double probability = accept[i];
+        if (probability >= 1) {
+            return Approval.ACCEPTED;
+        }
+        if (probability <= 0) {
+            return Approval.REJECTED;
+        }
+        synchronized (random) {
+            return (random.nextDouble() < probability) ? Approval.ACCEPTED : Approval.REJECTED;
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package ru.dualglad.shaders.simulator;
+
+import java.io.File;
+import java.io.IOException;
+import ru.dualglad.shaders.protocol.Console;
+import ru.dualglad.shaders.protocol.CryptoEngine;
+import ru.dualglad.shaders.protocol.Desktop;
+import ru.dualglad.shaders.protocol.DesktopClient;
+import ru.dualglad.shaders.protocol.Link;
+import ru.dualglad.shaders.protocol.LogFile;
+import ru.dualglad.shaders.protocol.Logs;
+import ru.dualglad.shaders.protocol.LoopbackTransport;
+import ru.dualglad.shaders.protocol.Metrics;
+import ru.dualglad.shaders.protocol.SessionServer;
+import ru.dualglad.shaders.protocol.SigningEngine;
+import ru.dualglad.shaders.protocol.TcpTransport;
+
+/** Mobile and Desktops without phones and Bluetooth
+ *
+ * serve: Mobile server on TCP with a scripted user, runs until killed.
+ * load:  simulated Desktops against a serving Mobile (--connect) or against
+ *        an in-process Mobile over loopback links (TCP on localhost with
+ *        --lan), prints a report.
+ * decode: trace files written by a Mobile under --data as text, oldest first.
+ *
+ */
+public final class Simulator {
+    private static final String DESKTOP_ADDRESS = "00:00:00:00:5E:00"; // loopback Desktop address
+    private static final String DESKTOP_NAME = "simulator";
+
+    private Simulator() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        Options options;
+        try {
+            options = Options.parse(args);
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(Options.usage());
+            System.exit(2);
+            return;
+        }
+        if (options.mode.equals("serve")) {
+            serve(options);
+        }
+        else if (options.mode.equals("decode")) {
+            decode(options);
+        }
+        else {
+            load(options);
+        }
+    }
+
+    private static void serve(Options options) throws InterruptedException {
+        final SigningEngine engine = engine(options, (options.data == null) ? null : new File(options.data));
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                engine.close();
+                System.out.print(engine.getMetrics().snapshot().summary());
+            }
+        });
+        if (options.lan) {
+            engine.setLan(null, options.port);
+        }
+        if (!engine.start(options.lan ? null : new TcpTransport(null, options.port))) {
+            System.err.println("Failure to load Mobile state.");
+            System.exit(1);
+            return;
+        }
+        System.out.println("Serving on port " + options.port + ", Mobile key " + engine.getCrypto().getPublickey());
+        while (engine.isRunning()) {
+            Thread.sleep(1000);
+        }
+    }
+
+    private static void load(Options options) throws Exception {
+        CryptoEngine desktop = CryptoEngine.generate();
+        CryptoEngine forger = CryptoEngine.generate();
+        SigningEngine engine = null;
+        LoadGenerator.Connector connector;
+        String address;
+
+        if ((options.connect == null) && options.lan) {
+            // In-process Mobile on localhost, knows the Desktop by its IP
+            engine = engine(options, null);
+            engine.setLan("127.0.0.1", 0);
+            engine.start(null);
+            final int port = engine.getServer().getLanPort();
+            CryptoEngine mobile = engine.getCrypto();
+            address = "127.0.0.1";
+            engine.getPairings().put(new Desktop(address, DESKTOP_NAME, desktop.getPublickey(), mobile.parsePublickey(desktop.getPublickey())));
+            connector = new LoadGenerator.Connector() {
+                public Link connect(String address, String name) throws IOException {
+                    return TcpTransport.connect("127.0.0.1", port);
+                }
+            };
+        }
+        else if (options.connect == null) {
+            // In-process Mobile, Desktop paired before the first connection
+            engine = engine(options, null);
+            final LoopbackTransport transport = new LoopbackTransport();
+            engine.start(transport);
+            CryptoEngine mobile = engine.getCrypto();
+            engine.getPairings().put(new Desktop(DESKTOP_ADDRESS, DESKTOP_NAME, desktop.getPublickey(), mobile.parsePublickey(desktop.getPublickey())));
+            connector = new LoadGenerator.Connector() {
+                public Link connect(String address, String name) throws IOException {
+                    return transport.connect(address, name);
+                }
+            };
+            address = DESKTOP_ADDRESS;
+            awaitListening(connector, address);
+        }
+        else {
+            int colon = options.connect.lastIndexOf(':');
+            final String host = options.connect.substring(0, colon);
+            final int port = Integer.parseInt(options.connect.substring(colon + 1));
+            connector = new LoadGenerator.Connector() {
+                public Link connect(String address, String name) throws IOException {
+                    return TcpTransport.connect(host, port);
+                }
+            };
+            // Mobile knows TCP Desktops by IP, pair once for all simulated Desktops
+            address = host;
+            DesktopClient client = new DesktopClient(connector.connect(address, DESKTOP_NAME), desktop);
+            client.open(options.framed, false);
+            String mobile_key = client.pair();
+            client.close();
+            if (mobile_key == null) {
+                System.err.println("Mobile refused pairing.");
+                System.exit(1);
+                return;
+            }
+        }
+
+        LoadGenerator.Report report = new LoadGenerator(options, connector, address, desktop, forger).run();
+        System.out.print(report);
+        if (engine != null) {
+            engine.close();
+            System.out.println();
+            System.out.print(engine.getMetrics().snapshot().summary());
+        }
+        if (report.count(LoadGenerator.ACCEPTED_FAULT) > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Headless Mobile with a scripted user
+    private static SigningEngine engine(Options options, File directory) {
+        SigningEngine engine = new SigningEngine(directory, new PrintConsole(options.verbose),
+                new ScriptedApprover(options.script, options.seed), new Metrics());
+        engine.setWorkers(options.workers);
+        engine.setAdmission(SessionServer.DEFAULT_MAX_PENDING, options.per_desktop);
+        if (!options.replies) {
+            engine.setReplies(null);
+        }
+        if (options.timeout > 0) {
+            engine.setTimeouts(options.timeout, options.timeout, options.timeout, SessionServer.DEFAULT_IDLE_TIMEOUT);
+        }
+        if (options.log_levels != null) {
+            engine.getLogs().setLevels(options.log_levels);
+        }
+        if (options.verbose) {
+            engine.getLogs().addSink(new Logs.Sink() {
+                public void write(Logs.Record record) {
+                    System.out.println(record);
+                }
+            });
+        }
+        return engine;
+    }
+
+    // Trace files as text, a damaged file ends its part of the output
+    private static void decode(Options options) throws IOException {
+        File directory = new File(options.data, SigningEngine.LOGS_DIR);
+        for (File file : LogFile.files(directory)) {
+            LogFile.Reader reader = LogFile.Reader.open(file);
+            try {
+                Logs.Record record;
+                while ((record = reader.next()) != null) {
+                    System.out.println(record);
+                }
+            } catch (IOException e) {
+                System.err.println(file + ": " + e.getMessage());
+            } finally {
+                reader.close();
+            }
+        }
+    }
+
+    // Acceptor opens the transport asynchronously
+    private static void awaitListening(LoadGenerator.Connector connector, String address) throws InterruptedException {
+        while (true) {
+            try {
+                connector.connect(address, DESKTOP_NAME).close();
+                return;
+            } catch (IOException e) {
+                Thread.sleep(10);
+            }
+        }
+    }
+
+    // Mobile console on stdout
+    private static final class PrintConsole implements Console {
+        private final boolean verbose;
+
+        PrintConsole(boolean verbose) {
+            this.verbose = verbose;
+        }
+
+        public void msg(String string, int color) {
+            if (verbose) {
+                System.out.println(string);
+            }
+        }
+
+        public void msgdbg(String string) {
+        }
+    }
+}